@@ -0,0 +1,132 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of the server's block index since a certain epoch, sent in reply to "get_delta". <br/>
+ * If the client's epoch is unknown to the server, the delta is "full", i.e. it contains <br/>
+ * all the present blocks as additions and the client has to drop its cached values first.
+ * @author Tomas Filipek
+ */
+class BlockIndexDelta {
+
+    /**
+     * Identifier of the block index the epochs belong to.
+     */
+    private final String storeId;
+
+    String getStoreId() {
+        return storeId;
+    }
+
+    /**
+     * The epoch of the block index after applying this delta.
+     */
+    private final long epoch;
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Whether the client has to drop all its cached values before applying the changes.
+     */
+    private final boolean full;
+
+    boolean isFull() {
+        return full;
+    }
+
+    /**
+     * For each change, whether the block has been added or removed.
+     */
+    private final List<Boolean> added;
+
+    /**
+     * Weak hash values of the changed blocks.
+     */
+    private final List<Long> hashes;
+
+    /**
+     * Strong hash values of the changed blocks.
+     */
+    private final List<StrongHash> hashes2;
+
+    BlockIndexDelta(String storeId, long epoch, boolean full) {
+        this.storeId = storeId;
+        this.epoch = epoch;
+        this.full = full;
+        this.added = new ArrayList<>();
+        this.hashes = new ArrayList<>();
+        this.hashes2 = new ArrayList<>();
+    }
+
+    /**
+     * Appends a change.
+     * @param isAdded Whether the block has been added or removed.
+     * @param hash Weak hash value of the block.
+     * @param hash2 Strong hash value of the block.
+     */
+    void addChange(boolean isAdded, long hash, StrongHash hash2){
+        added.add(isAdded);
+        hashes.add(hash);
+        hashes2.add(hash2);
+    }
+
+    int getChangeCount(){
+        return added.size();
+    }
+
+    boolean isAdded(int i){
+        return added.get(i);
+    }
+
+    long getHash(int i){
+        return hashes.get(i);
+    }
+
+    StrongHash getHash2(int i){
+        return hashes2.get(i);
+    }
+
+    static Serializer<BlockIndexDelta> getSerializer(){
+        return new BlockIndexDeltaSerializer();
+    }
+
+    private static class BlockIndexDeltaSerializer extends Serializer<BlockIndexDelta> {
+
+        @Override
+        public void write(Kryo kryo, Output output, BlockIndexDelta t) {
+            output.writeString(t.storeId);
+            output.writeLong(t.epoch);
+            output.writeBoolean(t.full);
+            output.writeInt(t.added.size());
+            for (int i = 0; i<t.added.size(); i++){
+                output.writeBoolean(t.added.get(i));
+                output.writeLong(t.hashes.get(i));
+                t.hashes2.get(i).write(output);
+            }
+        }
+
+        @Override
+        public BlockIndexDelta read(Kryo kryo, Input input, Class<BlockIndexDelta> type) {
+            String storeId = input.readString();
+            long epoch = input.readLong();
+            boolean full = input.readBoolean();
+            BlockIndexDelta res = new BlockIndexDelta(storeId, epoch, full);
+            int count = input.readInt();
+            for (int i = 0; i<count; i++){
+                boolean isAdded = input.readBoolean();
+                long hash = input.readLong();
+                StrongHash hash2 = StrongHash.read(input);
+                res.addChange(isAdded, hash, hash2);
+            }
+            return res;
+        }
+    }
+}
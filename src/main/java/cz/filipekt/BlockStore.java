@@ -0,0 +1,457 @@
+package cz.filipekt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the contents of the blocks in append-only pack files in the home directory. <br/>
+ * A block is appended to the current pack as a whole, with a single write, and its <br/>
+ * location (pack number and offset) is kept in the DBlock. A pack which is full is <br/>
+ * never written again, it is deleted once none of its blocks is used any more. <br/>
+ * A full pack of which less than minLiveRatio is used is compacted: its blocks in use <br/>
+ * are moved to the current pack (see move(..)), after which it is deleted. <br/>
+ * The packs hold the bytes in the internal representation, as they are received. <br/>
+ * Blocks saved before the packs were introduced stay in their own files.
+ * @author Tomas Filipek
+ */
+class BlockStore {
+
+    /**
+     * Home directory of the server, the packs are created in it.
+     */
+    private final String dir;
+
+    /**
+     * No more blocks are appended to a pack once it has reached this size.
+     */
+    static final long maxPackSize = 1L << 26;
+
+    /**
+     * Number of the lowest bits of a location holding the offset in the pack.
+     */
+    static final int offsetBits = 40;
+
+    private static final long offsetMask = (1L << offsetBits) - 1;
+
+    /**
+     * Prefix of the names of the pack files.
+     */
+    private static final String packPrefix = "pack";
+
+    /**
+     * Number of the pack to which the blocks are appended.
+     */
+    private int currentPack;
+
+    /**
+     * Channel of the current pack, opened for writing.
+     */
+    private FileChannel currentChannel;
+
+    /**
+     * Size of the current pack, i.e. the offset of the next appended block.
+     */
+    private long currentSize;
+
+    /**
+     * Channels of the packs opened for reading, by the pack number.
+     */
+    private final Map<Integer,FileChannel> readers = new HashMap<>();
+
+    /**
+     * Number of bytes of the blocks in use in each pack, by the pack number.
+     */
+    private final Map<Integer,Long> liveBytes = new HashMap<>();
+
+    /**
+     * A full pack is compacted once less than this part of it is in use.
+     */
+    private static final double minLiveRatio = 0.5;
+
+    /**
+     * Full packs of which less than minLiveRatio is in use, to be compacted.
+     */
+    private final Set<Integer> sparsePacks = new HashSet<>();
+
+    /**
+     * Recently used blocks, so that the bases of scripted versions are not read again and again.
+     */
+    private final ContentCache<StrongHash> cache;
+
+    ContentCache<StrongHash> getCache() {
+        return cache;
+    }
+
+    /**
+     * Opens the packs in "dir". New blocks are appended to the last pack, unless it is full.
+     * @param dir
+     * @param cache Keeps the recently read blocks in memory.
+     * @throws IOException
+     */
+    BlockStore(String dir, ContentCache<StrongHash> cache) throws IOException{
+        this.dir = dir;
+        this.cache = cache;
+        int last = 0;
+        for (int pack : listPacks()){
+            last = Math.max(last, pack);
+        }
+        openPack(last);
+    }
+
+    /**
+     * Returns the numbers of the pack files in the home directory.
+     * @return
+     * @throws IOException
+     */
+    private List<Integer> listPacks() throws IOException{
+        List<Integer> res = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir), packPrefix + "*")){
+            for (Path p : stream){
+                String number = p.getFileName().toString().substring(packPrefix.length());
+                if (ServerUtils.isLong(number)){
+                    res.add(Integer.parseInt(number));
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Deletes the packs, except the current one, which hold no block in use, and marks <br/>
+     * the sparse ones to be compacted. Called once all the blocks of the loaded database <br/>
+     * have been registered.
+     * @throws IOException
+     */
+    synchronized void deleteUnusedPacks() throws IOException{
+        for (int pack : listPacks()){
+            if (pack == currentPack){
+                continue;
+            }
+            Long live = liveBytes.get(pack);
+            if (live == null){
+                Files.deleteIfExists(getPath(pack));
+            } else if (isSparse(live)){
+                sparsePacks.add(pack);
+            }
+        }
+    }
+
+    private static boolean isSparse(long live){
+        return live < maxPackSize * minLiveRatio;
+    }
+
+    /**
+     * Makes the pack "pack" the current pack, creating it if it does not exist.
+     * @param pack
+     * @throws IOException
+     */
+    private void openPack(int pack) throws IOException{
+        if (currentChannel != null){
+            currentChannel.force(false);
+            currentChannel.close();
+        }
+        currentPack = pack;
+        currentChannel = FileChannel.open(getPath(pack), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        currentSize = currentChannel.size();
+    }
+
+    /**
+     * Composes the name of the pack file with the number "pack".
+     * @param pack
+     * @return
+     */
+    static String getPackName(int pack){
+        return String.format("%s%06d", packPrefix, pack);
+    }
+
+    private Path getPath(int pack){
+        return Paths.get(dir, getPackName(pack));
+    }
+
+    /**
+     * Returns the number of the pack from the "location" of a block.
+     * @param location
+     * @return
+     */
+    static int getPack(long location){
+        return (int) (location >>> offsetBits);
+    }
+
+    /**
+     * Returns the offset in the pack from the "location" of a block.
+     * @param location
+     * @return
+     */
+    static long getOffset(long location){
+        return location & offsetMask;
+    }
+
+    /**
+     * Appends the first "used" bytes of "data" to the current pack. The block is not cached, <br/>
+     * so that a large upload does not evict the blocks which are read again and again.
+     * @param data The contents of the block, in the internal representation.
+     * @param used
+     * @return The location of the block, to be kept by its DBlock.
+     * @throws IOException
+     */
+    synchronized long append(byte[] data, int used) throws IOException{
+        return write(data, used);
+    }
+
+    /**
+     * Appends the first "used" bytes of "data" to the current pack, starting a new one <br/>
+     * if it is full. Must be called while holding the monitor of the store.
+     * @param data
+     * @param used
+     * @return The location of the written bytes.
+     * @throws IOException
+     */
+    private long write(byte[] data, int used) throws IOException{
+        if ((currentSize > 0) && (currentSize + used > maxPackSize)){
+            int full = currentPack;
+            openPack(currentPack + 1);
+            Long live = liveBytes.get(full);
+            if (live == null){
+                Files.deleteIfExists(getPath(full));
+            } else if (isSparse(live)){
+                sparsePacks.add(full);
+            }
+        }
+        long offset = currentSize;
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, used);
+        while (buffer.hasRemaining()){
+            currentChannel.write(buffer, offset + buffer.position());
+        }
+        currentSize += used;
+        addLiveBytes(currentPack, used);
+        return ((long) currentPack << offsetBits) | offset;
+    }
+
+    /**
+     * Forces the blocks appended so far to the disc. Called before the journal is synced, <br/>
+     * so that no block in the journal refers to contents which have been lost.
+     * @throws IOException
+     */
+    synchronized void sync() throws IOException{
+        currentChannel.force(false);
+    }
+
+    /**
+     * Returns the packs to be compacted, i.e. the full packs of which less than minLiveRatio <br/>
+     * is in use, and forgets them.
+     * @return
+     */
+    synchronized Set<Integer> takeSparsePacks(){
+        Set<Integer> res = new HashSet<>(sparsePacks);
+        sparsePacks.clear();
+        return res;
+    }
+
+    /**
+     * Copies the contents of "block" from its pack to the current pack, when compacting <br/>
+     * the pack. The new location has to be set in the block, and journaled, by the caller, <br/>
+     * which must hold the write lock of storeLock, so that the block is not being read. <br/>
+     * The old pack is deleted by deletePack(..), once the journal has been synced.
+     * @param block A block kept in a pack.
+     * @return The new location of the block.
+     * @throws IOException
+     */
+    long move(DBlock block) throws IOException{
+        byte[] data = new byte[block.getUsed()];
+        readFromDisc(block, data, 0);
+        synchronized (this){
+            long location = write(data, block.getUsed());
+            addLiveBytes(getPack(block.getLocation()), -block.getUsed());
+            return location;
+        }
+    }
+
+    /**
+     * Deletes the pack "pack", if none of its blocks is in use, after it has been compacted.
+     * @param pack
+     * @throws IOException
+     */
+    void deletePack(int pack) throws IOException{
+        FileChannel reader;
+        synchronized (this){
+            Long live = liveBytes.get(pack);
+            if ((pack == currentPack) || ((live != null) && (live > 0))){
+                return;
+            }
+            liveBytes.remove(pack);
+            reader = readers.remove(pack);
+        }
+        if (reader != null){
+            reader.close();
+        }
+        Files.deleteIfExists(getPath(pack));
+    }
+
+    /**
+     * Records that "block", which is already stored, is in use. Called for the blocks <br/>
+     * of the loaded database, so that the packs can be deleted once they are not needed.
+     * @param block
+     */
+    synchronized void register(DBlock block){
+        if (block.isPacked()){
+            addLiveBytes(getPack(block.getLocation()), block.getUsed());
+        }
+    }
+
+    private void addLiveBytes(int pack, long count){
+        Long current = liveBytes.get(pack);
+        liveBytes.put(pack, (current == null) ? count : current + count);
+    }
+
+    /**
+     * Removes the contents of "block", which is no longer used. The block file of an older <br/>
+     * block is deleted, a pack is deleted when it is full and none of its blocks are used.
+     * @param block
+     * @throws IOException
+     */
+    void delete(DBlock block) throws IOException{
+        cache.remove(block.getHash2());
+        if (!block.isPacked()){
+            ServerUtils.deleteBlock(block.getName(), dir);
+            return;
+        }
+        int pack = getPack(block.getLocation());
+        FileChannel reader;
+        synchronized (this){
+            Long current = liveBytes.get(pack);
+            long left = (current == null) ? 0 : current - block.getUsed();
+            if (left > 0){
+                liveBytes.put(pack, left);
+                if ((pack != currentPack) && isSparse(left)){
+                    sparsePacks.add(pack);
+                }
+                return;
+            }
+            sparsePacks.remove(pack);
+            liveBytes.remove(pack);
+            if (pack == currentPack){
+                return;
+            }
+            reader = readers.remove(pack);
+        }
+        if (reader != null){
+            reader.close();
+        }
+        Files.deleteIfExists(getPath(pack));
+    }
+
+    /**
+     * Returns the channel for reading the pack "pack", opening it if needed.
+     * @param pack
+     * @return
+     * @throws IOException
+     */
+    private synchronized FileChannel getReader(int pack) throws IOException{
+        FileChannel res = readers.get(pack);
+        if (res == null){
+            res = FileChannel.open(getPath(pack), StandardOpenOption.READ);
+            readers.put(pack, res);
+        }
+        return res;
+    }
+
+    /**
+     * Reads the contents of "block" into "buffer" on position "offset", in the internal representation.
+     * @param block
+     * @param buffer Must be able to hold the used part of the block.
+     * @param offset
+     * @return Number of bytes read.
+     * @throws IOException If the pack is shorter than expected.
+     */
+    int read(DBlock block, byte[] buffer, int offset) throws IOException{
+        byte[] cached = cache.get(block.getHash2());
+        if (cached != null){
+            System.arraycopy(cached, 0, buffer, offset, cached.length);
+            return cached.length;
+        }
+        int length = readFromDisc(block, buffer, offset);
+        cache.put(block.getHash2(), buffer, offset, length);
+        return length;
+    }
+
+    private int readFromDisc(DBlock block, byte[] buffer, int offset) throws IOException{
+        if (!block.isPacked()){
+            int length = ServerUtils.readBlockFile(block, dir, buffer, offset);
+            shift(buffer, offset, length);
+            return length;
+        }
+        FileChannel channel = getReader(getPack(block.getLocation()));
+        long start = getOffset(block.getLocation());
+        ByteBuffer dst = ByteBuffer.wrap(buffer, offset, block.getUsed());
+        while (dst.hasRemaining()){
+            if (channel.read(dst, start + dst.position() - offset) == -1){
+                throw new EOFException();
+            }
+        }
+        return block.getUsed();
+    }
+
+    /**
+     * Sends "length" bytes of a pack, starting at "location", to "target" by FileChannel.transferTo(..), <br/>
+     * so that the system copies them straight from the file, without passing them through the heap.
+     * @param location The location of the first block.
+     * @param length
+     * @param target
+     * @throws IOException If the pack is shorter than expected.
+     */
+    void transferTo(long location, int length, WritableByteChannel target) throws IOException{
+        FileChannel channel = getReader(getPack(location));
+        long position = getOffset(location);
+        long end = position + length;
+        while (position < end){
+            long count = channel.transferTo(position, end - position, target);
+            if ((count <= 0) && (position >= channel.size())){
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Reads the contents of "block" into "buffer" as they were in the original file.
+     * @param block
+     * @param buffer Must be able to hold the used part of the block.
+     * @return Number of bytes read.
+     * @throws IOException If the block is shorter than expected.
+     */
+    int readOriginal(DBlock block, byte[] buffer) throws IOException{
+        if (!block.isPacked()){
+            return ServerUtils.readBlockFile(block, dir, buffer, 0);
+        }
+        int length = read(block, buffer, 0);
+        shift(buffer, 0, length);
+        return length;
+    }
+
+    /**
+     * Converts "length" bytes of "data" starting at "offset" between the internal <br/>
+     * and the original representation.
+     * @param data
+     * @param offset
+     * @param length
+     */
+    private static void shift(byte[] data, int offset, int length){
+        for (int i = offset; i<offset + length; i++){
+            data[i] ^= 0x80;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A Bloom filter over the weak hash values of blocks. <br/>
+ * Answers "maybe present" for every added value and, with a configurable probability, <br/>
+ * also for some values never added. It is much smaller than the set of the values itself, <br/>
+ * so it is what the server sends to clients in the "get_filter" message.
+ * @author Tomas Filipek
+ */
+class BloomFilter implements WeakHashIndex {
+
+    /**
+     * The bit array.
+     */
+    private final long[] words;
+
+    /**
+     * Number of bits, i.e. 64 * words.length.
+     */
+    private final long bitCount;
+
+    /**
+     * Number of bits set for each value.
+     */
+    private final int hashCount;
+
+    /**
+     * Number of values the filter has been sized for.
+     */
+    private final int capacity;
+
+    /**
+     * Number of values added so far.
+     */
+    private int insertions = 0;
+
+    private BloomFilter(long[] words, int hashCount, int capacity) {
+        this.words = words;
+        this.bitCount = 64L * words.length;
+        this.hashCount = hashCount;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates an empty filter.
+     * @param capacity Expected number of values.
+     * @param fpp Desired false positive probability, once "capacity" values have been added.
+     */
+    BloomFilter(int capacity, double fpp) {
+        this(new long[wordCount(capacity, fpp)], hashCount(capacity, fpp), capacity);
+    }
+
+    /**
+     * Creates a filter containing all the "values".
+     * @param values
+     * @param capacity Expected number of values, at least values.size().
+     * @param fpp Desired false positive probability.
+     */
+    BloomFilter(Collection<Long> values, int capacity, double fpp) {
+        this(Math.max(capacity, values.size()), fpp);
+        for (long value : values){
+            add(value);
+        }
+    }
+
+    private static int wordCount(int capacity, double fpp) {
+        long bits = (long) Math.ceil(-Math.max(capacity, 1) * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        long words = (bits + 63) / 64;
+        return (int) Math.min(Math.max(words, 1), Integer.MAX_VALUE - 8);
+    }
+
+    private static int hashCount(int capacity, double fpp) {
+        double bitsPerValue = 64.0 * wordCount(capacity, fpp) / Math.max(capacity, 1);
+        int k = (int) Math.round(bitsPerValue * Math.log(2));
+        return Math.min(Math.max(k, 1), 16);
+    }
+
+    /**
+     * Mixes the bits of a weak hash value, which are not evenly distributed.
+     * @param x
+     * @return
+     */
+    private static long mix(long x) {
+        x ^= (x >>> 33);
+        x *= 0xff51afd7ed558ccdL;
+        x ^= (x >>> 33);
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= (x >>> 33);
+        return x;
+    }
+
+    @Override
+    public void add(long value) {
+        long h1 = mix(value);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i<hashCount; i++){
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            words[(int) (bit >>> 6)] |= (1L << bit);
+        }
+        insertions++;
+    }
+
+    @Override
+    public boolean mightContain(long value) {
+        long h1 = mix(value);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i<hashCount; i++){
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether more values have been added than the filter has been sized for, <br/>
+     * so that the false positive probability is higher than requested.
+     * @return
+     */
+    boolean isSaturated() {
+        return insertions > capacity;
+    }
+
+    /**
+     * Returns an independent copy of this filter.
+     * @return
+     */
+    BloomFilter copy() {
+        BloomFilter res = new BloomFilter(Arrays.copyOf(words, words.length), hashCount, capacity);
+        res.insertions = insertions;
+        return res;
+    }
+
+    static Serializer<BloomFilter> getSerializer(){
+        return new BloomFilterSerializer();
+    }
+
+    private static class BloomFilterSerializer extends Serializer<BloomFilter> {
+
+        @Override
+        public void write(Kryo kryo, Output output, BloomFilter t) {
+            output.writeInt(t.hashCount);
+            output.writeInt(t.capacity);
+            output.writeInt(t.insertions);
+            output.writeInt(t.words.length);
+            for (long word : t.words){
+                output.writeLong(word);
+            }
+        }
+
+        @Override
+        public BloomFilter read(Kryo kryo, Input input, Class<BloomFilter> type) {
+            int hashCount = input.readInt();
+            int capacity = input.readInt();
+            int insertions = input.readInt();
+            long[] words = new long[input.readInt()];
+            for (int i = 0; i<words.length; i++){
+                words[i] = input.readLong();
+            }
+            BloomFilter res = new BloomFilter(words, hashCount, capacity);
+            res.insertions = insertions;
+            return res;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.io.Output;
+import java.io.OutputStream;
+
+/**
+ * Sends the written data over a Kryo output as a sequence of chunks, each of them <br/>
+ * preceded by its length. Closing the stream sends a zero length, which marks the end <br/>
+ * of the data, abort() sends a negative length instead. <br/>
+ * The underlying output is neither flushed nor closed by this stream.
+ * @author Tomas Filipek
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    /**
+     * The output the chunks are written to.
+     */
+    private final Output output;
+
+    /**
+     * Data waiting to be sent as a chunk.
+     */
+    private final byte[] buffer;
+
+    /**
+     * Number of valid bytes in the buffer.
+     */
+    private int count = 0;
+
+    /**
+     * Set once the end of the data has been sent.
+     */
+    private boolean closed = false;
+
+    /**
+     * Set while the data of a chunk started by beginRawChunk(..) are being sent.
+     */
+    private boolean inRawChunk = false;
+
+    /**
+     * The default maximal size of a chunk.
+     */
+    static final int defaultChunkSize = 65536;
+
+    ChunkedOutputStream(Output output) {
+        this(output, defaultChunkSize);
+    }
+
+    ChunkedOutputStream(Output output, int chunkSize) {
+        this.output = output;
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) {
+        if (count == buffer.length){
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (len >= buffer.length){
+            flushBuffer();
+            writeChunk(b, off, len);
+        } else {
+            if (len > buffer.length - count){
+                flushBuffer();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+
+    @Override
+    public void flush() {
+        flushBuffer();
+    }
+
+    /**
+     * Sends the remaining data and marks the end of the transfer.
+     */
+    @Override
+    public void close() {
+        if (!closed){
+            flushBuffer();
+            output.writeInt(0);
+            closed = true;
+        }
+    }
+
+    /**
+     * Discards the data not sent yet and tells the receiver that the transfer has failed.
+     * @return False if the receiver can not be told, because a raw chunk has not been finished. <br/>
+     * The connection has to be closed then.
+     */
+    boolean abort() {
+        if (inRawChunk){
+            return false;
+        }
+        if (!closed){
+            count = 0;
+            output.writeInt(-1);
+            closed = true;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a chunk of "length" bytes, which the caller sends past this stream, straight <br/>
+     * to the channel of the underlying output, e.g. by FileChannel.transferTo(..). <br/>
+     * The output is flushed, so the data follow the length. endRawChunk() has to be <br/>
+     * called once all the data have been sent.
+     * @param length Must be positive.
+     */
+    void beginRawChunk(int length) {
+        flushBuffer();
+        output.writeInt(length);
+        output.flush();
+        inRawChunk = true;
+    }
+
+    /**
+     * Marks that all the data of the chunk started by beginRawChunk(..) have been sent.
+     */
+    void endRawChunk() {
+        inRawChunk = false;
+    }
+
+    /**
+     * Sends the contents of the buffer as a single chunk.
+     */
+    private void flushBuffer() {
+        if (count > 0){
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void writeChunk(byte[] b, int off, int len) {
+        if (len > 0){
+            output.writeInt(len);
+            output.writeBytes(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package cz.filipekt;
+
+/**
+ * Splits data into content-defined chunks (FastCDC). <br/>
+ * A chunk ends where a gear hash of the last bytes matches a mask, so the boundaries <br/>
+ * move together with the data when bytes are inserted or removed before them. <br/>
+ * The same parameters are used by the server when storing new data and by the client <br/>
+ * when looking for known chunks, both over the shifted bytes that are transferred.
+ * @author Tomas Filipek
+ */
+class Chunker {
+
+    /**
+     * Minimal length of a chunk, except the last one. No boundary is looked for before it.
+     */
+    private final int minSize;
+
+    int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * The desired average length of a chunk.
+     */
+    private final int avgSize;
+
+    int getAvgSize() {
+        return avgSize;
+    }
+
+    /**
+     * Maximal length of a chunk.
+     */
+    private final int maxSize;
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Mask used before the chunk reaches avgSize, with more bits, so that short chunks are rare.
+     */
+    private final long maskSmall;
+
+    /**
+     * Mask used after the chunk has reached avgSize, with fewer bits, so that long chunks are rare.
+     */
+    private final long maskLarge;
+
+    /**
+     * Random values added to the gear hash for each byte value. Fixed, as the client <br/>
+     * and the server have to find the same boundaries.
+     */
+    private static final long[] gear = new long[256];
+
+    static {
+        long seed = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i<gear.length; i++){
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[i] = z ^ (z >>> 31);
+        }
+    }
+
+    Chunker(int minSize, int avgSize, int maxSize) {
+        this.avgSize = Math.max(avgSize, 64);
+        this.minSize = Math.max(1, Math.min(minSize, this.avgSize));
+        this.maxSize = Math.max(maxSize, this.avgSize);
+        int bits = 31 - Integer.numberOfLeadingZeros(this.avgSize);
+        this.maskSmall = topBits(bits + 2);
+        this.maskLarge = topBits(bits - 2);
+    }
+
+    /**
+     * Returns a mask of the "count" most significant bits. The gear hash shifts left, <br/>
+     * so these bits depend on the most bytes.
+     * @param count
+     * @return
+     */
+    private static long topBits(int count){
+        return -1L << (64 - count);
+    }
+
+    /**
+     * Finds the end of the chunk starting on position "from" of "data".
+     * @param data
+     * @param from Start of the chunk.
+     * @param to End of the available data, exclusive. The last chunk ends there.
+     * @return End of the chunk, exclusive.
+     */
+    int cut(byte[] data, int from, int to){
+        int length = to - from;
+        if (length <= minSize){
+            return to;
+        }
+        if (length > maxSize){
+            length = maxSize;
+        }
+        int normal = Math.min(avgSize, length);
+        long fp = 0;
+        int i = minSize;
+        for (; i<normal; i++){
+            fp = (fp << 1) + gear[data[from + i] & 0xff];
+            if ((fp & maskSmall) == 0){
+                return from + i + 1;
+            }
+        }
+        for (; i<length; i++){
+            fp = (fp << 1) + gear[data[from + i] & 0xff];
+            if ((fp & maskLarge) == 0){
+                return from + i + 1;
+            }
+        }
+        return from + length;
+    }
+}
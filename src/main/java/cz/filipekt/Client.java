@@ -3,9 +3,7 @@ package cz.filipekt;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -18,8 +16,10 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -91,6 +91,12 @@ public class Client {
             
             try{
                 Client cl = new Client(comp, port_num, br, locale, stdout, interactive);
+                cl.setUseHashFilter(ServerUtils.isSwitchPresent(args, "filter"));
+                cl.setBatchChecks(ServerUtils.isSwitchPresent(args, "batchcheck"));
+                String cacheFile = ServerUtils.getArgVal(args, "cache", true);
+                if ((cacheFile != null) && !cacheFile.isEmpty()){
+                    cl.setHashCache(Paths.get(cacheFile));
+                }
                 try{
                     cl.work();                
                 } catch (Exception ex){
@@ -147,6 +153,47 @@ public class Client {
      */
     private final boolean interactive;
     
+    /**
+     * If set, the server sends a Bloom filter of the weak hash values of its blocks, </br>
+     * instead of all the values, at the start of each upload.
+     */
+    private boolean useHashFilter = false;
+
+    void setUseHashFilter(boolean useHashFilter) {
+        this.useHashFilter = useHashFilter;
+    }
+    
+    /**
+     * If set, the strong hash checks of an upload are sent to the server in batches </br>
+     * before the upload starts, see prefetchChecks(..).
+     */
+    private boolean batchChecks = false;
+
+    void setBatchChecks(boolean batchChecks) {
+        this.batchChecks = batchChecks;
+    }
+    
+    /**
+     * Copy of the server's block index, kept up to date incrementally at the start of each upload. </br>
+     * Null if not used.
+     */
+    private ClientHashCache hashCache = null;
+    
+    /**
+     * The file hashCache is saved to when the connection ends, or null.
+     */
+    private Path hashCacheFile = null;
+    
+    /**
+     * Makes the client keep a copy of the server's block index in "file", so that only </br>
+     * its changes have to be downloaded by later uploads and later connections.
+     * @param file 
+     */
+    void setHashCache(Path file) {
+        this.hashCacheFile = file;
+        this.hashCache = ClientHashCache.load(file);
+    }
+    
     Client(String comp, int port, BufferedReader stdin, Locale locale, PrintStream stdout, boolean interactive) throws IOException{
         InetAddress addr = InetAddress.getByName(comp);
         socket = new Socket(addr,port);        
@@ -177,6 +224,13 @@ public class Client {
      * @throws IOException 
      */
     void end() throws IOException{
+        if (hashCache != null){
+            try {
+                hashCache.save(hashCacheFile);
+            } catch (IOException ex){
+                Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
         kryo_output.close();
         kryo_input.close();
         socket.close();
@@ -363,7 +417,7 @@ public class Client {
             }
         }
         if(verbose && (level==0)){
-            Map<String,DBlock> blockMap = getServerBlocks();
+            Map<StrongHash,DBlock> blockMap = getServerBlocks();
             out.println("-----------------");
             for (DBlock block : blockMap.values()){
                 out.println(block.getHexHash() + " : refcount=" + block.getRefCount());
@@ -470,77 +524,6 @@ public class Client {
         }
     }
        
-    /**
-     * Operates the data transmission during the "get" request.
-     * @param sourceFile Path in the server database to the requested file.
-     * @param versionNumber If not null, marks the version number of the requested version. If null, the latest version is used.
-     * @param zip If set, a zipped archive is requested instead of raw data.
-     * @return The contents of the recieved file.
-     * @throws IOException
-     * @throws ClassNotFoundException
-     * @throws WrongVersionNumber 
-     */
-    private int[] serveGetBin(List<String> sourceFile, Integer versionNumber, final boolean zip) 
-            throws IOException, ClassNotFoundException, WrongVersionNumber{       
-        DItem item = getDItemFromServer(sourceFile);
-        if (item == null){
-            stdout.println(messages.getString("sorry_the_file") + " " + messages.getString("doesnt_exist"));
-            return null;
-        }      
-        if (zip){
-            kryo.writeObject(kryo_output, Requests.GET_ZIP);
-        } else {
-            kryo.writeObject(kryo_output, Requests.GET_FILE);
-        }
-        kryo.writeObject(kryo_output, sourceFile.toArray(new String[0]));        
-        int verze;
-        if(versionNumber != null){
-            verze = versionNumber;
-        } else if (!item.isDir()) {
-            verze = ((DFile)item).getVersionCount() - 1;
-        } else {
-            verze = 0;
-        }
-        if((!item.isDir()) && (verze >= ((DFile)item).getVersionCount())){
-            throw new WrongVersionNumber();
-        }
-        kryo_output.writeInt(verze);
-        kryo_output.flush();        
-        boolean versionPresent = kryo_input.readBoolean();        
-        if (versionPresent){        
-            byte[] data;
-            if (!zip) {
-                data = kryo.readObject(kryo_input, byte[].class);
-                int c; 
-                int[] res = new int[data.length];
-                int i = 0;
-                for(byte b : data){
-                    c = ((int)b) + 128;
-                    res[i++] = c;
-                }        
-                return res;
-            } else {            
-                byte[] src = kryo.readObject(kryo_input, byte[].class);
-                int[] res;
-                try (ByteArrayInputStream is = new ByteArrayInputStream(src)){
-                    int c;
-                    List<Integer> list = new ArrayList<>();
-                    while ((c=is.read())!=-1){
-                        list.add(c);
-                    }                
-                    res = new int[list.size()];
-                    int i = 0;
-                    for (int val : list){
-                        res[i++] = val;
-                    }                
-                }
-                return res;
-            }
-        } else {
-            throw new WrongVersionNumber();
-        }        
-    }
-
     /**
      * Returns false if and only if the user is trying to download a directory into a regular file.
      * @param source
@@ -608,17 +591,78 @@ public class Client {
                 } 
             }
         }
-        int[] data = serveGetBin(sourceFile, versionNumber, zip);
-        if (data == null){            
+        return receiveStream(sourceFile, versionNumber, dest2, zip);
+    }    
+    
+    /**
+     * Downloads a version of the file "sourceFile", or a zip archive of it, chunk by chunk, <br/>
+     * see Requests.GET_FILE_STREAM. The chunks are written to a temporary file next to </br>
+     * "destination", which replaces "destination" once the whole data have been received.
+     * @param sourceFile A path on the server.
+     * @param versionNumber A version number of the version to download. If null, the latest version is used.
+     * @param destination The target file.
+     * @param zip If set, a zipped archive is requested instead of raw data.
+     * @return
+     * @throws IOException
+     * @throws WrongVersionNumber 
+     */
+    private boolean receiveStream(List<String> sourceFile, Integer versionNumber, Path destination, final boolean zip) 
+            throws IOException, WrongVersionNumber{
+        DItem item = getDItemFromServer(sourceFile);
+        if ((item == null) || (item.isDir() && !zip)){
+            stdout.println(messages.getString("sorry_the_file") + " " + messages.getString("doesnt_exist"));
             throw new FileNotFoundException();
         }
-        try (BufferedOutputStream bos = new BufferedOutputStream(Files.newOutputStream(dest2))){
-            for(int i : data){
-                bos.write(i);
+        int verze;
+        if(versionNumber != null){
+            verze = versionNumber;
+        } else if (!item.isDir()) {
+            verze = ((DFile)item).getVersionCount() - 1;
+        } else {
+            verze = 0;
+        }
+        if((!item.isDir()) && (verze >= ((DFile)item).getVersionCount())){
+            throw new WrongVersionNumber();
+        }
+        kryo.writeObject(kryo_output, zip ? Requests.GET_ZIP : Requests.GET_FILE_STREAM);
+        kryo.writeObject(kryo_output, sourceFile.toArray(new String[0]));
+        kryo_output.writeInt(verze);
+        kryo_output.flush();
+        if (!kryo_input.readBoolean()){
+            throw new WrongVersionNumber();
+        }
+        Path dir = destination.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, destination.getFileName().toString(), ".part");
+        try {
+            boolean complete = false;
+            try (OutputStream os = Files.newOutputStream(temp)){
+                byte[] chunk = new byte[ChunkedOutputStream.defaultChunkSize];
+                int length;
+                while ((length = kryo_input.readInt()) > 0){
+                    for (int remaining = length; remaining > 0; ){
+                        int count = Math.min(remaining, chunk.length);
+                        kryo_input.readBytes(chunk, 0, count);
+                        if (!zip){
+                            for (int i = 0; i<count; i++){
+                                chunk[i] ^= 0x80;
+                            }
+                        }
+                        os.write(chunk, 0, count);
+                        remaining -= count;
+                    }
+                }
+                complete = (length == 0);
+            }
+            if (!complete){
+                stdout.println("\"Get\" " + messages.getString("request_failed"));
+                return false;
             }
-        }           
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
         return true;
-    }    
+    }
     
     /**
      * Given the directory "src" on server and the path "dest" at the client, </br>
@@ -701,13 +745,13 @@ public class Client {
      * Downloads a map of all the block objects from the server.
      * @return 
      */
-    private Map<String,DBlock> getServerBlocks(){
+    private Map<StrongHash,DBlock> getServerBlocks(){
         kryo.writeObject(kryo_output, Requests.GET_SERVER_BLOCKS);
         kryo_output.flush();
-        Map<String,DBlock> res = new HashMap<>();
+        Map<StrongHash,DBlock> res = new HashMap<>();
         int count = kryo_input.readInt();
         for (int i = 0; i<count; i++){
-            String key = kryo_input.readString();
+            StrongHash key = StrongHash.read(kryo_input);
             DBlock val = kryo.readObject(kryo_input, DBlock.class, DBlock.getSerializer());
             res.put(key, val);
         }
@@ -799,51 +843,66 @@ public class Client {
             }
             return;
         }                                                
-        byte[] fileContents = Files.readAllBytes(file);        
+        UploadSource fileContents = UploadSource.open(file);        
         if (fileContents != null){
             kryo.writeObject(kryo_output, Requests.CHECK_CHANGES);
             kryo.writeObject(kryo_output, target.toArray(new String[0]));                
-            String contentHash = ServerUtils.computeStrongHash(fileContents);
+            String contentHash = fileContents.computeContentHash();
             kryo_output.writeString(contentHash);
             kryo_output.flush();
             boolean changed = kryo_input.readBoolean();
             if (changed){
                 kryo.writeObject(kryo_output, Requests.CREAT_VERS);
                 kryo_output.writeBoolean(checkSize);
-                kryo_output.writeLong((long)fileContents.length);
+                kryo_output.writeLong(fileContents.length());
                 kryo_output.flush();
                 int vel_bloku = kryo_input.readInt();
-                if (checkSize){
-                    boolean enough_space = kryo_input.readBoolean();
-                    if(enough_space){
-                        kryo.writeObject(kryo_output, target.toArray(new String[0]));
-                        kryo_output.writeString(contentHash);                                        
-                        windowLoop(fileContents, vel_bloku); 
-                        kryo_input.readBoolean(); //server-side finished
-                    } else {
-                        if (frame == null){
-                            stdout.println(messages.getString("not_enough_space"));
-                            throw new IOException();    
-                        } else {
-                            JOptionPane.showMessageDialog(frame, messages.getString("not_enough_space"), messages.getString("error"), JOptionPane.ERROR_MESSAGE);
-                            throw new IOException();
-                        }
-                    }
-                } else {
+                Chunker chunker = null;
+                if (kryo_input.readBoolean()){
+                    int minChunk = kryo_input.readInt();
+                    int maxChunk = kryo_input.readInt();
+                    chunker = new Chunker(minChunk, vel_bloku, maxChunk);
+                }
+                boolean enough_space = checkSize ? kryo_input.readBoolean() : true;
+                if(enough_space){
                     kryo.writeObject(kryo_output, target.toArray(new String[0]));
                     kryo_output.writeString(contentHash);                                        
-                    windowLoop(fileContents, vel_bloku); 
-                    kryo_input.readBoolean(); //server-side finished
+                    sendContents(fileContents, vel_bloku, chunker); 
+                    enough_space = kryo_input.readBoolean(); //server-side finished, false if it ran out of space
+                }
+                if (!enough_space){
+                    if (frame == null){
+                        stdout.println(messages.getString("not_enough_space"));
+                        throw new IOException();    
+                    } else {
+                        JOptionPane.showMessageDialog(frame, messages.getString("not_enough_space"), messages.getString("error"), JOptionPane.ERROR_MESSAGE);
+                        throw new IOException();
+                    }
                 }
             }
         }
     }
     
     /**
-     * Retrieves a set of weak hash values of all the blocks on the server.
+     * Retrieves the weak hash values of all the blocks on the server, either as a set, </br>
+     * as a Bloom filter if useHashFilter is set, or as the changes since the last upload </br>
+     * if hashCache is used.
      * @return 
      */
-    private Set<Long> getHashValues(){
+    private WeakHashIndex getHashValues(){
+        if (useHashFilter){
+            kryo_output.writeString("get_filter");
+            kryo_output.flush();
+            return kryo.readObject(kryo_input, BloomFilter.class, BloomFilter.getSerializer());
+        }
+        if (hashCache != null){
+            kryo_output.writeString("get_delta");
+            kryo_output.writeString(hashCache.getStoreId());
+            kryo_output.writeLong(hashCache.getEpoch());
+            kryo_output.flush();
+            hashCache.apply(kryo.readObject(kryo_input, BlockIndexDelta.class, BlockIndexDelta.getSerializer()));
+            return hashCache;
+        }
         kryo_output.writeString("get_vals");
         kryo_output.flush();
         Set<Long> res = new HashSet<>();
@@ -851,18 +910,27 @@ public class Client {
         for (int i = 0; i<count; i++){
             res.add(kryo_input.readLong());
         }
-        return res;
+        return new WeakHashSet(res);
     }
     
     /**
      * After creating new blocks, the server sends the new weak hash values </br>
-     * back to the client. This methods receives it and adds it to the specified set.
-     * @param values A set to which the new values will be added.
+     * back to the client. This methods receives it and adds it to the specified index.
+     * @param values An index to which the new values will be added.
      */
-    private void updateHashValues(Set<Long> values){
+    private void updateHashValues(WeakHashIndex values){
         int count = kryo_input.readInt();
         for (int i = 0; i<count; i++){
-            values.add(kryo_input.readLong());
+            long hash = kryo_input.readLong();
+            values.add(hash);
+            if (missingBlocks != null){
+                List<StrongHash> missing = missingBlocks.remove(hash);
+                if (missing != null){
+                    for (StrongHash hash2 : missing){
+                        checkedBlocks.remove(hash2);
+                    }
+                }
+            }
         }
     }
     
@@ -872,150 +940,363 @@ public class Client {
      */
     private final int unmatchedLimit = 1024*1024*8;
     
+    /**
+     * Sends the contents of a file to the server, split the same way the server splits new data.
+     * @param fileContents Contents of the file to be sent.
+     * @param blockSize Block size used by the server.
+     * @param chunker The server's content-defined chunking, or null if fixed-size blocks are used.
+     * @throws IOException 
+     */
+    private void sendContents(UploadSource fileContents, int blockSize, Chunker chunker) throws IOException {
+        if (chunker == null){
+            windowLoop(fileContents, blockSize);
+        } else {
+            chunkLoop(fileContents, chunker);
+        }
+    }
+    
+    /**
+     * Processes an input file split into content-defined chunks. The server is asked about </br>
+     * each chunk whose weak hash value it might know, the other chunks are sent as new data. </br>
+     * Unlike in windowLoop(..), the chunk boundaries do not depend on the blocks present </br>
+     * on the server, so no search byte by byte is needed.
+     * @param fileContents Contents of the file to be processed.
+     * @param chunker The server's chunking parameters.
+     * @throws IOException 
+     */
+    private void chunkLoop(UploadSource fileContents, Chunker chunker) throws IOException {
+        WeakHashIndex hashValues = getHashValues();
+        long length = fileContents.length();
+        byte[] buffer = new byte[Math.max(2 * chunker.getMaxSize(), 1024*1024)];
+        long bufferStart = 0;
+        int bufferLength = 0;
+        long pos = 0;
+        long unmatchedStart = 0;
+        while (pos < length){
+            int offset = (int) (pos - bufferStart);
+            if ((offset + chunker.getMaxSize() > bufferLength) && (bufferStart + bufferLength < length)){
+                System.arraycopy(buffer, offset, buffer, 0, bufferLength - offset);
+                bufferLength -= offset;
+                bufferStart = pos;
+                offset = 0;
+                int count = (int) Math.min(buffer.length - bufferLength, length - bufferStart - bufferLength);
+                fileContents.shiftedCopy(bufferStart + bufferLength, buffer, bufferLength, count);
+                bufferLength += count;
+            }
+            int chunkLength = chunker.cut(buffer, offset, bufferLength) - offset;
+            long hash = RollingHash.computeHash(buffer, chunkLength, offset, offset + chunkLength);
+            if (hashValues.mightContain(hash)){
+                StrongHash hash2 = StrongHash.compute(buffer, chunkLength, offset, offset + chunkLength);
+                if (blockExists(hash2)){
+                    if (pos > unmatchedStart){
+                        sendRawData(fileContents, unmatchedStart, pos, hashValues);
+                    }
+                    kryo_output.writeString("hash");
+                    kryo_output.writeLong(hash);
+                    hash2.write(kryo_output);
+                    kryo_output.flush();
+                    unmatchedStart = pos + chunkLength;
+                }
+            }
+            pos += chunkLength;
+            if (pos - unmatchedStart >= unmatchedLimit){
+                sendRawData(fileContents, unmatchedStart, pos, hashValues);
+                unmatchedStart = pos;
+            }
+        }
+        if (length > unmatchedStart){
+            sendRawData(fileContents, unmatchedStart, length, hashValues);
+        }
+        kryo_output.writeString("end");
+        kryo_output.flush();
+    }
+    
+    /**
+     * The rolling hashes reused by all the uploads over this connection, by their counter size.
+     */
+    private final Map<Integer,RollingHash> rollingHashes = new HashMap<>();
+    
+    /**
+     * Returns the reusable rolling hashes for the given counter sizes, reset to their initial state.
+     * @param sizes Sizes of the "counter".
+     * @return 
+     */
+    private RollingHash[] getRollingHashes(int[] sizes){
+        RollingHash[] res = new RollingHash[sizes.length];
+        for (int i = 0; i<sizes.length; i++){
+            RollingHash rh = rollingHashes.get(sizes[i]);
+            if (rh == null){
+                rh = new RollingHash(sizes[i]);
+                rollingHashes.put(sizes[i], rh);
+            } else {
+                rh.reset();
+            }
+            res[i] = rh;
+        }
+        return res;
+    }
+    
+    /**
+     * At most this many block sizes are probed by windowLoop(..).
+     */
+    private static final int maxProbedSizes = 4;
+    
+    /**
+     * Asks the server about the sizes of the blocks it holds, so that blocks stored with </br>
+     * a different block size than the current one can be found, too.
+     * @param blockSize The block size used for the current file, always probed.
+     * @return The sizes to probe, largest first.
+     */
+    private int[] getProbedSizes(int blockSize){
+        kryo_output.writeString("get_sizes");
+        kryo_output.flush();
+        Set<Integer> sizes = new HashSet<>();
+        sizes.add(blockSize);
+        int count = kryo_input.readInt();
+        for (int i = 0; i<count; i++){
+            int size = kryo_input.readInt();
+            if ((sizes.size() < maxProbedSizes) && (size > 0)){
+                sizes.add(size);
+            }
+        }
+        List<Integer> sorted = new ArrayList<>(sizes);
+        Collections.sort(sorted, Collections.reverseOrder());
+        int[] res = new int[sorted.size()];
+        for (int i = 0; i<res.length; i++){
+            res[i] = sorted.get(i);
+        }
+        return res;
+    }
+    
     /**
      * Processes an input file with the "window" method. At every position of the window
      * it checks the database for the current block. Depending on whether the block is new 
-     * or already present, furher actions differ.
+     * or already present, furher actions differ. </br>
+     * A window is moved for each block size in use on the server, so blocks stored with </br>
+     * an older block size are found as well. The largest block found at a position wins. </br>
+     * The bytes not matching any known block always form a single range of "fileContents", 
+     * which is tracked by its start and sent by sendRawData(..). </br>
+     * Only the window and the unmatched range are ever copied, so large files are processed in constant heap.
      * @param fileContents Contents of the file to be processed.
      * @param blockSize Used block size.
      * @throws IOException 
      */
-    private void windowLoop(byte[] fileContents, int blockSize) throws IOException {      
-        Set<Long> hashValues = getHashValues();
-        try (ByteArrayInputStream fin = new ByteArrayInputStream(fileContents)){
-            RollingHash rh = new RollingHash(blockSize);
-            for(int i = 0; i<blockSize-1; i++){        
-                int c = fin.read();                    
-                if (c==-1) {
-                    break;
-                } else {
-                    byte b = (byte) (c-128);
-                    rh.add(b);
-                }                    
-            }
-            List<Byte> not_matched = new ArrayList<>();
-            int c;
-            boolean add_from_rh = true;
-            boolean beginning = true;
-            while ((c=fin.read())!=-1){
-                if (not_matched.size() > unmatchedLimit){
-                    kryo_output.writeString("raw_data");
-                    byte[] res = new byte[not_matched.size()];
-                    int i = 0;
-                    for (Byte bb : not_matched){
-                        res[i++] = bb;
-                    }                                                
-                    kryo.writeObject(kryo_output, res);
-                    kryo_output.flush();
-                    not_matched.clear();
-                    updateHashValues(hashValues);
+    private void windowLoop(UploadSource fileContents, int blockSize) throws IOException {      
+        WeakHashIndex hashValues = getHashValues();
+        int[] sizes = getProbedSizes(blockSize);
+        if (batchChecks){
+            prefetchChecks(fileContents, sizes, hashValues);
+        }
+        try {
+            long length = fileContents.length();
+            RollingHash[] windows = getRollingHashes(sizes);
+            int maxSize = sizes[0];
+            long pos = 0;
+            long unmatchedStart = 0;
+            while (pos < length){
+                if (pos - maxSize - unmatchedStart > unmatchedLimit){
+                    sendRawData(fileContents, unmatchedStart, pos - maxSize, hashValues);
+                    unmatchedStart = pos - maxSize;
                 }
                 
-                byte b = (byte) (c-128);
-                byte old = rh.add(b);
-                if(!beginning) {
-                    not_matched.add(old);
+                byte b = (byte) (fileContents.get(pos) ^ 0x80);
+                for (RollingHash rh : windows){
+                    rh.add(b);
                 }
-                beginning = false;
+                pos++;
                 
-//                Hash collisions must be taken care of.
-                long hash = rh.getHash();
-                String hexHash2 = null;
-                boolean is_in_db = hashValues.contains(hash);
-                if(is_in_db){                    
-                    hexHash2 = rh.getHexHash2();
-                    if (!blockExists(hexHash2)){
-                        is_in_db = false;
-                    }                    
-                }
-
-                if(is_in_db){
-//                    Send the previous bytes.
-                    if(!not_matched.isEmpty()){                        
-                        kryo_output.writeString("raw_data");
-                        byte[] res = new byte[not_matched.size()];
-                        int i = 0;
-                        for (Byte bb : not_matched){
-                            res[i++] = bb;
-                        }                                                
-                        kryo.writeObject(kryo_output, res);
-                        kryo_output.flush();
-                        not_matched.clear();
-                        updateHashValues(hashValues);
+                for (RollingHash rh : windows){
+//                    Only windows right after the last sent block are considered.
+                    long windowStart = pos - rh.getCounterLength();
+                    if (windowStart < unmatchedStart){
+                        continue;
                     }
-                  
-//                    Send the hash values of the block.
-                    kryo_output.writeString("hash");
-                    kryo_output.writeLong(hash);
-                    kryo_output.writeString(hexHash2);
-                    kryo_output.flush();
+                    
+//                    Hash collisions must be taken care of.
+                    Long hash = findWeakHash(rh, hashValues);
+                    if (hash != null){                    
+                        StrongHash hash2 = rh.getHash2();
+                        if (blockExists(hash2)){
+//                            Send the previous bytes.
+                            if (windowStart > unmatchedStart){
+                                sendRawData(fileContents, unmatchedStart, windowStart, hashValues);
+                            }
+
+//                            Send the hash values of the block.
+                            kryo_output.writeString("hash");
+                            kryo_output.writeLong(hash);
+                            hash2.write(kryo_output);
+                            kryo_output.flush();
 
-//                    And move on.
-                    rh.resetValid();
-                    add_from_rh = false;
-                    for (int i = 0; i < (rh.getCounterLength() - 1); i++){
-                        int lc = fin.read();
-                        if (lc==-1){                                
+//                            And move on.
+                            unmatchedStart = pos;
                             break;
                         }
-                        byte lb = (byte) (lc-128);
-                        rh.add(lb);
-                        add_from_rh = true;        
                     }
-                    beginning = true;
-
-                } else {                    
-                    add_from_rh = true;
-                } 
-
+                }
             }
-                        
-//            Deal with data in "not_matched".
+            
+//            All the bytes that are left must be now sent.
 //            Covers the case when the input file is smaller than the block size.
-            if (add_from_rh){
-                for (byte b : rh.getValidData()){
-                    not_matched.add(b);
+            int tailLength = (int) (length - unmatchedStart);
+            if (tailLength > 0){
+                boolean finished = false;
+                if (tailLength < blockSize){
+                    byte[] tail = fileContents.shiftedCopy(unmatchedStart, length);
+                    long hash = RollingHash.computeHash(tail, tailLength, 0, tailLength);
+                    if (hashValues.mightContain(hash)){
+                        StrongHash hash2 = StrongHash.compute(tail);
+                        if (blockExists(hash2)){
+                            kryo_output.writeString("hash");
+                            kryo_output.writeLong(hash);
+                            hash2.write(kryo_output);
+                            kryo_output.flush();
+                            finished = true;
+                        }
+                    }
+                }
+                if (!finished){
+                    sendRawData(fileContents, unmatchedStart, length, hashValues);
                 }
             }
-
-//          All the bytes that are left must be now sent.
-            boolean finished = false;
-            if(not_matched.size() < blockSize){
-                long hash = RollingHash.computeHash(not_matched, not_matched.size());
-                String hexHash2 = ServerUtils.computeStrongHash(not_matched, not_matched.size());
-                if ((hashValues.contains(hash)) && (blockExists(hexHash2))){
-                    kryo_output.writeString("hash");
-                    kryo_output.writeLong(hash);
-                    kryo_output.writeString(hexHash2);
-                    kryo_output.flush();
-                    finished = true;
-                }                 
+            kryo_output.writeString("end");
+            kryo_output.flush();
+        } finally {
+            checkedBlocks = null;
+            missingBlocks = null;
+        }
+    }
+    
+    /**
+     * Looks up the current window of "rh" in "hashValues". Both the values the blocks may have </br>
+     * been stored with are tried, see RollingHash.getHash().
+     * @param rh
+     * @param hashValues
+     * @return The weak hash value under which a block might be present, or null.
+     */
+    private static Long findWeakHash(RollingHash rh, WeakHashIndex hashValues){
+        long hash = rh.getHash();
+        if (hashValues.mightContain(hash)){
+            return hash;
+        }
+        long alternative = rh.getAlternativeHash();
+        if ((alternative != hash) && hashValues.mightContain(alternative)){
+            return alternative;
+        }
+        return null;
+    }
+    
+    /**
+     * Sends the bytes of "fileContents" on positions "from" - "to" (exclusive) to the server </br>
+     * as new data, and receives the weak hash values of the blocks created from them.
+     * @param fileContents Contents of the file being processed.
+     * @param from
+     * @param to
+     * @param hashValues An index to which the new weak hash values will be added.
+     */
+    private void sendRawData(UploadSource fileContents, long from, long to, WeakHashIndex hashValues){
+        kryo_output.writeString("raw_data");
+        kryo.writeObject(kryo_output, fileContents.shiftedCopy(from, to));
+        kryo_output.flush();
+        updateHashValues(hashValues);
+    }
+    
+    /**
+     * Answers of the server to the "check_batch" messages sent by prefetchChecks(..) for the current </br>
+     * upload, keyed by the strong hash values. Null if the checks are not prefetched.
+     */
+    private Map<StrongHash,Boolean> checkedBlocks = null;
+    
+    /**
+     * Strong hash values of the blocks reported as missing in checkedBlocks, keyed by their weak </br>
+     * hash values. Used to forget the answer once a block with the same weak hash value is created.
+     */
+    private Map<Long,List<StrongHash>> missingBlocks = null;
+    
+    /**
+     * Maximal number of strong hash values in a single "check_batch" message.
+     */
+    private static final int checkBatchSize = 1024;
+    
+    /**
+     * Maximal number of "check_batch" messages sent before reading the answer to the first one. </br>
+     * Keeps the unread answers well below the socket buffer size.
+     */
+    private static final int maxBatchesInFlight = 16;
+    
+    /**
+     * Finds all the positions in the file where windowLoop(..) is going to ask the server about </br>
+     * a block, i.e. where the weak hash value is in "hashValues", and asks about all of them </br>
+     * at once in a few pipelined "check_batch" messages. The answers are saved in checkedBlocks.
+     * @param fileContents Contents of the file to be processed.
+     * @param sizes The probed block sizes.
+     * @param hashValues The weak hash values of the blocks on the server.
+     */
+    private void prefetchChecks(UploadSource fileContents, int[] sizes, WeakHashIndex hashValues){
+        Map<StrongHash,Long> candidates = new HashMap<>();
+        RollingHash[] windows = getRollingHashes(sizes);
+        for (long i = 0; i<fileContents.length(); i++){
+            byte b = (byte) (fileContents.get(i) ^ 0x80);
+            for (RollingHash rh : windows){
+                rh.add(b);
+                if (i >= rh.getCounterLength() - 1){
+                    Long hash = findWeakHash(rh, hashValues);
+                    if (hash != null){
+                        candidates.put(rh.getHash2(), hash);
+                    }
+                }
             }
-            if (!finished){
-                kryo_output.writeString("raw_data");
-                byte[] res = new byte[not_matched.size()];
-                int i = 0;
-                for (Byte b : not_matched){
-                    res[i++] = b;
+        }
+        List<StrongHash> hashes = new ArrayList<>(candidates.keySet());
+        checkedBlocks = new HashMap<>();
+        missingBlocks = new HashMap<>();
+        int sent = 0;
+        int received = 0;
+        while (received < hashes.size()){
+            while ((sent < hashes.size()) && (sent - received < checkBatchSize * maxBatchesInFlight)){
+                int count = Math.min(checkBatchSize, hashes.size() - sent);
+                kryo_output.writeString("check_batch");
+                kryo_output.writeInt(count);
+                for (int i = 0; i<count; i++){
+                    hashes.get(sent + i).write(kryo_output);
                 }
-                kryo.writeObject(kryo_output, res);
-                kryo_output.flush();
-                updateHashValues(hashValues);
+                sent += count;
             }
-            kryo_output.writeString("end");
             kryo_output.flush();
+            int count = Math.min(checkBatchSize, hashes.size() - received);
+            for (int i = 0; i<count; i++){
+                StrongHash hash2 = hashes.get(received + i);
+                boolean exists = kryo_input.readBoolean();
+                checkedBlocks.put(hash2, exists);
+                if (!exists){
+                    Long hash = candidates.get(hash2);
+                    List<StrongHash> missing = missingBlocks.get(hash);
+                    if (missing == null){
+                        missing = new ArrayList<>();
+                        missingBlocks.put(hash, missing);
+                    }
+                    missing.add(hash2);
+                }
+            }
+            received += count;
         }
     }
     
     /**
      * Contacts the server and checks whether a block with the specified strong </br>
-     * hash is present.
+     * hash is present, unless the answer is already known from prefetchChecks(..).
      * @param strongHash
      * @return 
      */
-    private boolean blockExists(String strongHash){
+    private boolean blockExists(StrongHash strongHash){
+        if (checkedBlocks != null){
+            Boolean known = checkedBlocks.get(strongHash);
+            if (known != null){
+                return known;
+            }
+        }
         kryo_output.writeString("check");
-        kryo_output.writeString(strongHash);
+        strongHash.write(kryo_output);
         kryo_output.flush();
         return kryo_input.readBoolean();
     }
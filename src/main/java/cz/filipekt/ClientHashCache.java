@@ -0,0 +1,176 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The client's copy of the server's block index, i.e. of the weak and strong hash values </br>
+ * of all the blocks. It remembers the epoch of the index it reflects, so that only the </br>
+ * changes since then have to be downloaded ("get_delta"). It may be saved to a file </br>
+ * and reused by later connections to the same server.
+ * @author Tomas Filipek
+ */
+class ClientHashCache implements WeakHashIndex {
+
+    /**
+     * Identifier of the server's block index, null if nothing has been downloaded yet.
+     */
+    private String storeId = null;
+
+    String getStoreId() {
+        return storeId;
+    }
+
+    /**
+     * The epoch of the server's block index this cache reflects.
+     */
+    private long epoch = 0;
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Maps the strong hash values of the blocks to their weak hash values.
+     */
+    private final Map<StrongHash,Long> blocks = new HashMap<>();
+
+    /**
+     * Number of blocks in "blocks" with the given weak hash value.
+     */
+    private final Map<Long,Integer> weakCounts = new HashMap<>();
+
+    /**
+     * Weak hash values of the blocks created during the current upload, whose strong <br/>
+     * hash values are not known. They are replaced by the next delta.
+     */
+    private final Set<Long> pending = new HashSet<>();
+
+    /**
+     * Whether the cache has changed since it was last saved or loaded.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Applies the changes received from the server.
+     * @param delta
+     */
+    void apply(BlockIndexDelta delta){
+        if (delta.isFull()){
+            blocks.clear();
+            weakCounts.clear();
+        }
+        pending.clear();
+        for (int i = 0; i<delta.getChangeCount(); i++){
+            if (delta.isAdded(i)){
+                addBlock(delta.getHash2(i), delta.getHash(i));
+            } else {
+                removeBlock(delta.getHash2(i));
+            }
+        }
+        dirty = dirty || delta.isFull() || (delta.getChangeCount() > 0) || (epoch != delta.getEpoch());
+        storeId = delta.getStoreId();
+        epoch = delta.getEpoch();
+    }
+
+    private void addBlock(StrongHash hash2, long hash){
+        Long old = blocks.put(hash2, hash);
+        if (old != null){
+            decrementWeak(old);
+        }
+        Integer count = weakCounts.get(hash);
+        weakCounts.put(hash, (count == null) ? 1 : count + 1);
+    }
+
+    private void removeBlock(StrongHash hash2){
+        Long old = blocks.remove(hash2);
+        if (old != null){
+            decrementWeak(old);
+        }
+    }
+
+    private void decrementWeak(long hash){
+        Integer count = weakCounts.get(hash);
+        if ((count == null) || (count <= 1)){
+            weakCounts.remove(hash);
+        } else {
+            weakCounts.put(hash, count - 1);
+        }
+    }
+
+    @Override
+    public boolean mightContain(long hash) {
+        return weakCounts.containsKey(hash) || pending.contains(hash);
+    }
+
+    @Override
+    public void add(long hash) {
+        pending.add(hash);
+    }
+
+    /**
+     * Loads a cache saved by save(..). If the file does not exist or can not be read, <br/>
+     * an empty cache is returned, so that the full block index is downloaded.
+     * @param file
+     * @return
+     */
+    static ClientHashCache load(Path file){
+        ClientHashCache res = new ClientHashCache();
+        if ((file == null) || Files.notExists(file)){
+            return res;
+        }
+        try (Input input = new Input(Files.newInputStream(file))){
+            String storeId = input.readString();
+            long epoch = input.readLong();
+            int count = input.readInt();
+            for (int i = 0; i<count; i++){
+                StrongHash hash2 = StrongHash.read(input);
+                long hash = input.readLong();
+                res.addBlock(hash2, hash);
+            }
+            res.storeId = storeId;
+            res.epoch = epoch;
+        } catch (IOException | KryoException ex){
+            return new ClientHashCache();
+        }
+        return res;
+    }
+
+    /**
+     * Saves the cache to "file", unless it has not changed since it was loaded.
+     * @param file
+     * @throws IOException
+     */
+    void save(Path file) throws IOException{
+        if ((file == null) || !dirty){
+            return;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (Output output = new Output(Files.newOutputStream(temp))){
+                output.writeString(storeId);
+                output.writeLong(epoch);
+                output.writeInt(blocks.size());
+                for (Map.Entry<StrongHash,Long> entry : blocks.entrySet()){
+                    entry.getKey().write(output);
+                    output.writeLong(entry.getValue());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of a single client connection on the server side, i.e. the socket and <br/>
+ * the Kryo objects used to communicate over it. It is kept for the whole connection, <br/>
+ * which may be served by different threads over time.
+ * @author Tomas Filipek
+ */
+class ClientSession implements AutoCloseable {
+
+    /**
+     * The connection to the client.
+     */
+    private final Socket socket;
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Base class of the Kryo framework for fast (de-)serialization of objects
+     */
+    private final Kryo kryo;
+
+    Kryo getKryo() {
+        return kryo;
+    }
+
+    /**
+     * Specific output stream for the use by Kryo framework
+     */
+    private final Output output;
+
+    Output getOutput() {
+        return output;
+    }
+
+    /**
+     * Specific input stream for the use by Kryo framework
+     */
+    private final Input input;
+
+    Input getInput() {
+        return input;
+    }
+
+    ClientSession(Socket socket) throws IOException {
+        this.socket = socket;
+        this.kryo = new Kryo(null);
+        this.kryo.setAutoReset(true);
+        this.output = new Output(socket.getOutputStream());
+        this.input = new Input(socket.getInputStream());
+    }
+
+    /**
+     * Returns the channel of the socket, or null if the socket has none.
+     * @return
+     */
+    SocketChannel getChannel(){
+        return socket.getChannel();
+    }
+
+    /**
+     * Tells whether some data sent by the client have already been read into the input buffer, <br/>
+     * so that the next request may be served without waiting for the socket.
+     * @return
+     */
+    boolean hasBufferedInput(){
+        return input.position() < input.limit();
+    }
+
+    /**
+     * Returns the address of the client, used in the messages shown to the user.
+     * @return
+     */
+    String getHostAddress(){
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            output.close();
+            input.close();
+        } finally {
+            socket.close();
+        }
+    }
+}
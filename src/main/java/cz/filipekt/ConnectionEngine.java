@@ -0,0 +1,31 @@
+package cz.filipekt;
+
+import java.io.IOException;
+
+/**
+ * Accepts client connections and decides which threads serve their requests. <br/>
+ * The requests themselves are served by a SessionHandler.
+ * @author Tomas Filipek
+ */
+interface ConnectionEngine {
+
+    /**
+     * Starts listening on the specified port.
+     * @param port
+     * @throws IOException
+     */
+    void bind(int port) throws IOException;
+
+    /**
+     * Accepts the connections and serves them by "handler", never returns normally.
+     * @param handler
+     * @throws IOException If the listening socket can not be used anymore.
+     */
+    void run(SessionHandler handler) throws IOException;
+
+    /**
+     * Returns the name of the engine, as used in the program arguments.
+     * @return
+     */
+    String getName();
+}
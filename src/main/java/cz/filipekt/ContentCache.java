@@ -0,0 +1,155 @@
+package cz.filipekt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently used data in memory, up to a given number of bytes. <br/>
+ * The entries to be evicted are chosen by an EvictionPolicy. Used for the contents of blocks, <br/>
+ * identified by their strong hash values, and of reconstructed scripted versions, <br/>
+ * both in the internal representation, and for the serialized scripts of versions. <br/>
+ * Counts the hits, misses and evictions, so that the size can be tuned.
+ * @author Tomas Filipek
+ * @param <K> Type of the keys identifying the cached data.
+ */
+class ContentCache<K> {
+
+    /**
+     * Maximal number of bytes of the cached data.
+     */
+    private final long capacity;
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of bytes of the cached data.
+     */
+    private long size = 0;
+
+    /**
+     * The cached data.
+     */
+    private final Map<K,byte[]> entries = new HashMap<>();
+
+    /**
+     * Chooses the entries to be evicted.
+     */
+    private final EvictionPolicy<K> policy;
+
+    EvictionPolicy<K> getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Number of the lookups which found the data.
+     */
+    private long hits = 0;
+
+    /**
+     * Number of the lookups which did not find the data.
+     */
+    private long misses = 0;
+
+    /**
+     * Number of the entries removed to make space for others.
+     */
+    private long evictions = 0;
+
+    ContentCache(long capacity, EvictionPolicy<K> policy) {
+        this.capacity = Math.max(capacity, 0);
+        this.policy = policy;
+    }
+
+    /**
+     * Creates a cache with the policy named "policyName" (see EvictionPolicy.getName()), <br/>
+     * or with SegmentedLruPolicy if there is no such policy.
+     * @param <K>
+     * @param capacity
+     * @param policyName
+     * @return
+     */
+    static <K> ContentCache<K> create(long capacity, String policyName){
+        EvictionPolicy<K> policy;
+        if (LruPolicy.name.equalsIgnoreCase(policyName)){
+            policy = new LruPolicy<>();
+        } else {
+            policy = new SegmentedLruPolicy<>(Math.max(capacity, 0));
+        }
+        return new ContentCache<>(capacity, policy);
+    }
+
+    /**
+     * Returns the data cached for "key", or null if there are none. <br/>
+     * The returned array must not be modified.
+     * @param key
+     * @return
+     */
+    synchronized byte[] get(K key){
+        byte[] res = entries.get(key);
+        if (res == null){
+            misses++;
+        } else {
+            hits++;
+            policy.accessed(key);
+        }
+        return res;
+    }
+
+    /**
+     * Caches a copy of "length" bytes of "data" starting at "offset" for "key", <br/>
+     * evicting the entries chosen by the policy if needed. <br/>
+     * Data larger than the whole cache are not cached.
+     * @param key
+     * @param data
+     * @param offset
+     * @param length
+     */
+    synchronized void put(K key, byte[] data, int offset, int length){
+        if ((length > capacity) || entries.containsKey(key)){
+            return;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        entries.put(key, copy);
+        size += length;
+        policy.added(key, length);
+        while (size > capacity){
+            K victim = policy.victim();
+            if (victim == null){
+                break;
+            }
+            remove(victim);
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes the data cached for "key", e.g. because they have been deleted.
+     * @param key
+     */
+    synchronized void remove(K key){
+        byte[] old = entries.remove(key);
+        if (old != null){
+            size -= old.length;
+            policy.removed(key);
+        }
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -4,7 +4,9 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.ObjectMap;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Representation of a block for the use by Database and others.
@@ -52,10 +54,14 @@ class DBlock {
     }
               
     /**
-     * Composes the name of the file used to save the block contents
+     * Composes the name of the file used to save the block contents, </br>
+     * i.e. of the pack for the blocks kept in packs.
      * @return 
      */
     String getName(){        
+        if (isPacked()){
+            return BlockStore.getPackName(BlockStore.getPack(location));
+        }
         return DBlock.getName(getHexHash(), col);
     }
     
@@ -81,21 +87,57 @@ class DBlock {
      * The position in the hash collision list (the list can have holes in it, however)
      */
     private final int col;    
+    
+    /**
+     * The location of the contents in the packs of BlockStore, or -1 for the blocks </br>
+     * saved in their own files, before the packs were introduced. </br>
+     * Changed only when the pack is compacted, while no one reads the block.
+     */
+    private volatile long location;
+
+    long getLocation() {
+        return location;
+    }
+
+    void setLocation(long location) {
+        this.location = location;
+    }
+    
+    /**
+     * Tells whether the contents are kept in a pack of BlockStore.
+     * @return 
+     */
+    boolean isPacked() {
+        return location >= 0;
+    }
            
     /**
      * The safe hash value for this block
      */
-    private final String hash2;
+    private final StrongHash hash2;
 
-    String getHash2() {
+    StrongHash getHash2() {
         return hash2;
     }
     
     /**
-     * The block size used (in bytes)
+     * The block size used (in bytes). For content-defined chunks, the average chunk size.
      */
     private final int size;      
     
+    int getSize() {
+        return size;
+    }
+    
+    /**
+     * Tells whether the block is as long as the block size, i.e. it is not the last </br>
+     * block of a file nor a content-defined chunk of a different length.
+     * @return 
+     */
+    boolean isFull() {
+        return used == size;
+    }
+    
     /**
      * How many bytes (from the beginning) is valid
      */
@@ -108,37 +150,67 @@ class DBlock {
     /**
      * How many times is this block referenced
      */
-    private int refCount;
+    private volatile int refCount;
 
     int getRefCount() {
         return refCount;
     }
+    
+    /**
+     * Used for atomic updates of refCount, versions of different files may share a block.
+     */
+    private static final AtomicIntegerFieldUpdater<DBlock> refCountUpdater = 
+            AtomicIntegerFieldUpdater.newUpdater(DBlock.class, "refCount");
 
     /**
      * Increments the block's reference count by 1.
      */
     void incrementRefCount(){
-        refCount++;
+        refCountUpdater.incrementAndGet(this);
+    }
+    
+    /**
+     * Sets the block's reference count to zero, before it is recomputed.
+     */
+    void resetRefCount(){
+        refCount = 0;
     }
     
     /**
      * Decrements the block's reference count by 1.
      */
     void decrementRefCount(){
-        if (refCount > 0){
-            refCount--;
-        }
+        int current;
+        do {
+            current = refCount;
+            if (current <= 0){
+                return;
+            }
+        } while (!refCountUpdater.compareAndSet(this, current, current - 1));
     }
 
-    DBlock(long hash, String hash2, int size, int used, int col, int refCount){
+    DBlock(long hash, StrongHash hash2, int size, int used, int col, long location, int refCount){
         this.hash = hash;
         this.hash2 = hash2;
         this.size = size;
         this.used = used;
         this.col = col;
+        this.location = location;
         this.refCount = refCount;
     }
     
+    /**
+     * Key of the Kryo context entry telling the serializer that the strong hash values </br>
+     * are stored in the older hexadecimal form.
+     */
+    static final String legacyHashesKey = "legacyHashes";
+    
+    /**
+     * Key of the Kryo context entry telling the serializer that the blocks have no location, </br>
+     * i.e. they were saved before the packs were introduced.
+     */
+    static final String unpackedKey = "unpacked";
+    
     static Serializer<DBlock> getSerializer(){
         return new DBlock.DBlockSerializer();
     }
@@ -152,7 +224,8 @@ class DBlock {
             output.writeInt(t.size);
             output.writeInt(t.used);
             output.writeLong(t.hash);
-            output.writeString(t.hash2);            
+            t.hash2.write(output);
+            output.writeLong(t.location);
         }
 
         @Override
@@ -162,8 +235,16 @@ class DBlock {
             int size = input.readInt();
             int used = input.readInt();
             long hash = input.readLong();
-            String hash2 = input.readString();
-            return new DBlock(hash, hash2, size, used, col, refCount);            
+            @SuppressWarnings("unchecked")
+            ObjectMap<Object,Object> context = kryo.getContext();
+            StrongHash hash2;
+            if (context.containsKey(legacyHashesKey)){
+                hash2 = StrongHash.fromLegacyHex(input.readString());
+            } else {
+                hash2 = StrongHash.read(input);
+            }
+            long location = context.containsKey(unpackedKey) ? -1 : input.readLong();
+            return new DBlock(hash, hash2, size, used, col, location, refCount);            
         }        
     }
 }
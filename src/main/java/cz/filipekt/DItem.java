@@ -28,6 +28,14 @@ interface DItem {
      * @return 
      */
     String getName();
+    
+    /**
+     * Returns an immutable copy of this item, for the use in database snapshots. <br/>
+     * The copy of a directory contains frozen copies of all the nested items, <br/>
+     * those of the unchanged subdirectories are shared with the previous snapshot.
+     * @return 
+     */
+    DItem freeze();
 }
 
 /**
@@ -50,6 +58,41 @@ class DDirectory implements DItem {
      * The directory contents. 
      */
     private Map<String,DItem> itemMap;
+    
+    /**
+     * The immutable copy of this directory in the latest snapshot, or null if the contents <br/>
+     * of this directory have been changed since. Reused by freeze(), so that publishing <br/>
+     * a change copies only the directories on the path to it.
+     */
+    private DDirectory frozen;
+    
+    /**
+     * Records "copy" as the immutable copy of this directory, built by Database.publish(..) <br/>
+     * from the copy in the previous snapshot.
+     * @param copy 
+     */
+    void setFrozen(DDirectory copy){
+        synchronized (lockObject){
+            copy.frozen = copy;
+            frozen = copy;
+        }
+    }
+    
+    /**
+     * Forgets the immutable copies of this directory and of all the directories in it, <br/>
+     * so that the next freeze() copies the whole subtree. Used when the whole filesystem <br/>
+     * is published, after changes which have not been published one by one.
+     */
+    void thaw(){
+        synchronized (lockObject){
+            frozen = null;
+            for (DItem item : itemMap.values()){
+                if (item.isDir()){
+                    ((DDirectory) item).thaw();
+                }
+            }
+        }
+    }
 
     /**
      * Returns the contents of this directory.
@@ -62,7 +105,19 @@ class DDirectory implements DItem {
     }
     
     /**
-     * Used for synchronization.
+     * Returns a copy of the current contents of this directory, <br/>
+     * safe to iterate while the directory is being modified.
+     * @return 
+     */
+    List<DItem> getItems(){
+        synchronized (lockObject){
+            return new ArrayList<>(itemMap.values());
+        }
+    }
+    
+    /**
+     * Used for synchronization. <br/>
+     * Only the monitors of the nested items may be acquired while holding it.
      */
     private final Object lockObject = new Object();
     
@@ -74,6 +129,7 @@ class DDirectory implements DItem {
         if (item != null){
             synchronized (lockObject){
                 itemMap.put(item.getName(), item);
+                frozen = null;
             }
         }
     }
@@ -88,6 +144,36 @@ class DDirectory implements DItem {
         this.itemMap = new HashMap<>();
     }
     
+    /**
+     * Creates a directory with the specified contents, which are not copied.
+     * @param name
+     * @param itemMap 
+     */
+    DDirectory(String name, Map<String,DItem> itemMap) {
+        this.name = name;
+        this.itemMap = itemMap;
+    }
+    
+    /**
+     * Returns the immutable copy of this directory. It is reused until the contents <br/>
+     * of this directory change, the copies of the subdirectories are reused likewise.
+     * @return 
+     */
+    @Override
+    public DDirectory freeze(){
+        synchronized (lockObject){
+            if (frozen == null){
+                Map<String,DItem> items = new HashMap<>();
+                for (Map.Entry<String,DItem> entry : itemMap.entrySet()){
+                    items.put(entry.getKey(), entry.getValue().freeze());
+                }
+                frozen = new DDirectory(name, Collections.unmodifiableMap(items));
+                frozen.frozen = frozen;
+            }
+            return frozen;
+        }
+    }
+    
     private DDirectory(){}
     
     static Serializer<DDirectory> getSerializer(){
@@ -98,18 +184,20 @@ class DDirectory implements DItem {
 
         @Override
         public void write(Kryo kryo, Output output, DDirectory t) {
-            output.writeString(t.name);
-            output.writeInt(t.itemMap.size());
-            for(Map.Entry<String,DItem> entry : t.itemMap.entrySet()){
-                output.writeString(entry.getKey()); 
-                boolean isDir = entry.getValue().isDir();
-                output.writeBoolean(isDir);                
-                if (isDir){
-                    kryo.writeObject(output, entry.getValue(), DDirectory.getSerializer());
-                } else {
-                    kryo.writeObject(output, entry.getValue(), DFile.getSerializer());
-                }
-            }            
+            synchronized (t.lockObject){
+                output.writeString(t.name);
+                output.writeInt(t.itemMap.size());
+                for(Map.Entry<String,DItem> entry : t.itemMap.entrySet()){
+                    output.writeString(entry.getKey()); 
+                    boolean isDir = entry.getValue().isDir();
+                    output.writeBoolean(isDir);                
+                    if (isDir){
+                        kryo.writeObject(output, entry.getValue(), DDirectory.getSerializer());
+                    } else {
+                        kryo.writeObject(output, entry.getValue(), DFile.getSerializer());
+                    }
+                }            
+            }
         }
 
         @Override
@@ -158,9 +246,41 @@ class DFile implements DItem, Comparable<DFile>{
     }
     
     /**
-     * The list of all present versions
+     * The list of all present versions, or null until it is decoded from "source".
+     */
+    private List<DVersion> versionList;
+    
+    /**
+     * The undecoded versions of a file loaded from a MappedIndex, or null once they <br/>
+     * have been decoded.
+     */
+    private MappedIndex.Versions source;
+    
+    /**
+     * Tells whether this is an immutable copy created by freeze().
+     */
+    private final boolean frozen;
+    
+    /**
+     * Returns versionList, decoding it from "source" first if needed. <br/>
+     * Must be called while holding lockObject.
+     * @return 
      */
-    private final List<DVersion> versionList;
+    private List<DVersion> versions(){
+        if (source != null){
+            List<DVersion> decoded = source.decode();
+            if (frozen){
+                List<DVersion> copy = new ArrayList<>(decoded.size());
+                for (DVersion version : decoded){
+                    copy.add(version.freeze());
+                }
+                decoded = Collections.unmodifiableList(copy);
+            }
+            versionList = decoded;
+            source = null;
+        }
+        return versionList;
+    }
     
     /**
      * Returns the list of all existing versions of this file.
@@ -168,7 +288,7 @@ class DFile implements DItem, Comparable<DFile>{
      */
     List<DVersion> getVersionList() {        
         synchronized (lockObject){
-            return Collections.unmodifiableList(versionList);
+            return Collections.unmodifiableList(versions());
         }
     }
     
@@ -179,7 +299,7 @@ class DFile implements DItem, Comparable<DFile>{
     void addVersion(DVersion version){
         if (version != null){
             synchronized (lockObject){
-                versionList.add(version);
+                versions().add(version);
             }
         }
     }
@@ -191,25 +311,48 @@ class DFile implements DItem, Comparable<DFile>{
     void removeVersion(DVersion version){
         if (version != null){
             synchronized (lockObject){
-                if (versionList.contains(version)){
+                if (versions().contains(version)){
                     versionList.remove(version);
                 }
             }
         }
     }
     
+    /**
+     * Replaces the version on position "index" by "version".
+     * @param index
+     * @param version 
+     */
+    void setVersion(int index, DVersion version){
+        synchronized (lockObject){
+            versions().set(index, version);
+        }
+    }
+    
+    /**
+     * Removes the version on position "index".
+     * @param index
+     * @return The removed version.
+     */
+    DVersion removeVersion(int index){
+        synchronized (lockObject){
+            return versions().remove(index);
+        }
+    }
+    
     /**
      * Returns the number of existing versions of this file.
      * @return 
      */
     int getVersionCount(){
         synchronized (lockObject){
-            return versionList.size();
+            return versions().size();
         }
     }
     
     /**
-     * Used for thread synchronization.
+     * Used for thread synchronization. <br/>
+     * Only the monitors of the versions may be acquired while holding it.
      */
     private final Object lockObject = new Object();
     
@@ -218,6 +361,14 @@ class DFile implements DItem, Comparable<DFile>{
      */
     private final List<String> path;    
     
+    /**
+     * Returns the complete path to this file in the server database.
+     * @return 
+     */
+    List<String> getPath(){
+        return Collections.unmodifiableList(path);
+    }
+    
     /**
      * "path" attribute concatenated into a single String.
      * Used mainly for fast comparing of DFile objects.
@@ -225,16 +376,62 @@ class DFile implements DItem, Comparable<DFile>{
     private final String path2;
 
     DFile(List<String> path){
-        this(path, new ArrayList<DVersion>());
+        this(path, new ArrayList<DVersion>(), null, false);
     }    
     
-    private DFile(List<String> path, List<DVersion> versions){
-        if ((path == null) || (path.isEmpty()) || (versions == null)){
+    /**
+     * Creates a file whose versions are decoded from "source" when they are first needed.
+     * @param path
+     * @param source 
+     */
+    DFile(List<String> path, MappedIndex.Versions source){
+        this(path, null, source, false);
+    }
+    
+    /**
+     * Makes this file decode its versions from the source of "saved", if they have not been <br/>
+     * decoded yet. "saved" has to be loaded from a newer index holding the same versions.
+     * @param saved
+     * @return False if the versions had been decoded already.
+     */
+    boolean rebase(DFile saved){
+        synchronized (lockObject){
+            if (source == null){
+                return false;
+            }
+            source = saved.source;
+            return true;
+        }
+    }
+    
+    /**
+     * Returns an immutable copy of this file. The versions which have not been decoded yet <br/>
+     * are decoded by the copy separately, when needed.
+     * @return 
+     */
+    @Override
+    public DFile freeze(){
+        synchronized (lockObject){
+            if (source != null){
+                return new DFile(path, null, source, true);
+            }
+            List<DVersion> versions = new ArrayList<>(versionList.size());
+            for (DVersion version : versionList){
+                versions.add(version.freeze());
+            }
+            return new DFile(path, Collections.unmodifiableList(versions), null, true);
+        }
+    }
+    
+    private DFile(List<String> path, List<DVersion> versions, MappedIndex.Versions source, boolean frozen){
+        if ((path == null) || (path.isEmpty()) || ((versions == null) && (source == null))){
             throw new NullPointerException("Invalid DFile parameters.");
         }
         this.path = path;
         this.name = path.get(path.size()-1);
         this.versionList = versions;
+        this.source = source;
+        this.frozen = frozen;
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i<path.size(); i++){
             sb.append(path.get(i));
@@ -273,6 +470,7 @@ class DFile implements DItem, Comparable<DFile>{
      */
     DVersion getLatestNonScript(){        
         synchronized (lockObject){
+            List<DVersion> versionList = versions();
             for(int i = versionList.size() - 1; i>=0; i--){
                 if (!versionList.get(i).isScriptForm()) {
                     return versionList.get(i);
@@ -288,7 +486,7 @@ class DFile implements DItem, Comparable<DFile>{
      */
     boolean blockVersionExists(){    
         synchronized (lockObject){
-            return (versionList != null) && !versionList.isEmpty();
+            return !versions().isEmpty();
         }
     }
     
@@ -298,6 +496,7 @@ class DFile implements DItem, Comparable<DFile>{
      */
     DVersion getLatestVersion(){   
         synchronized (lockObject){
+            List<DVersion> versionList = versions();
             if (versionList != null){
                 int versionCount = versionList.size();
                 if (versionCount > 0){
@@ -330,6 +529,22 @@ class DFile implements DItem, Comparable<DFile>{
         return new DFile.DFileSerializer();                
     }
 
+    /**
+     * Writes the versions of this file into a MappedIndex. Versions which have not been <br/>
+     * decoded are copied as they are.
+     * @param kryo
+     * @param output 
+     */
+    void writeVersions(Kryo kryo, Output output){
+        synchronized (lockObject){
+            if (source != null){
+                source.copyTo(output);
+            } else {
+                MappedIndex.writeVersions(kryo, output, versionList);
+            }
+        }
+    }
+
     @Override
     public int compareTo(DFile t) {
         return path2.compareTo(t.path2);
@@ -339,14 +554,13 @@ class DFile implements DItem, Comparable<DFile>{
 
         @Override
         public void write(Kryo kryo, Output output, DFile t) {               
-            if (t.versionList == null){
-                output.writeInt(0);
-            } else {
-                output.writeInt(t.versionList.size());
-                for (DVersion dv : t.versionList){
+            synchronized (t.lockObject){
+                List<DVersion> versionList = t.versions();
+                output.writeInt(versionList.size());
+                for (DVersion dv : versionList){
                     kryo.writeObject(output, dv, DVersion.getSerializer());
                 }
-            } 
+            }
             if (t.path == null){
                 output.writeInt(0);
             } else {
@@ -370,7 +584,7 @@ class DFile implements DItem, Comparable<DFile>{
             for (int i = 0; i<pathLength; i++){
                 path.add(input.readString());
             }
-            return new DFile(path, versions);                        
+            return new DFile(path, versions, null, false);                        
         }
         
     }
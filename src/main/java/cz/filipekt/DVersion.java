@@ -26,6 +26,7 @@ class DVersion {
     void setBlocks(List<DBlock> blocks) {
         synchronized (lockObject){
             this.blocks = blocks;
+            this.frozen = null;
         }
     }
 
@@ -54,7 +55,8 @@ class DVersion {
     }
     
     /**
-     * Used for synchronization.
+     * Used for synchronization. <br/>
+     * No other lock may be acquired while holding it.
      */
     private final Object lockObject = new Object();
     
@@ -74,20 +76,43 @@ class DVersion {
     private boolean scriptForm;
 
     void setScriptForm(boolean scriptForm) {
-        this.scriptForm = scriptForm;
+        synchronized (lockObject){
+            this.scriptForm = scriptForm;
+            this.frozen = null;
+        }
     }
     
     boolean isScriptForm() {
         return scriptForm;
     }    
     
+    /**
+     * Location of the script in the script packs of ScriptStore, or -1 if the version is in <br/>
+     * block form, or loaded from an index saved before the scripts were kept in packs.
+     */
+    private long scriptLocation = -1;
+
+    long getScriptLocation() {
+        synchronized (lockObject){
+            return scriptLocation;
+        }
+    }
+
+    void setScriptLocation(long scriptLocation) {
+        synchronized (lockObject){
+            this.scriptLocation = scriptLocation;
+            this.frozen = null;
+        }
+    }
+    
     /**
      * The name of the file this version belongs to.
      */
     private final String fileName;    
     
     /**
-     * The block size used.
+     * The block size used. For content-defined chunks, it is the average chunk size, </br>
+     * the actual lengths are given by DBlock.getUsed().
      */
     private final int blockSize;
     
@@ -108,6 +133,10 @@ class DVersion {
      * Size of the version data in bytes.
      */
     private final long size;   
+    
+    long getSize() {
+        return size;
+    }
 
     @Override
     public int hashCode() {
@@ -162,14 +191,37 @@ class DVersion {
         this.size = size;
     }        
     
+    /**
+     * The immutable copy of this version created by freeze(), or null if the version <br/>
+     * has been changed since.
+     */
+    private DVersion frozen;
+    
+    /**
+     * Returns an immutable copy of this version, for the use in database snapshots. <br/>
+     * The copy is reused until this version changes.
+     * @return 
+     */
+    DVersion freeze(){
+        synchronized (lockObject){
+            if (frozen == null){
+                List<DBlock> blockCopy = (blocks == null) ? null : Collections.unmodifiableList(new ArrayList<>(blocks));
+                frozen = new DVersion(blockCopy, addedDate, scriptForm, fileName, blockSize, contentHash, size);
+                frozen.scriptLocation = scriptLocation;
+                frozen.frozen = frozen;
+            }
+            return frozen;
+        }
+    }
+    
     /**
      * Estimates the total number of bytes this version occupies.
      * @return 
      */
-    int estimateSize(){
+    long estimateSize(){
         synchronized (lockObject){
             if (blocks != null){
-                int total = 0;
+                long total = 0;
                 for (DBlock block : blocks){
                     total += block.getUsed();
                 }
@@ -184,6 +236,12 @@ class DVersion {
         return new DVersion.DVersionSerializer();
     }
     
+    /**
+     * Written instead of the script form flag (a boolean) by a version in script form <br/>
+     * whose script is in a pack, its location follows.
+     */
+    private static final byte packedScript = 2;
+    
     private static class DVersionSerializer extends Serializer<DVersion>{
 
         @Override
@@ -193,15 +251,22 @@ class DVersion {
             output.writeInt(t.blockSize);
             output.writeString(t.contentHash);
             output.writeLong(t.size);
-            output.writeBoolean(t.scriptForm);
-            if (t.blocks == null){
-                output.writeInt(0);
-            } else {
-                output.writeInt(t.blocks.size());                
-                for (DBlock block : t.blocks){
-                    kryo.writeObject(output, block, DBlock.getSerializer());
+            synchronized (t.lockObject){
+                if (t.scriptForm && (t.scriptLocation != -1)){
+                    output.writeByte(packedScript);
+                    output.writeLong(t.scriptLocation);
+                } else {
+                    output.writeBoolean(t.scriptForm);
                 }
-            }            
+                if (t.blocks == null){
+                    output.writeInt(0);
+                } else {
+                    output.writeInt(t.blocks.size());                
+                    for (DBlock block : t.blocks){
+                        kryo.writeObject(output, block, DBlock.getSerializer());
+                    }
+                }            
+            }
         }
 
         @Override
@@ -212,10 +277,13 @@ class DVersion {
             int blockSize = input.readInt();
             String contentHash = input.readString();
             long size = input.readLong();
-            boolean scriptForm = input.readBoolean();
+            byte form = input.readByte();
+            boolean scriptForm = (form != 0);
+            long scriptLocation = (form == packedScript) ? input.readLong() : -1;
             List<DBlock> blocks = new ArrayList<>();
             int length = input.readInt();
             DVersion res = new DVersion(blocks, addedDate, scriptForm, fileName, blockSize, contentHash, size);
+            res.scriptLocation = scriptLocation;
             for (int i = 0; i<length; i++){
                 DBlock item = kryo.readObject(input, DBlock.class, DBlock.getSerializer());
                 res.blocks.add(item);
@@ -4,15 +4,23 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.ObjectMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** 
  *  Represents filesystem of the files which have been uploaded to the server. <br/>
@@ -28,9 +36,11 @@ class Database {
     private Map<String,DItem> fileMap;
     
     /**
-     * Contains the DBlock objects for all the present blocks.
+     * Contains the DBlock objects for all the present blocks. <br/>
+     * Concurrent, so that the lazily decoded versions (see MappedIndex) can look up <br/>
+     * their blocks without the lock of the database.
      */
-    private Map<String,DBlock> blockMap;
+    private Map<StrongHash,DBlock> blockMap;
     
     /**
      * Set of all primary hash values used in the present blocks.
@@ -42,39 +52,213 @@ class Database {
      * Set of all secondary hash values used in the present blocks.
      * Used mainly for determining whether a block is present.
      */
-    private Set<String> blockHashes2;
+    private Set<StrongHash> blockHashes2;
      
+    /**
+     * Number of full blocks (see DBlock.isFull()) of each block size. The client moves a window </br>
+     * of each of these sizes over the uploaded file, so that the blocks stay reachable </br>
+     * when the block size is changed.
+     */
+    private Map<Integer,Integer> blockSizes = new HashMap<>();
+    
+    /**
+     * Updates blockSizes after a block has been added or removed.
+     * @param block
+     * @param added 
+     */
+    private void countBlockSize(DBlock block, boolean added){
+        if (!block.isFull()){
+            return;
+        }
+        Integer count = blockSizes.get(block.getSize());
+        int newCount = ((count == null) ? 0 : count) + (added ? 1 : -1);
+        if (newCount <= 0){
+            blockSizes.remove(block.getSize());
+        } else {
+            blockSizes.put(block.getSize(), newCount);
+        }
+    }
+    
+    /**
+     * Returns the block sizes of the present full blocks, the most used first.
+     * @return 
+     */
+    List<Integer> getBlockSizes(){
+        synchronized (lockObject){
+            final Map<Integer,Integer> counts = new HashMap<>(blockSizes);
+            List<Integer> res = new ArrayList<>(counts.keySet());
+            Collections.sort(res, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return counts.get(o2).compareTo(counts.get(o1));
+                }
+            });
+            return res;
+        }
+    }
+    
     /**
      * Updates the blockHashes and blockHashes2 sets (databases of block hash values).
      * Source of the new information is the blockMap.
      */
     private void refreshBlockSet(){
         synchronized (lockObject){
+            weakHashFilter = null;
             blockHashes = new HashSet<>();
             blockHashes2 = new HashSet<>();
+            blockSizes = new HashMap<>();
             for (DBlock block : blockMap.values()){
                 if (block != null){
                     blockHashes.add(block.getHash());
                     blockHashes2.add(block.getHash2());            
+                    countBlockSize(block, true);
                 }
             }
         }
     }   
     
+    /**
+     * Returns a copy of blockHashes, so that it can be iterated while new blocks are added.
+     * @return 
+     */
     Set<Long> getBlockHashes(){
         synchronized (lockObject){
-            return Collections.unmodifiableSet(blockHashes);
+            return Collections.unmodifiableSet(new HashSet<>(blockHashes));
         }
     }
         
-    Map<String,DBlock> getBlockMap(){
+    /**
+     * Bloom filter over blockHashes, created on demand by getWeakHashFilter(..) and kept up to date <br/>
+     * when blocks are added. It is dropped when blocks are removed, as a Bloom filter can not forget values.
+     */
+    private BloomFilter weakHashFilter;
+    
+    /**
+     * The false positive probability weakHashFilter has been created with.
+     */
+    private double weakHashFilterFpp;
+    
+    /**
+     * Returns a copy of the Bloom filter over blockHashes.
+     * @param fpp Desired false positive probability.
+     * @return 
+     */
+    BloomFilter getWeakHashFilter(double fpp){
         synchronized (lockObject){
-            return Collections.unmodifiableMap(blockMap);
+            if ((weakHashFilter == null) || (weakHashFilterFpp != fpp) || weakHashFilter.isSaturated()){
+                int capacity = Math.max(2 * blockHashes.size(), minFilterCapacity);
+                weakHashFilter = new BloomFilter(blockHashes, capacity, fpp);
+                weakHashFilterFpp = fpp;
+            }
+            return weakHashFilter.copy();
         }
     }
     
     /**
-     * Lock object is used for synchronization.
+     * The smallest capacity of weakHashFilter, so that a nearly empty database does not <br/>
+     * need to recreate the filter after every few added blocks.
+     */
+    private static final int minFilterCapacity = 1024;
+        
+    /**
+     * Identifies this block index for the epochs in blockChanges. It is generated anew <br/>
+     * whenever the database is loaded, as the epochs are not persisted.
+     */
+    private final String storeId = UUID.randomUUID().toString();
+    
+    /**
+     * Number of block additions and removals since the database has been loaded.
+     */
+    private long blockEpoch = 0;
+    
+    /**
+     * The latest block additions and removals, oldest first, at most maxBlockChanges of them. <br/>
+     * The i-th change moved the block index from epoch (blockEpoch - blockChanges.size() + i) <br/>
+     * to the following one.
+     */
+    private final Deque<BlockChange> blockChanges = new ArrayDeque<>();
+    
+    /**
+     * The maximal size of blockChanges. Clients with an older epoch receive the full block index.
+     */
+    private static final int maxBlockChanges = 1 << 18;
+    
+    /**
+     * Records a change of the block index.
+     * @param added
+     * @param block 
+     */
+    private void recordBlockChange(boolean added, DBlock block){
+        blockEpoch++;
+        blockChanges.addLast(new BlockChange(added, block.getHash(), block.getHash2()));
+        if (blockChanges.size() > maxBlockChanges){
+            blockChanges.removeFirst();
+        }
+    }
+    
+    /**
+     * Returns the changes of the block index since the epoch "epoch" of the block index "storeId". <br/>
+     * If these changes are not known, the full block index is returned instead.
+     * @param storeId The block index the client's epoch belongs to, or null.
+     * @param epoch
+     * @return 
+     */
+    BlockIndexDelta getBlockDelta(String storeId, long epoch){
+        synchronized (lockObject){
+            long oldestKnown = blockEpoch - blockChanges.size();
+            if (this.storeId.equals(storeId) && (epoch >= oldestKnown) && (epoch <= blockEpoch)){
+                BlockIndexDelta res = new BlockIndexDelta(this.storeId, blockEpoch, false);
+                Iterator<BlockChange> it = blockChanges.descendingIterator();
+                List<BlockChange> changes = new ArrayList<>();
+                for (long e = blockEpoch; e > epoch; e--){
+                    changes.add(it.next());
+                }
+                for (int i = changes.size()-1; i>=0; i--){
+                    BlockChange change = changes.get(i);
+                    res.addChange(change.added, change.hash, change.hash2);
+                }
+                return res;
+            } else {
+                BlockIndexDelta res = new BlockIndexDelta(this.storeId, blockEpoch, true);
+                for (DBlock block : blockMap.values()){
+                    res.addChange(true, block.getHash(), block.getHash2());
+                }
+                return res;
+            }
+        }
+    }
+    
+    /**
+     * A single addition or removal of a block, as recorded in blockChanges.
+     */
+    private static class BlockChange {
+        
+        private final boolean added;
+        
+        private final long hash;
+        
+        private final StrongHash hash2;
+
+        BlockChange(boolean added, long hash, StrongHash hash2) {
+            this.added = added;
+            this.hash = hash;
+            this.hash2 = hash2;
+        }
+    }
+    
+    /**
+     * Returns a copy of blockMap, so that it can be iterated while new blocks are added.
+     * @return 
+     */
+    Map<StrongHash,DBlock> getBlockMap(){
+        synchronized (lockObject){
+            return Collections.unmodifiableMap(new HashMap<>(blockMap));
+        }
+    }
+    
+    /**
+     * Lock object is used for synchronization. <br/>
+     * Only the monitors of the DDirectory, DFile and DVersion objects may be acquired while holding it.
      */
     private final Object lockObject = new Object();
     
@@ -103,6 +287,85 @@ class Database {
         }
     }
     
+    /**
+     * The latest published snapshot of the filesystem.
+     */
+    private volatile DatabaseSnapshot snapshot;
+    
+    /**
+     * Returns the latest published snapshot of the filesystem. <br/>
+     * Used to serve read-only requests without locking.
+     * @return 
+     */
+    DatabaseSnapshot getSnapshot(){
+        return snapshot;
+    }
+    
+    /**
+     * Publishes a new snapshot, in which the item on "path" reflects its current state. <br/>
+     * Must be called after every change of the filesystem, i.e. of directories, files, <br/>
+     * or the versions of files.
+     * @param path Path to the changed item.
+     */
+    void publish(List<String> path){
+        if ((path == null) || path.isEmpty()){
+            return;
+        }
+        synchronized (lockObject){
+            Map<String,DItem> root = replaceItem(snapshot.getFileMap(), fileMap, path, 0);
+            snapshot = new DatabaseSnapshot(root, snapshot.getVersion() + 1);
+        }
+    }
+    
+    /**
+     * Publishes a new snapshot of the whole filesystem, copying all of it. Used once the database <br/>
+     * has been loaded or the journal replayed, as those changes are not published one by one.
+     */
+    private void publishAll(){
+        synchronized (lockObject){
+            Map<String,DItem> root = new HashMap<>();
+            for (Entry<String,DItem> entry : fileMap.entrySet()){
+                if (entry.getValue().isDir()){
+                    ((DDirectory) entry.getValue()).thaw();
+                }
+                root.put(entry.getKey(), entry.getValue().freeze());
+            }
+            long version = (snapshot == null) ? 0 : snapshot.getVersion() + 1;
+            snapshot = new DatabaseSnapshot(Collections.unmodifiableMap(root), version);
+        }
+    }
+    
+    /**
+     * Creates a copy of the frozen directory contents "frozen", in which the item on "path" <br/>
+     * is replaced by a frozen copy of the corresponding item from the live directory contents "live". <br/>
+     * Only the directories on the path are copied, the rest of the snapshot is shared. The copies <br/>
+     * are recorded in the live directories, so that DDirectory.freeze() shares them later.
+     * @param frozen Directory contents in the previous snapshot.
+     * @param live Current directory contents.
+     * @param path Path to the changed item.
+     * @param level Position in "path" corresponding to the directory.
+     * @return 
+     */
+    private static Map<String,DItem> replaceItem(Map<String,DItem> frozen, Map<String,DItem> live, 
+            List<String> path, int level){
+        String name = path.get(level);
+        DItem liveItem = live.get(name);
+        DItem frozenItem = frozen.get(name);
+        Map<String,DItem> res = new HashMap<>(frozen);
+        if (liveItem == null){
+            res.remove(name);
+        } else if ((level == path.size()-1) || !liveItem.isDir() || (frozenItem == null) || !frozenItem.isDir()){
+            res.put(name, liveItem.freeze());
+        } else {
+            Map<String,DItem> children = replaceItem(((DDirectory)frozenItem).getItemMap(), 
+                    ((DDirectory)liveItem).getItemMap(), path, level+1);
+            DDirectory copy = new DDirectory(name, children);
+            ((DDirectory)liveItem).setFrozen(copy);
+            res.put(name, copy);
+        }
+        return Collections.unmodifiableMap(res);
+    }
+    
     /**
      * Adds a new directory into the root directory.
      * @param dir The directory to be added.
@@ -124,23 +387,27 @@ class Database {
         synchronized (lockObject){
             Map<String,DItem> currentMap = fileMap;
             DDirectory currentDir = null;
-            for(String s : path){
-                if (currentDir == null){
-                    if (!currentMap.containsKey(s)){
+            List<String> created = null;
+            for(int i = 0; i<path.size(); i++){
+                String s = path.get(i);
+                if (!currentMap.containsKey(s)){
+                    if (currentDir == null){
                         addDirectory(new DDirectory(s));
-                    } else if (!currentMap.get(s).isDir()){
-                        return false;
-                    }
-                } else {
-                    if (!currentMap.containsKey(s)){
+                    } else {
                         currentDir.addItem(new DDirectory(s));
-                    } else if (!currentMap.get(s).isDir()){
-                        return false;
                     }
+                    if (created == null){
+                        created = path.subList(0, i+1);
+                    }
+                } else if (!currentMap.get(s).isDir()){
+                    return false;
                 }
                 currentDir = (DDirectory)currentMap.get(s);
                 currentMap = currentDir.getItemMap();                                                
             }
+            if (created != null){
+                publish(created);
+            }
             return true;
         }
     }
@@ -181,6 +448,7 @@ class Database {
                 }
             }
             regularFiles.add(new_file);
+            publish(path);
         }
     }
     
@@ -190,24 +458,33 @@ class Database {
      * @return 
      */
     DItem getItem(List<String> path){     
+        synchronized (lockObject){
+            return findItem(fileMap, path);
+        }
+    }
+    
+    /**
+     * Finds a "path" in the filesystem with the root directory contents "root".
+     * @param root The root directory contents.
+     * @param path The path to search for.
+     * @return 
+     */
+    static DItem findItem(Map<String,DItem> root, List<String> path){
         if ((path == null) || (path.isEmpty())){
             return null;
+        }
+        DItem current = root.get(path.get(0));
+        if (current == null){
+            return null;
         } else {
-            synchronized (lockObject){
-                DItem current = fileMap.get(path.get(0));
-                if (current == null){
+            for(int i = 1; i<path.size(); i++){
+                if ((current == null) || !(current instanceof DDirectory)){
                     return null;
                 } else {
-                    for(int i = 1; i<path.size(); i++){
-                        if ((current == null) || !(current instanceof DDirectory)){
-                            return null;
-                        } else {
-                            current = ((DDirectory)current).getItemMap().get(path.get(i));            
-                        }
-                    }
-                    return current;
+                    current = ((DDirectory)current).getItemMap().get(path.get(i));            
                 }
             }
+            return current;
         }
     }
     
@@ -236,6 +513,7 @@ class Database {
         synchronized (lockObject){
             DFile file = (DFile) getItem(path);
             file.addVersion(ver);
+            publish(path);
         }
     }    
     
@@ -254,7 +532,7 @@ class Database {
      * @param hash2 A strong hash value.
      * @return 
      */
-    DBlock findBlock(long hash, String hash2){
+    DBlock findBlock(long hash, StrongHash hash2){
         synchronized (lockObject){
             if (!blockExists(hash, hash2)){
                 return null;
@@ -271,7 +549,7 @@ class Database {
      * @param hash2 A strong hash value.
      * @return 
      */
-    boolean blockExists(long hash1, String hash2){
+    boolean blockExists(long hash1, StrongHash hash2){
         synchronized (lockObject){
             return blockHashes.contains(hash1) && blockHashes2.contains(hash2);
         }
@@ -282,34 +560,124 @@ class Database {
      * @param strongHash A strong hash value.
      * @return 
      */
-    boolean blockExists(String strongHash){
+    boolean blockExists(StrongHash strongHash){
         synchronized (lockObject){
             return blockHashes2.contains(strongHash);
         }
     }
 
     private Database(){}
-    Database(Map<String,DItem> fileMap, Map<String,DBlock> blockSet, Set<Long> hashes, Set<String> hashes2){
+    Database(Map<String,DItem> fileMap, Map<StrongHash,DBlock> blockSet, Set<Long> hashes, Set<StrongHash> hashes2){
         this.fileMap = fileMap;
-        this.blockMap = blockSet;
+        this.blockMap = new ConcurrentHashMap<>(blockSet);
         this.blockHashes  = hashes;
         this.blockHashes2 = hashes2;
+        for (DBlock block : blockSet.values()){
+            countBlockSize(block, true);
+        }
+        publishAll();
+    }
+    
+    /**
+     * Creates the database loaded from a MappedIndex. "blockMap" is used as it is, <br/>
+     * as the versions decoded later look up their blocks in it.
+     * @param fileMap
+     * @param blockMap
+     * @param liveScripts The numbers of the versions whose script is in each script pack.
+     * @param journalStart 
+     */
+    Database(Map<String,DItem> fileMap, ConcurrentHashMap<StrongHash,DBlock> blockMap, 
+            Map<Integer,Integer> liveScripts, long journalStart){
+        this.fileMap = fileMap;
+        this.blockMap = blockMap;
+        this.liveScripts.putAll(liveScripts);
+        this.journalStart = journalStart;
+        collectFiles(fileMap, regularFiles);
+        refreshBlockSet();
+        publishAll();
+    }
+    
+    /**
+     * Blocks used by the uploads in progress, with the number of uploads using each of them. <br/>
+     * The uploaded version does not refer to them yet, so collectBlocks() has to leave them in place.
+     */
+    private final Map<DBlock,Integer> pinnedBlocks = new IdentityHashMap<>();
+    
+    /**
+     * Pins "block" until unpinBlocks(..) is called for it, so that it is not collected even <br/>
+     * if no version refers to it. Used for the blocks being added, before they are in the database.
+     * @param block 
+     */
+    void pinBlock(DBlock block){
+        synchronized (lockObject){
+            Integer count = pinnedBlocks.get(block);
+            pinnedBlocks.put(block, (count == null) ? 1 : count + 1);
+        }
     }
     
     /**
-     * Iterates through all of the blocks and returns those with reference count equal to zero.
-     * These are also removed from the block database.
+     * Finds the block specified by its hash values and pins it, like pinBlock(DBlock).
+     * @param hash A weak hash value.
+     * @param hash2 A strong hash value.
+     * @return The block, or null if there is no such block.
+     */
+    DBlock pinBlock(long hash, StrongHash hash2){
+        synchronized (lockObject){
+            DBlock block = findBlock(hash, hash2);
+            if (block != null){
+                pinBlock(block);
+            }
+            return block;
+        }
+    }
+    
+    /**
+     * Finds the block with the strong hash value "hash2" and pins it, like pinBlock(DBlock).
+     * @param hash2
+     * @return The block, or null if there is no such block.
+     */
+    DBlock pinBlock(StrongHash hash2){
+        synchronized (lockObject){
+            DBlock block = blockMap.get(hash2);
+            if (block != null){
+                pinBlock(block);
+            }
+            return block;
+        }
+    }
+    
+    /**
+     * Releases the pins of "blocks", taken by pinBlock(..).
+     * @param blocks 
+     */
+    void unpinBlocks(Collection<DBlock> blocks){
+        synchronized (lockObject){
+            for (DBlock block : blocks){
+                Integer count = pinnedBlocks.get(block);
+                if ((count == null) || (count == 1)){
+                    pinnedBlocks.remove(block);
+                } else {
+                    pinnedBlocks.put(block, count - 1);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Iterates through all of the blocks and returns those with reference count equal to zero, <br/>
+     * except for the pinned ones. These are also removed from the block database.
      * @return 
      */
     Collection<DBlock> collectBlocks(){
         synchronized (lockObject){
             Collection<DBlock> res = new HashSet<>();       
-            Iterator<Entry<String,DBlock>> it = blockMap.entrySet().iterator();
+            Iterator<Entry<StrongHash,DBlock>> it = blockMap.entrySet().iterator();
             while (it.hasNext()){
                 DBlock block = it.next().getValue();
-                if ((block == null) || (block.getRefCount() == 0)){
+                if ((block == null) || ((block.getRefCount() == 0) && !pinnedBlocks.containsKey(block))){
                     if (block != null){
                         res.add(block);
+                        recordBlockChange(false, block);
                     }
                     it.remove();
                 }
@@ -319,6 +687,256 @@ class Database {
         }
     }
     
+    /**
+     * Removes the block with the strong hash value "hash2", when replaying the journal. <br/>
+     * The weak hash values are updated by finishReplay(), which has to be called afterwards.
+     * @param hash2 
+     */
+    void removeBlock(StrongHash hash2){
+        synchronized (lockObject){
+            DBlock block = blockMap.remove(hash2);
+            if (block != null){
+                blockHashes2.remove(hash2);
+                countBlockSize(block, false);
+                recordBlockChange(false, block);
+            }
+        }
+    }
+    
+    /**
+     * Sets the location of the block with the strong hash value "hash2", which has been moved <br/>
+     * to another pack, when replaying the journal.
+     * @param hash2
+     * @param location 
+     */
+    void moveBlock(StrongHash hash2, long location){
+        synchronized (lockObject){
+            DBlock block = blockMap.get(hash2);
+            if (block != null){
+                block.setLocation(location);
+            }
+        }
+    }
+    
+    /**
+     * Restores the state derived from the files and the blocks, once a database in one </br>
+     * of the formats read by getSerializer() has been loaded. The versions are linked to </br>
+     * the DBlocks in blockMap instead of their own copies, the reference counts are </br>
+     * recomputed from the versions in block form, and regularFiles is rebuilt from fileMap, </br>
+     * so that it holds the same DFile objects.
+     */
+    private void relink(){
+        synchronized (lockObject){
+            regularFiles = new HashSet<>();
+            collectFiles(fileMap, regularFiles);
+            for (DBlock block : blockMap.values()){
+                block.resetRefCount();
+            }
+            liveScripts.clear();
+            for (DFile file : regularFiles){
+                for (DVersion version : file.getVersionList()){
+                    link(version);
+                }
+            }
+            refreshBlockSet();
+            publishAll();
+        }
+    }
+    
+    /**
+     * Number of the versions whose script is in each script pack, by the pack number. <br/>
+     * Kept up to date only while the database is loaded and the journal is replayed, <br/>
+     * ScriptStore keeps its own counts afterwards.
+     */
+    private final Map<Integer,Integer> liveScripts = new HashMap<>();
+    
+    /**
+     * Returns a copy of the numbers of the versions whose script is in each script pack.
+     * @return 
+     */
+    Map<Integer,Integer> getLiveScripts(){
+        synchronized (lockObject){
+            return new HashMap<>(liveScripts);
+        }
+    }
+    
+    /**
+     * Counts the scripts in use in each pack again, after the scripts saved by older versions <br/>
+     * of the server have been moved into the packs (see ScriptStore.put(..)).
+     */
+    void countScripts(){
+        synchronized (lockObject){
+            liveScripts.clear();
+            for (DFile file : regularFiles){
+                for (DVersion version : file.getVersionList()){
+                    countScript(version, 1);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds "delta" to the number of the scripts in use in the pack of the script of "version", <br/>
+     * if it is in script form and its script is in a pack. Must be called while holding lockObject.
+     * @param version
+     * @param delta 
+     */
+    private void countScript(DVersion version, int delta){
+        long location = version.getScriptLocation();
+        if (!version.isScriptForm() || (location == -1)){
+            return;
+        }
+        int pack = BlockStore.getPack(location);
+        Integer count = liveScripts.get(pack);
+        int res = ((count == null) ? 0 : count) + delta;
+        if (res > 0){
+            liveScripts.put(pack, res);
+        } else {
+            liveScripts.remove(pack);
+        }
+    }
+    
+    /**
+     * Links the blocks of "version" to the DBlocks in blockMap and, if the version is in block form, </br>
+     * counts its references to them. A version in script form is counted in liveScripts. <br/>
+     * Must be called while holding lockObject.
+     * @param version 
+     */
+    private void link(DVersion version){
+        countScript(version, 1);
+        List<DBlock> blocks = version.getBlocks();
+        if (blocks == null){
+            return;
+        }
+        List<DBlock> linked = new ArrayList<>(blocks.size());
+        for (DBlock block : blocks){
+            DBlock canonical = blockMap.get(block.getHash2());
+            if ((canonical == null) && !version.isScriptForm()){
+                block.resetRefCount();
+                blockMap.put(block.getHash2(), block);
+                canonical = block;
+            }
+            if (canonical == null){
+                linked.add(block);
+            } else {
+                linked.add(canonical);
+                if (!version.isScriptForm()){
+                    canonical.incrementRefCount();
+                }
+            }
+        }
+        version.setBlocks(linked);
+    }
+    
+    /**
+     * Links "version", read from the journal, to the blocks of the database, before it is added </br>
+     * to its file. The reference counts of its blocks are increased if it is in block form.
+     * @param version 
+     */
+    void linkVersion(DVersion version){
+        synchronized (lockObject){
+            link(version);
+        }
+    }
+    
+    /**
+     * Decreases the reference counts of the blocks of "version", removed from its file when </br>
+     * replaying the journal, if it is in block form. A version in script form is no longer <br/>
+     * counted in liveScripts.
+     * @param version 
+     */
+    void unlinkVersion(DVersion version){
+        synchronized (lockObject){
+            countScript(version, -1);
+        }
+        if (version.isScriptForm() || (version.getBlocks() == null)){
+            return;
+        }
+        for (DBlock block : version.getBlocks()){
+            block.decrementRefCount();
+        }
+    }
+    
+    /**
+     * Updates the state derived from the blocks and publishes the whole filesystem, </br>
+     * once the journal has been replayed.
+     */
+    void finishReplay(){
+        synchronized (lockObject){
+            refreshBlockSet();
+            publishAll();
+        }
+    }
+    
+    /**
+     * Switches the files whose versions have not been decoded yet to "saved", the root directory <br/>
+     * contents loaded from a newer index, so that the older index is not referenced anymore. <br/>
+     * Such a file has not been changed since the older index was loaded, so the newer one holds <br/>
+     * the same versions for it. The frozen copies of these files in the current snapshot are switched too.
+     * @param saved 
+     */
+    void rebase(Map<String,DItem> saved){
+        synchronized (lockObject){
+            rebaseItems(fileMap, (snapshot == null) ? null : snapshot.getFileMap(), saved);
+        }
+    }
+    
+    /**
+     * Does rebase(..) for the directory contents "items", whose frozen copy is "frozenItems" <br/>
+     * (or null if there is none), and the contents "saved" of the same directory in the newer index.
+     * @param items
+     * @param frozenItems
+     * @param saved 
+     */
+    private static void rebaseItems(Map<String,DItem> items, Map<String,DItem> frozenItems, Map<String,DItem> saved){
+        for (Entry<String,DItem> entry : items.entrySet()){
+            DItem item = entry.getValue();
+            DItem savedItem = saved.get(entry.getKey());
+            if ((savedItem == null) || (savedItem.isDir() != item.isDir())){
+                continue;
+            }
+            DItem frozen = (frozenItems == null) ? null : frozenItems.get(entry.getKey());
+            if ((frozen != null) && (frozen.isDir() != item.isDir())){
+                frozen = null;
+            }
+            if (item.isDir()){
+                rebaseItems(((DDirectory) item).getItemMap(), 
+                        (frozen == null) ? null : ((DDirectory) frozen).getItemMap(), ((DDirectory) savedItem).getItemMap());
+            } else if (((DFile) item).rebase((DFile) savedItem) && (frozen != null)){
+                ((DFile) frozen).rebase((DFile) savedItem);
+            }
+        }
+    }
+    
+    /**
+     * Adds all the files in the directory contents "items" and its subdirectories to "res".
+     * @param items
+     * @param res 
+     */
+    private static void collectFiles(Map<String,DItem> items, Collection<DFile> res){
+        for (DItem item : items.values()){
+            if (item.isDir()){
+                collectFiles(((DDirectory) item).getItemMap(), res);
+            } else {
+                res.add((DFile) item);
+            }
+        }
+    }
+    
+    /**
+     * The first segment of the Journal whose changes are not contained in this database, </br>
+     * as saved by the last checkpoint.
+     */
+    private long journalStart = 0;
+
+    long getJournalStart() {
+        return journalStart;
+    }
+
+    void setJournalStart(long journalStart) {
+        this.journalStart = journalStart;
+    }
+    
     /**
      * Add the specified block into the block database.
      * @param block The block to be added.
@@ -329,10 +947,32 @@ class Database {
                 blockMap.put(block.getHash2(), block);
                 blockHashes.add(block.getHash());
                 blockHashes2.add(block.getHash2());
+                countBlockSize(block, true);
+                if (weakHashFilter != null){
+                    weakHashFilter.add(block.getHash());
+                }
+                recordBlockChange(true, block);
             }
         }
     }         
     
+    /**
+     * Written at the start of the serialized database. Databases saved before the strong hash values <br/>
+     * were stored in binary start with the (non-negative) number of blocks instead. <br/>
+     * The checkpoints are saved by MappedIndex since, this format is only read.
+     */
+    private static final int formatMarker = -4;
+    
+    /**
+     * The format marker of databases saved before the Journal was introduced.
+     */
+    private static final int unjournaledFormatMarker = -3;
+    
+    /**
+     * The format marker of databases saved before the blocks were kept in packs.
+     */
+    private static final int unpackedFormatMarker = -2;
+    
     static Serializer<Database> getSerializer(){
         return new DatabaseSerializer();
     }
@@ -342,6 +982,8 @@ class Database {
         @Override
         public void write(Kryo kryo, Output output, Database t) {
             synchronized(t.lockObject){  
+                output.writeInt(formatMarker);
+                output.writeLong(t.journalStart);
                 if (t.blockMap == null){
                     output.writeInt(0);
                 } else {
@@ -362,18 +1004,12 @@ class Database {
                     output.writeInt(0);
                 } else {
                     output.writeInt(t.blockHashes2.size());
-                    for (String s : t.blockHashes2){
-                        output.writeString(s);
+                    for (StrongHash h : t.blockHashes2){
+                        h.write(output);
                     }
                 }   
-                if (t.regularFiles == null){
-                    output.writeInt(0);
-                } else {
-                    output.writeInt(t.regularFiles.size());
-                    for (DFile df : t.regularFiles){
-                        kryo.writeObject(output, df, DFile.getSerializer());
-                    }
-                }
+                // regularFiles is rebuilt from fileMap by relink()
+                output.writeInt(0);
                 if (t.fileMap == null){
                     output.writeInt(0);
                 } else {
@@ -395,11 +1031,36 @@ class Database {
         @Override
         public Database read(Kryo kryo, Input input, Class<Database> type) {
             Database res = new Database();            
-            int blockSetSize = input.readInt();
-            res.blockMap = new HashMap<>();
+            int marker = input.readInt();
+            boolean legacy = (marker >= 0);
+            @SuppressWarnings("unchecked")
+            ObjectMap<Object,Object> context = kryo.getContext();
+            if (legacy){
+                context.put(DBlock.legacyHashesKey, Boolean.TRUE);
+            }
+            if ((marker != formatMarker) && (marker != unjournaledFormatMarker)){
+                context.put(DBlock.unpackedKey, Boolean.TRUE);
+            }
+            if (marker == formatMarker){
+                res.journalStart = input.readLong();
+            }
+            int blockSetSize = legacy ? marker : input.readInt();
+            try {
+                readContents(kryo, input, res, blockSetSize, legacy);
+            } finally {
+                context.remove(DBlock.legacyHashesKey);
+                context.remove(DBlock.unpackedKey);
+            }
+            res.relink();
+            return res;
+        }
+        
+        private void readContents(Kryo kryo, Input input, Database res, int blockSetSize, boolean legacy){
+            res.blockMap = new ConcurrentHashMap<>();
             for (int i = 0; i<blockSetSize; i++){
                 DBlock val = kryo.readObject(input, DBlock.class, DBlock.getSerializer());
                 res.blockMap.put(val.getHash2(), val);
+                res.countBlockSize(val, true);
             }
             
             int hashesSize = input.readInt();
@@ -410,12 +1071,15 @@ class Database {
             int hashes2Size = input.readInt();
             res.blockHashes2 = new HashSet<>();
             for (int i = 0; i<hashes2Size; i++){
-                res.blockHashes2.add(input.readString());
+                if (legacy){
+                    res.blockHashes2.add(StrongHash.fromLegacyHex(input.readString()));
+                } else {
+                    res.blockHashes2.add(StrongHash.read(input));
+                }
             }            
             int fileListSize = input.readInt();
-            res.regularFiles = new HashSet<>();
             for (int i = 0; i< fileListSize; i++){                
-                res.regularFiles.add(kryo.readObject(input, DFile.class, DFile.getSerializer()));
+                kryo.readObject(input, DFile.class, DFile.getSerializer());
             }
             int fileMapSize = input.readInt();
             res.fileMap = new HashMap<>();
@@ -430,7 +1094,6 @@ class Database {
                 }
                 res.fileMap.put(key, val);
             }
-            return res;
         }        
     }     
 }
@@ -0,0 +1,72 @@
+package cz.filipekt;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable view of the database filesystem at a certain moment. <br/>
+ * Writers publish a new snapshot after each change of the filesystem, readers <br/>
+ * may then use the latest published snapshot without any locking.
+ * @author Tomas Filipek
+ */
+class DatabaseSnapshot {
+
+    /**
+     * The root directory contents, all the items in it are frozen (see DItem.freeze()).
+     */
+    private final Map<String,DItem> fileMap;
+
+    /**
+     * Number of changes published before this snapshot was created.
+     */
+    private final long version;
+
+    DatabaseSnapshot(Map<String,DItem> fileMap, long version){
+        this.fileMap = fileMap;
+        this.version = version;
+    }
+
+    /**
+     * Returns the root directory contents.
+     * @return
+     */
+    Map<String,DItem> getFileMap(){
+        return fileMap;
+    }
+
+    long getVersion(){
+        return version;
+    }
+
+    /**
+     * Finds a "path" in the snapshot.
+     * @param path The path to search for.
+     * @return
+     */
+    DItem getItem(List<String> path){
+        return Database.findItem(fileMap, path);
+    }
+
+    /**
+     * Wrapper function for getItem(..), retrieves a regular file.
+     * @param path Path to a regular file.
+     * @return
+     */
+    DFile findFile(List<String> path){
+        DItem item = getItem(path);
+        if ((item != null) && (!item.isDir())){
+            return (DFile)item;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if and only if the path "path" exists in the snapshot.
+     * @param path The path to search for.
+     * @return
+     */
+    boolean itemExists(List<String> path){
+        return getItem(path) != null;
+    }
+}
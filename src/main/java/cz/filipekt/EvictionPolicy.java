@@ -0,0 +1,43 @@
+package cz.filipekt;
+
+/**
+ * Decides which entries of a ContentCache are evicted when it is full. <br/>
+ * The cache tells the policy about every entry added, used or removed, and asks it <br/>
+ * for a victim as long as the cached data exceed the capacity. <br/>
+ * The methods are called while holding the monitor of the cache.
+ * @author Tomas Filipek
+ * @param <K> Type of the keys identifying the cached data.
+ */
+interface EvictionPolicy<K> {
+
+    /**
+     * Called when "key" has been added to the cache.
+     * @param key
+     * @param length Number of bytes cached for "key".
+     */
+    void added(K key, int length);
+
+    /**
+     * Called when the data cached for "key" have been found by a lookup.
+     * @param key
+     */
+    void accessed(K key);
+
+    /**
+     * Called when "key" has been removed from the cache, either evicted or removed explicitly.
+     * @param key
+     */
+    void removed(K key);
+
+    /**
+     * Returns the key to be evicted next, or null if the policy knows of no key.
+     * @return
+     */
+    K victim();
+
+    /**
+     * Returns the name of the policy, as used in the program arguments.
+     * @return
+     */
+    String getName();
+}
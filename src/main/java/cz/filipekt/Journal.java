@@ -0,0 +1,445 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes of the Database, so that only the changes <br/>
+ * have to be written after a request, instead of the whole index. The log is split into <br/>
+ * numbered segments. A checkpoint (the saved index) remembers the first segment which is not <br/>
+ * contained in it, the later segments are replayed on top of it when the server starts. <br/>
+ * Each record is preceded by its length and checksum, so that a record torn by a crash <br/>
+ * is recognized and cut off when the server starts, together with anything written after it. <br/>
+ * The monitor of the journal may be acquired while holding storeLock, fileLocks or blockLocks, <br/>
+ * only the monitors of DItem and DVersion objects may be acquired while holding it.
+ * @author Tomas Filipek
+ */
+class Journal {
+
+    /**
+     * Types of the records, written by their ordinal numbers.
+     */
+    private static enum Mutation {
+        /**
+         * A block has been added, followed by the DBlock.
+         */
+        ADD_BLOCK,
+
+        /**
+         * A block has been removed, followed by its strong hash value.
+         */
+        REMOVE_BLOCK,
+
+        /**
+         * Directories have been created, followed by the path.
+         */
+        MAKE_DIRS,
+
+        /**
+         * A file has been created, followed by the path.
+         */
+        ADD_FILE,
+
+        /**
+         * A version of a file has been added or changed its form, followed by the path <br/>
+         * of the file, the position of the version and the DVersion, which holds the location <br/>
+         * of its script, if scripted.
+         */
+        PUT_VERSION,
+
+        /**
+         * A version of a file has been removed, followed by the path of the file and the position.
+         */
+        REMOVE_VERSION,
+
+        /**
+         * A block has been moved to another pack, when its pack was compacted, followed by <br/>
+         * its strong hash value and its new location.
+         */
+        MOVE_BLOCK
+    }
+
+    /**
+     * Home directory of the server, the segments are created in it.
+     */
+    private final String dir;
+
+    /**
+     * Prefix of the names of the segment files.
+     */
+    private static final String segmentPrefix = "journal";
+
+    /**
+     * Number of the segment the records are appended to.
+     */
+    private long segment;
+
+    /**
+     * Channel of the current segment.
+     */
+    private FileChannel channel;
+
+    /**
+     * Number of bytes written since the last checkpoint.
+     */
+    private long written = 0;
+
+    long getWritten() {
+        return written;
+    }
+
+    /**
+     * Used to serialize the records, under the monitor of the journal.
+     */
+    private final Kryo kryo = new Kryo(null);
+
+    /**
+     * The record being written.
+     */
+    private final Output record = new Output(4096, -1);
+
+    /**
+     * Header of a record, i.e. its length and checksum.
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(12);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Starts a new segment, following all the existing ones and at least "firstSegment". <br/>
+     * The segments before "firstSegment" are contained in the checkpoint and are deleted.
+     * @param dir
+     * @param firstSegment
+     * @throws IOException
+     */
+    Journal(String dir, long firstSegment) throws IOException{
+        this.dir = dir;
+        this.kryo.setAutoReset(true);
+        long next = firstSegment;
+        for (long s : listSegments(dir)){
+            next = Math.max(next, s + 1);
+        }
+        openSegment(next);
+        deleteSegmentsBefore(firstSegment);
+    }
+
+    /**
+     * Returns the numbers of the segments in "dir", in ascending order.
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    private static List<Long> listSegments(String dir) throws IOException{
+        List<Long> res = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir), segmentPrefix + "*")){
+            for (Path p : stream){
+                String number = p.getFileName().toString().substring(segmentPrefix.length());
+                if (ServerUtils.isLong(number)){
+                    res.add(Long.parseLong(number));
+                }
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private static Path getPath(String dir, long segment){
+        return Paths.get(dir, String.format("%s%06d", segmentPrefix, segment));
+    }
+
+    private void openSegment(long segment) throws IOException{
+        if (channel != null){
+            channel.force(false);
+            channel.close();
+        }
+        this.segment = segment;
+        channel = FileChannel.open(getPath(dir, segment), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Starts a new segment for a checkpoint. The checkpoint has to contain all the changes <br/>
+     * written so far, i.e. the segments before the returned number, and remember the number <br/>
+     * as its first segment.
+     * @return The number of the new segment.
+     * @throws IOException
+     */
+    synchronized long startCheckpoint() throws IOException{
+        openSegment(segment + 1);
+        written = 0;
+        return segment;
+    }
+
+    /**
+     * Deletes the segments before "firstSegment", once a checkpoint containing them has been saved.
+     * @param firstSegment
+     * @throws IOException
+     */
+    void deleteSegmentsBefore(long firstSegment) throws IOException{
+        for (long s : listSegments(dir)){
+            if (s < firstSegment){
+                Files.deleteIfExists(getPath(dir, s));
+            }
+        }
+    }
+
+    /**
+     * Forces the records written so far to the disc.
+     * @throws IOException
+     */
+    synchronized void sync() throws IOException{
+        channel.force(false);
+    }
+
+    synchronized void logAddBlock(DBlock block) throws IOException{
+        begin(Mutation.ADD_BLOCK);
+        kryo.writeObject(record, block, DBlock.getSerializer());
+        write();
+    }
+
+    synchronized void logRemoveBlock(DBlock block) throws IOException{
+        begin(Mutation.REMOVE_BLOCK);
+        block.getHash2().write(record);
+        write();
+    }
+
+    synchronized void logMoveBlock(DBlock block) throws IOException{
+        begin(Mutation.MOVE_BLOCK);
+        block.getHash2().write(record);
+        record.writeLong(block.getLocation());
+        write();
+    }
+
+    synchronized void logMakeDirs(List<String> path) throws IOException{
+        begin(Mutation.MAKE_DIRS);
+        writePath(path);
+        write();
+    }
+
+    synchronized void logAddFile(List<String> path) throws IOException{
+        begin(Mutation.ADD_FILE);
+        writePath(path);
+        write();
+    }
+
+    /**
+     * Records that "version" is on the position "index" of the file "path", either added <br/>
+     * at the end of the version list or replacing the version there, with its current form. <br/>
+     * The script of a version in script form has to be saved in the ScriptStore before, <br/>
+     * the record holds its location, and the pack has to be synced before the journal.
+     * @param path
+     * @param index
+     * @param version
+     * @throws IOException
+     */
+    synchronized void logPutVersion(List<String> path, int index, DVersion version) throws IOException{
+        begin(Mutation.PUT_VERSION);
+        writePath(path);
+        record.writeInt(index);
+        kryo.writeObject(record, version, DVersion.getSerializer());
+        write();
+    }
+
+    synchronized void logRemoveVersion(List<String> path, int index) throws IOException{
+        begin(Mutation.REMOVE_VERSION);
+        writePath(path);
+        record.writeInt(index);
+        write();
+    }
+
+    private void begin(Mutation type){
+        record.clear();
+        record.writeByte(type.ordinal());
+    }
+
+    private void writePath(List<String> path){
+        record.writeInt(path.size());
+        for (String s : path){
+            record.writeString(s);
+        }
+    }
+
+    private static List<String> readPath(Input input){
+        String[] path = new String[input.readInt()];
+        for (int i = 0; i<path.length; i++){
+            path[i] = input.readString();
+        }
+        return Arrays.asList(path);
+    }
+
+    /**
+     * Appends the record with its header to the current segment.
+     * @throws IOException
+     */
+    private void write() throws IOException{
+        int length = record.position();
+        crc.reset();
+        crc.update(record.getBuffer(), 0, length);
+        header.clear();
+        header.putInt(length).putLong(crc.getValue()).flip();
+        ByteBuffer[] buffers = new ByteBuffer[]{header, ByteBuffer.wrap(record.getBuffer(), 0, length)};
+        while (buffers[1].hasRemaining()){
+            channel.write(buffers);
+        }
+        written += header.capacity() + length;
+    }
+
+    /**
+     * Applies the segments from "firstSegment" up to "endSegment" (exclusive) to "db", in the order <br/>
+     * they were written. The replay stops at the first incomplete or damaged record, nothing written <br/>
+     * after it is applied, even in the later segments. If "repair" is set, the damaged record <br/>
+     * and everything after it is removed from the journal, so that the records written from now on <br/>
+     * follow the last applied one. <br/>
+     * The reference counts of the blocks are kept up to date, Database.finishReplay() has to be <br/>
+     * called afterwards.
+     * @param dir
+     * @param firstSegment
+     * @param endSegment
+     * @param db
+     * @param repair
+     * @return Number of the records applied.
+     * @throws IOException
+     */
+    static long replay(String dir, long firstSegment, long endSegment, Database db, boolean repair) throws IOException{
+        Kryo kryo = new Kryo(null);
+        kryo.setAutoReset(true);
+        long count = 0;
+        CRC32 checksum = new CRC32();
+        List<Long> segments = new ArrayList<>();
+        for (long s : listSegments(dir)){
+            if ((s >= firstSegment) && (s < endSegment)){
+                segments.add(s);
+            }
+        }
+        for (int i = 0; i<segments.size(); i++){
+            ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(getPath(dir, segments.get(i))));
+            int damaged = -1;
+            while ((damaged == -1) && contents.hasRemaining()){
+                int start = contents.position();
+                damaged = start;
+                if (contents.remaining() < 12){
+                    break;
+                }
+                int length = contents.getInt();
+                long expected = contents.getLong();
+                if ((length <= 0) || (length > contents.remaining())){
+                    break;
+                }
+                checksum.reset();
+                checksum.update(contents.array(), contents.position(), length);
+                if (checksum.getValue() != expected){
+                    break;
+                }
+                Input input = new Input(Arrays.copyOfRange(contents.array(), contents.position(), contents.position() + length));
+                contents.position(contents.position() + length);
+                try {
+                    apply(kryo, input, db);
+                } catch (KryoException | MalformedPath | IndexOutOfBoundsException ex){
+                    break;
+                }
+                count++;
+                damaged = -1;
+            }
+            if (damaged != -1){
+                if (repair){
+                    truncate(dir, segments.subList(i, segments.size()), damaged);
+                }
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Cuts the first of "segments" at "position" and deletes the others.
+     * @param dir
+     * @param segments
+     * @param position
+     * @throws IOException
+     */
+    private static void truncate(String dir, List<Long> segments, long position) throws IOException{
+        Logger.getLogger(Journal.class.getName()).log(Level.WARNING, 
+                "Damaged journal record in {0} at {1}, the rest of the journal is discarded", 
+                new Object[]{getPath(dir, segments.get(0)), position});
+        try (FileChannel damaged = FileChannel.open(getPath(dir, segments.get(0)), StandardOpenOption.WRITE)){
+            damaged.truncate(position);
+            damaged.force(true);
+        }
+        for (long s : segments.subList(1, segments.size())){
+            Files.deleteIfExists(getPath(dir, s));
+        }
+    }
+
+    /**
+     * Applies a single record.
+     * @param kryo
+     * @param input
+     * @param db
+     * @throws MalformedPath
+     */
+    private static void apply(Kryo kryo, Input input, Database db) throws MalformedPath{
+        Mutation type = Mutation.values()[input.readByte()];
+        switch (type){
+            case ADD_BLOCK:
+                DBlock block = kryo.readObject(input, DBlock.class, DBlock.getSerializer());
+                if (!db.blockExists(block.getHash2())){
+                    db.addBlock(block);
+                }
+                break;
+            case REMOVE_BLOCK:
+                db.removeBlock(StrongHash.read(input));
+                break;
+            case MAKE_DIRS:
+                db.makeDirs(readPath(input));
+                break;
+            case ADD_FILE:
+                db.addFile(readPath(input));
+                break;
+            case PUT_VERSION:
+                List<String> path = readPath(input);
+                int index = input.readInt();
+                DVersion version = kryo.readObject(input, DVersion.class, DVersion.getSerializer());
+                DFile file = db.findFile(path);
+                if ((file == null) || (index < 0) || (index > file.getVersionCount())){
+                    break;
+                }
+                db.linkVersion(version);
+                if (index == file.getVersionCount()){
+                    file.addVersion(version);
+                } else {
+                    db.unlinkVersion(file.getVersionList().get(index));
+                    file.setVersion(index, version);
+                }
+                break;
+            case REMOVE_VERSION:
+                path = readPath(input);
+                index = input.readInt();
+                file = db.findFile(path);
+                if ((file != null) && (index >= 0) && (index < file.getVersionCount())){
+                    db.unlinkVersion(file.removeVersion(index));
+                }
+                break;
+            case MOVE_BLOCK:
+                StrongHash hash2 = StrongHash.read(input);
+                db.moveBlock(hash2, input.readLong());
+                break;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package cz.filipekt;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Evicts the least recently used entry first. <br/>
+ * A single scan over data used only once, e.g. a large upload or download, <br/>
+ * flushes the whole cache, see SegmentedLruPolicy for a policy resisting that.
+ * @author Tomas Filipek
+ * @param <K> Type of the keys identifying the cached data.
+ */
+class LruPolicy<K> implements EvictionPolicy<K> {
+
+    /**
+     * Name of the policy in the program arguments.
+     */
+    static final String name = "lru";
+
+    /**
+     * The cached keys in the order of their last use, the least recently used first.
+     */
+    private final LinkedHashSet<K> keys = new LinkedHashSet<>();
+
+    @Override
+    public void added(K key, int length) {
+        keys.add(key);
+    }
+
+    @Override
+    public void accessed(K key) {
+        if (keys.remove(key)){
+            keys.add(key);
+        }
+    }
+
+    @Override
+    public void removed(K key) {
+        keys.remove(key);
+    }
+
+    @Override
+    public K victim() {
+        Iterator<K> it = keys.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
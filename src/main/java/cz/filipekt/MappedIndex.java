@@ -0,0 +1,395 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The index format in which the versions of the files are decoded lazily. <br/>
+ * The file starts with the versions of each file, followed by a table of the blocks, <br/>
+ * the numbers of the scripts in use in each script pack and the directory tree, where each file refers to its versions by their position. <br/>
+ * When loading, the file is memory-mapped and only the table is decoded, so the startup <br/>
+ * does not depend on the number of stored versions. It is still linear in the number of <br/>
+ * blocks and files, as the whole block table is decoded and indexed by the Database. <br/>
+ * The versions of a file are decoded on the first access to them, and written back undecoded <br/>
+ * by the next checkpoint if they have not been accessed in the meantime. Once the checkpoint <br/>
+ * is saved, the files still not decoded are switched to it by rebase(..), so that only the <br/>
+ * newest index stays mapped.
+ * @author Tomas Filipek
+ */
+class MappedIndex {
+
+    /**
+     * Written at the start of the index, distinguishes it from the formats read by Database.getSerializer().
+     */
+    static final int formatMarker = -6;
+
+    /**
+     * Size of the header, i.e. the format marker, the first journal segment and the position of the table.
+     */
+    private static final int headerSize = 20;
+
+    /**
+     * Each mapped segment has 2^segmentBits bytes, except the last one.
+     */
+    private static final int segmentBits = 30;
+
+    private static final long segmentMask = (1L << segmentBits) - 1;
+
+    /**
+     * The contents of the index, split into segments of 2^segmentBits bytes.
+     */
+    private final ByteBuffer[] segments;
+
+    /**
+     * The blocks of the loaded Database, the decoded versions are linked to them.
+     */
+    private Map<StrongHash,DBlock> blockMap;
+
+    private MappedIndex(ByteBuffer[] segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Tells whether "f" holds an index in this format.
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    static boolean isMapped(Path f) throws IOException{
+        try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)){
+            ByteBuffer marker = ByteBuffer.allocate(4);
+            while (marker.hasRemaining()){
+                if (channel.read(marker) == -1){
+                    return false;
+                }
+            }
+            marker.flip();
+            return marker.getInt() == formatMarker;
+        }
+    }
+
+    /**
+     * Maps the index "f" and decodes the blocks and the directory tree.
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    static Database load(Path f) throws IOException{
+        MappedIndex index = map(f);
+        Kryo kryo = new Kryo(null);
+        kryo.setAutoReset(true);
+        Input header = new Input(index.read(0, headerSize));
+        header.readInt();
+        long journalStart = header.readLong();
+        long tableOffset = header.readLong();
+        Input input = new Input(index.openStream(tableOffset));
+        ConcurrentHashMap<StrongHash,DBlock> blockMap = new ConcurrentHashMap<>();
+        int blockCount = input.readInt();
+        for (int i = 0; i<blockCount; i++){
+            DBlock block = kryo.readObject(input, DBlock.class, DBlock.getSerializer());
+            blockMap.put(block.getHash2(), block);
+        }
+        Map<Integer,Integer> liveScripts = new HashMap<>();
+        int packCount = input.readInt();
+        for (int i = 0; i<packCount; i++){
+            int pack = input.readInt();
+            liveScripts.put(pack, input.readInt());
+        }
+        index.blockMap = blockMap;
+        Map<String,DItem> fileMap = index.readItems(input, new ArrayList<String>());
+        return new Database(fileMap, blockMap, liveScripts, journalStart);
+    }
+
+    /**
+     * Switches the files of "db" whose versions have not been decoded yet to the index "f", <br/>
+     * which has been saved from a state of "db" (see Database.rebase(..)). The versions are <br/>
+     * then decoded from "f" and linked to the blocks of "db".
+     * @param f
+     * @param db
+     * @throws IOException
+     */
+    static void rebase(Path f, Database db) throws IOException{
+        MappedIndex index = map(f);
+        index.blockMap = db.getBlockMap();
+        Kryo kryo = new Kryo(null);
+        kryo.setAutoReset(true);
+        Input header = new Input(index.read(0, headerSize));
+        header.readInt();
+        header.readLong();
+        Input input = new Input(index.openStream(header.readLong()));
+        int blockCount = input.readInt();
+        for (int i = 0; i<blockCount; i++){
+            kryo.readObject(input, DBlock.class, DBlock.getSerializer());
+        }
+        int packCount = input.readInt();
+        for (int i = 0; i<packCount; i++){
+            input.readInt();
+            input.readInt();
+        }
+        db.rebase(index.readItems(input, new ArrayList<String>()));
+    }
+
+    /**
+     * Maps the whole file "f".
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    private static MappedIndex map(Path f) throws IOException{
+        try (FileChannel channel = FileChannel.open(f, StandardOpenOption.READ)){
+            long size = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int) (((size - 1) >>> segmentBits) + 1)];
+            for (int i = 0; i<segments.length; i++){
+                long position = (long) i << segmentBits;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, 1L << segmentBits));
+            }
+            return new MappedIndex(segments);
+        }
+    }
+
+    /**
+     * Reads the contents of the directory "path" from the table.
+     * @param input
+     * @param path
+     * @return
+     */
+    private Map<String,DItem> readItems(Input input, List<String> path){
+        Map<String,DItem> res = new HashMap<>();
+        int count = input.readInt();
+        for (int i = 0; i<count; i++){
+            String name = input.readString();
+            boolean isDir = input.readBoolean();
+            List<String> itemPath = new ArrayList<>(path);
+            itemPath.add(name);
+            if (isDir){
+                res.put(name, new DDirectory(name, readItems(input, itemPath)));
+            } else {
+                long offset = input.readLong();
+                int length = input.readInt();
+                res.put(name, new DFile(itemPath, new Versions(this, offset, length)));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Saves "db" to "f" in this format.
+     * @param db
+     * @param f
+     * @throws IOException
+     */
+    static void save(Database db, Path f) throws IOException{
+        Kryo kryo = new Kryo(null);
+        kryo.setAutoReset(true);
+        try (FileChannel channel = FileChannel.open(f, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                Output output = new Output(Channels.newOutputStream(channel))){
+            output.writeInt(formatMarker);
+            output.writeLong(db.getJournalStart());
+            output.writeLong(0);
+            Map<DFile,long[]> positions = new IdentityHashMap<>();
+            writeAllVersions(kryo, output, db.getFileMap(), positions);
+            long tableOffset = output.total();
+            Collection<DBlock> blocks = db.getBlockMap().values();
+            output.writeInt(blocks.size());
+            for (DBlock block : blocks){
+                kryo.writeObject(output, block, DBlock.getSerializer());
+            }
+            Map<Integer,Integer> liveScripts = db.getLiveScripts();
+            output.writeInt(liveScripts.size());
+            for (Entry<Integer,Integer> entry : liveScripts.entrySet()){
+                output.writeInt(entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+            writeItems(output, db.getFileMap(), positions);
+            output.flush();
+            ByteBuffer table = ByteBuffer.allocate(8);
+            table.putLong(tableOffset).flip();
+            while (table.hasRemaining()){
+                channel.write(table, headerSize - 8 + table.position());
+            }
+        }
+    }
+
+    /**
+     * Writes the versions of all the files in "items" and its subdirectories, remembering <br/>
+     * their positions in "positions".
+     * @param kryo
+     * @param output
+     * @param items
+     * @param positions
+     */
+    private static void writeAllVersions(Kryo kryo, Output output, Map<String,DItem> items, Map<DFile,long[]> positions){
+        for (DItem item : items.values()){
+            if (item.isDir()){
+                writeAllVersions(kryo, output, ((DDirectory) item).getItemMap(), positions);
+            } else {
+                long start = output.total();
+                ((DFile) item).writeVersions(kryo, output);
+                positions.put((DFile) item, new long[]{start, output.total() - start});
+            }
+        }
+    }
+
+    /**
+     * Writes the directory tree "items" into the table.
+     * @param output
+     * @param items
+     * @param positions
+     */
+    private static void writeItems(Output output, Map<String,DItem> items, Map<DFile,long[]> positions){
+        output.writeInt(items.size());
+        for (Entry<String,DItem> entry : items.entrySet()){
+            output.writeString(entry.getKey());
+            boolean isDir = entry.getValue().isDir();
+            output.writeBoolean(isDir);
+            if (isDir){
+                writeItems(output, ((DDirectory) entry.getValue()).getItemMap(), positions);
+            } else {
+                long[] position = positions.get(entry.getValue());
+                output.writeLong(position[0]);
+                output.writeInt((int) position[1]);
+            }
+        }
+    }
+
+    /**
+     * Writes the version list of a file in the form decoded by Versions.decode().
+     * @param kryo
+     * @param output
+     * @param versions
+     */
+    static void writeVersions(Kryo kryo, Output output, List<DVersion> versions){
+        output.writeInt(versions.size());
+        for (DVersion version : versions){
+            kryo.writeObject(output, version, DVersion.getSerializer());
+        }
+    }
+
+    /**
+     * Copies "length" bytes of the index starting at "position".
+     * @param position
+     * @param length
+     * @return
+     */
+    private byte[] read(long position, int length){
+        byte[] res = new byte[length];
+        int done = 0;
+        while (done < length){
+            ByteBuffer segment = segments[(int) ((position + done) >>> segmentBits)].duplicate();
+            segment.position((int) ((position + done) & segmentMask));
+            int count = Math.min(length - done, segment.remaining());
+            segment.get(res, done, count);
+            done += count;
+        }
+        return res;
+    }
+
+    /**
+     * Returns a stream of the index from "position" to its end.
+     * @param position
+     * @return
+     */
+    private InputStream openStream(final long position){
+        return new InputStream() {
+            private long current = position;
+
+            @Override
+            public int read() {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                int index = (int) (current >>> segmentBits);
+                if (index >= segments.length){
+                    return -1;
+                }
+                ByteBuffer segment = segments[index].duplicate();
+                segment.position((int) (current & segmentMask));
+                if (!segment.hasRemaining()){
+                    return -1;
+                }
+                int count = Math.min(len, segment.remaining());
+                segment.get(b, off, count);
+                current += count;
+                return count;
+            }
+        };
+    }
+
+    /**
+     * The undecoded versions of a single file.
+     */
+    static class Versions {
+
+        private final MappedIndex index;
+
+        /**
+         * Position of the versions in the index.
+         */
+        private final long offset;
+
+        /**
+         * Number of bytes of the versions.
+         */
+        private final int length;
+
+        private Versions(MappedIndex index, long offset, int length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Decodes the versions, linking them to the blocks of the loaded Database. <br/>
+         * A block is not found there only if the version is in script form and the block <br/>
+         * has been removed since, then the version keeps its own copy, like in Database.relink().
+         * @return
+         */
+        List<DVersion> decode(){
+            Kryo kryo = new Kryo(null);
+            kryo.setAutoReset(true);
+            Input input = new Input(index.read(offset, length));
+            int count = input.readInt();
+            List<DVersion> res = new ArrayList<>(count);
+            for (int i = 0; i<count; i++){
+                DVersion version = kryo.readObject(input, DVersion.class, DVersion.getSerializer());
+                List<DBlock> blocks = version.getBlocks();
+                List<DBlock> linked = new ArrayList<>(blocks.size());
+                for (DBlock block : blocks){
+                    DBlock canonical = index.blockMap.get(block.getHash2());
+                    linked.add((canonical == null) ? block : canonical);
+                }
+                version.setBlocks(linked);
+                res.add(version);
+            }
+            return res;
+        }
+
+        /**
+         * Copies the versions, as they are, to "output".
+         * @param output
+         */
+        void copyTo(Output output){
+            output.writeBytes(index.read(offset, length));
+        }
+    }
+}
@@ -70,5 +70,14 @@ public enum Requests {
     /**
      * Client requests all the server block objects to be delivered.
      */
-    GET_SERVER_BLOCKS
+    GET_SERVER_BLOCKS,
+    
+    /**
+     * Client requests a certain file to be delivered in chunks. <br/>
+     * Each chunk is sent as its length followed by the data, the transfer is finished <br/>
+     * by a zero length, or by a negative length if the server fails to read the file. <br/>
+     * The data are sent in the internal representation (each byte shifted by 128), <br/>
+     * as the blocks are kept in the packs, so that they can be sent without conversion.
+     */
+    GET_FILE_STREAM
 }
\ No newline at end of file
@@ -1,86 +1,105 @@
 package cz.filipekt;
 
-import java.util.Arrays;
-import java.util.List;
+import java.security.MessageDigest;
 
 /**
  *  The main class for computing the rolling hash over any data <br/>
- *  represented as a sequence of bytes.
+ *  represented as a sequence of bytes. <br/>
+ *  The bytes are kept in a ring buffer, so adding a byte allocates nothing, <br/>
+ *  and an instance may be reused by reset() for all the files of a connection.
  * @author Tomas Filipek
  */
 class RollingHash{
     /**
-     * The helper value for updating the main rolling hash value
+     * The helper value for updating the main rolling hash value, i.e. the sum of the bytes </br>
+     * in the "counter". It never exceeds Mod, so it does not depend on the preceding bytes.
      */
     private long A = 0L;
-    
+
     /**
-     * The main rolling hash value
+     * The sum of the bytes in the "counter" weighted by their distance from its end, modulo Mod. </br>
+     * The main rolling hash value of the "counter" is derived from it.
      */
-    private long B = 0L;
-    
+    private long weightedSum = 0L;
+
+    /**
+     * The part of the main rolling hash value caused by the initial zero bytes </br>
+     * of the "counter" in computeHash(..), modulo Mod.
+     */
+    private final long zerosTerm;
+
     /**
      * Size of the (algebraic) field in which the computations are executed.
      * Set to 2^31 - 1 (a prime).
      */
-    private final long Mod = (long)Integer.MAX_VALUE;
-    
+    private static final long Mod = (long)Integer.MAX_VALUE;
+
     /**
      * 2 powered to 32
      */
-    private final long pow_2_32 = 4294967296L;
-    
+    private static final long pow_2_32 = 4294967296L;
+
     /**
-     * 
-     * @return The value of rolling hash for "data".
+     * Returns the value of rolling hash for "data". </br>
+     * computeHash(..) reduces the main value modulo Mod with the sign of the intermediate results, </br>
+     * so for the same bytes it returns either this value or getAlternativeHash().
+     * @return 
      */
     long getHash(){
-        return A + pow_2_32 * B;
+        return A + pow_2_32 * getMainValue();
     }
-    
+
     /**
-     * Returns the value of safe hash for "data" , represented in hexadecimal format. 
+     * Returns the other value computeHash(..) may return for "data", see getHash().
      * @return 
      */
-    String getHexHash2() {
-        return ServerUtils.computeStrongHash(data.getInternalArray(), counterLength, data.left, data.right);
-    }       
-    
+    long getAlternativeHash(){
+        long main = getMainValue();
+        return (main == 0) ? getHash() : A + pow_2_32 * (main - Mod);
+    }
+
     /**
-     * Data, over which is the "counter" of rolling hash
+     * Returns the main rolling hash value, in the range 0 .. Mod-1.
+     * @return 
      */
-    private RoundArray data;
-    
+    private long getMainValue(){
+        long res = (weightedSum - zerosTerm) % Mod;
+        return (res < 0) ? res + Mod : res;
+    }
+
     /**
-     * 
-     * @return "data" as byte[], but just those bytes in the "valid" section
+     * Returns the value of safe hash for "data".
+     * @return
      */
-    byte[] getValidData(){
-        byte[] res = new byte[valid];
-        int i = 0;
-        byte[] validData = Arrays.copyOfRange(data.asArray(), counterLength-valid, counterLength);
-        for (byte b : validData){
-            res[i++] = b;
-        }
-        return res;
+    StrongHash getHash2() {
+        MessageDigest md = StrongHash.getDigest();
+        int start = (head - counterLength) & mask;
+        int firstPart = Math.min(counterLength, data.length - start);
+        md.update(data, start, firstPart);
+        md.update(data, 0, counterLength - firstPart);
+        return StrongHash.fromBytes(md.digest());
     }
-    
+
     /**
-     * How many bytes from the beggining of "data" is valid
+     * Ring buffer holding the bytes in the "counter", its length is a power of two. </br>
+     * The counter consists of the last counterLength bytes before "head".
      */
-    private int valid;
-    
+    private final byte[] data;
+
     /**
-     * Makes all bytes in "data" invalid
+     * Bit mask of the positions in "data", i.e. data.length - 1.
      */
-    void resetValid(){
-        valid = 0;
-    }
-    
+    private final int mask;
+
+    /**
+     * Position in "data" to which the next byte is written.
+     */
+    private int head = 0;
+
     /**
      * The length of the "counter" of the rolling hash
      */
-    private final int counterLength;    
+    private final int counterLength;
 
     int getCounterLength() {
         return counterLength;
@@ -88,11 +107,22 @@ class RollingHash{
 
     RollingHash(int n){
         counterLength = n;
-        data = new RoundArray(n * 16);
-        for (int i = 0; i<n; i++){
-            data.addLast((byte)0);
-        }        
-        valid = 0;        
+        data = new byte[Integer.highestOneBit(Math.max(n, 1) * 2 - 1)];
+        mask = data.length - 1;
+        zerosTerm = (128L * n % Mod) * n % Mod;
+    }
+
+    /**
+     * Returns the instance to the state just after construction, i.e. the "counter" </br>
+     * filled with zero bytes.
+     */
+    void reset(){
+        A = 0L;
+        weightedSum = 0L;
+        head = 0;
+        for (int i = 0; i<data.length; i++){
+            data[i] = 0;
+        }
     }
 
     /**
@@ -100,135 +130,59 @@ class RollingHash{
      * @param b The new byte that will be added to the counter.
      * @return The byte which was dropped from the "counter"
      */
-    byte add(byte b){        
-        int oldByte = (int)data.getFirst() + 128;
-        int newByte = (int)b + 128;
-        data.addLast(b);
-        A -= oldByte;
-        A += newByte;
-        A %= Mod;
-        B -= (counterLength * oldByte);
-        B += A;
-        B %= Mod;
-        if (valid < counterLength){
-            valid++;
-        }
-        return data.removeFirst();
-    }                   
-    
-    /**
-     * Computes the primary hash for "inData", padding the input data with zero's at the end up to 
-     * "capacity", if needed.
-     * @param inData
-     * @return Rolling hash for "inData", with "counter" of size equal to the size of "inData"
-     */    
-    static long computeHash(List<Byte> inData, int capacity){
-        byte[] inData2 = new byte[capacity];
-        int i = 0;
-        for (Byte b : inData){
-            inData2[i++] = b;
-            if (i >= capacity){
-                break;
-            }
+    byte add(byte b){
+        int tail = (head - counterLength) & mask;
+        byte dropped = data[tail];
+        data[head] = b;
+        head = (head + 1) & mask;
+        A += b - dropped;
+        weightedSum = (weightedSum - (long) counterLength * dropped + A) % Mod;
+        if (weightedSum < 0){
+            weightedSum += Mod;
         }
-        while (i < capacity){
-            inData2[i++] = (byte)0;
-        }
-        return RollingHash.computeHash(inData2);
-    }     
-    
+        return dropped;
+    }
+
     /**
      * Computes the rolling hash value for the input data. </br>
      * Counter size is set to be equal to the input array length.
      * @param data The data of which the hash will be computed.
-     * @return 
+     * @return
      */
     static long computeHash(byte[] data){
-        RollingHash rh = new RollingHash(data.length);
-        for (byte b : data){
-            rh.add(b);
-        }
-        return rh.getHash();
-    }           
-    
+        return RollingHash.computeHash(data, data.length, 0, data.length);
+    }
+
     /**
      * Computes the rolling hash for the input data, starting at a specified position, </br>
-     * ending at a specified position and padding 0s up to the specified counter size.
+     * ending at a specified position and padding 0s up to the specified counter size. </br>
+     * The bytes are added one by one to a "counter" of zero bytes, without copying them. </br>
+     * This is the weak hash value stored with the blocks.
      * @param data Input data.
      * @param windowSize Counter size used.
      * @param from Start position at the input array, inclusive.
      * @param to End position at the input array, exclusive.
-     * @return 
+     * @return
      */
     static long computeHash(byte[] data, int windowSize, int from, int to) {
-        byte[] completeData = new byte[windowSize];
-        int i = 0;
-        for (int j = from; j < to; j++){
-            completeData[i++] = data[j];
-        }
-        while (i < windowSize){
-            completeData[i++] = (byte)0;
+        long a = 0L;
+        long b = 0L;
+        long dropped = windowSize * 128L;
+        int end = Math.min(to, from + windowSize);
+        for (int i = from; i<end; i++){
+            a -= 128;
+            a += (int)data[i] + 128;
+            a %= Mod;
+            b -= dropped;
+            b += a;
+            b %= Mod;
         }
-        return RollingHash.computeHash(completeData);
-    }       
-    
-    /**
-     * Custom implementation of a byte queue.
-     */
-    private class RoundArray {        
-
-        RoundArray(final int length) {
-            this.length = length;        
-            data = new byte[length];        
-        }
-
-        void addLast(byte b){
-            data[right] = b;
-            right++;        
-            if (right >= length){
-                goBack();
-            }
+        for (int i = end - from; i<windowSize; i++){
+            a %= Mod;
+            b -= dropped;
+            b += a;
+            b %= Mod;
         }
-
-        byte getFirst(){
-            return data[left];
-        }
-
-        byte removeFirst(){
-            byte val = data[left];
-            left++;
-            return val;
-        }
-
-        private void goBack(){
-            int j = 0;
-            for (int i = left; i<right; i++){
-                data[j++] = data[i];
-            }
-            right = right - left;
-            left = 0;
-        }        
-
-        byte[] asArray(){
-            return Arrays.copyOfRange(data, left, right);
-        }
-
-        private final int length;
-
-        private final byte[] data;
-
-        private byte[] getInternalArray(){
-            return data;
-        }
-
-        /**
-         * Left, inclusive bound on the currently used positions in "data".
-         */
-        private int left = 0;
-
-        /**
-         * Right, exclusive bound on the currently used positions in "data".
-         */
-        private int right = 0;    
-    }        
+        return a + pow_2_32 * b;
+    }
 }
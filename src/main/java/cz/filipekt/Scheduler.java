@@ -58,7 +58,12 @@ public class Scheduler {
             return;
         }
         try {
-            Scheduler scheduler = new Scheduler(uri, port2, time2, input2, locale, count2);
+            boolean useHashFilter = ServerUtils.isSwitchPresent(args, "filter");
+            boolean batchChecks = ServerUtils.isSwitchPresent(args, "batchcheck");
+            String cacheFile = ServerUtils.getArgVal(args, "cache", true);
+            Path cacheFile2 = ((cacheFile != null) && !cacheFile.isEmpty()) ? Paths.get(cacheFile) : null;
+            Scheduler scheduler = new Scheduler(uri, port2, time2, input2, locale, count2, useHashFilter, cacheFile2, 
+                    batchChecks);
             scheduler.loadCommands();
             scheduler.work();
         } catch (Exception ex){
@@ -66,7 +71,8 @@ public class Scheduler {
         }
     }
 
-    private Scheduler(String uri, int port, int time, Path input, Locale locale, long count) {
+    private Scheduler(String uri, int port, int time, Path input, Locale locale, long count, boolean useHashFilter, 
+            Path hashCacheFile, boolean batchChecks) {
         this.uri = uri;
         this.port = port;
         this.time = time;
@@ -74,6 +80,9 @@ public class Scheduler {
         this.locale = locale;        
         this.commands = new HashSet<>();
         this.count = count;
+        this.useHashFilter = useHashFilter;
+        this.hashCacheFile = hashCacheFile;
+        this.batchChecks = batchChecks;
     }
     
     /**
@@ -108,6 +117,21 @@ public class Scheduler {
      * The current locale.
      */
     private final Locale locale;
+    
+    /**
+     * Whether the clients should use Bloom filters of the server's weak hash values.
+     */
+    private final boolean useHashFilter;
+    
+    /**
+     * File with the clients' copy of the server's block index, or null if not used.
+     */
+    private final Path hashCacheFile;
+    
+    /**
+     * Whether the clients should send the strong hash checks of each upload in batches.
+     */
+    private final boolean batchChecks;
        
     /**
      * Conatins all the scheduled commands parsed by whitespace
@@ -120,6 +144,11 @@ public class Scheduler {
      */
     private void executeCode() throws IOException{
         Client client = new Client(uri, port, null, locale, System.out, false);
+        client.setUseHashFilter(useHashFilter);
+        client.setBatchChecks(batchChecks);
+        if (hashCacheFile != null){
+            client.setHashCache(hashCacheFile);
+        }
         for (List<String> command : commands){
             client.switchToOperation(command);
         }
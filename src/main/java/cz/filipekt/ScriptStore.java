@@ -0,0 +1,336 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import cz.filipekt.diff.EditScript;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Keeps the scripts of the versions in script form in append-only pack files in the home <br/>
+ * directory, like BlockStore keeps the blocks. Each script is preceded by its length, <br/>
+ * its location (pack number and offset) is kept in the DVersion. A pack is deleted once none <br/>
+ * of its scripts is used, after the journal no longer refers to them (see deleteEmptyPacks()). <br/>
+ * A script is read only when the version is reconstructed, the recently used ones are kept <br/>
+ * in memory in their serialized form, up to a given number of bytes.
+ * @author Tomas Filipek
+ */
+class ScriptStore {
+
+    /**
+     * Home directory of the server, the packs are created in it.
+     */
+    private final String dir;
+
+    /**
+     * Prefix of the names of the pack files.
+     */
+    private static final String packPrefix = "scriptpack";
+
+    /**
+     * Number of the pack to which the scripts are appended.
+     */
+    private int currentPack;
+
+    /**
+     * Channel of the current pack, opened for writing.
+     */
+    private FileChannel currentChannel;
+
+    /**
+     * Size of the current pack, i.e. the offset of the next appended script.
+     */
+    private long currentSize;
+
+    /**
+     * Channels of the packs opened for reading, by the pack number.
+     */
+    private final Map<Integer,FileChannel> readers = new HashMap<>();
+
+    /**
+     * Number of the scripts in use in each pack, by the pack number.
+     */
+    private final Map<Integer,Integer> liveScripts = new HashMap<>();
+
+    /**
+     * Full packs whose scripts are no longer used, deleted by deleteEmptyPacks().
+     */
+    private final Set<Integer> emptyPacks = new HashSet<>();
+
+    /**
+     * Serialized scripts of the recently used versions.
+     */
+    private final ContentCache<DVersion> cache;
+
+    ContentCache<DVersion> getCache() {
+        return cache;
+    }
+
+    /**
+     * Opens the packs in "dir". New scripts are appended to the last pack, unless it is full.
+     * @param dir
+     * @param cache Keeps the recently used serialized scripts in memory.
+     * @throws IOException
+     */
+    ScriptStore(String dir, ContentCache<DVersion> cache) throws IOException {
+        this.dir = dir;
+        this.cache = cache;
+        int last = 0;
+        for (int pack : listPacks()){
+            last = Math.max(last, pack);
+        }
+        openPack(last);
+    }
+
+    /**
+     * Returns the numbers of the pack files in the home directory.
+     * @return
+     * @throws IOException
+     */
+    private List<Integer> listPacks() throws IOException{
+        List<Integer> res = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir), packPrefix + "*")){
+            for (Path p : stream){
+                String number = p.getFileName().toString().substring(packPrefix.length());
+                if (ServerUtils.isLong(number)){
+                    res.add(Integer.parseInt(number));
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Makes the pack "pack" the current pack, creating it if it does not exist.
+     * @param pack
+     * @throws IOException
+     */
+    private void openPack(int pack) throws IOException{
+        if (currentChannel != null){
+            currentChannel.force(false);
+            currentChannel.close();
+        }
+        currentPack = pack;
+        currentChannel = FileChannel.open(getPackPath(pack), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        currentSize = currentChannel.size();
+    }
+
+    private Path getPackPath(int pack){
+        return Paths.get(dir, String.format("%s%06d", packPrefix, pack));
+    }
+
+    /**
+     * Records the numbers of the scripts in use in the packs, as counted by the loaded database <br/>
+     * (see Database.getLiveScripts()), and deletes the packs, except the current one, <br/>
+     * which hold no script in use.
+     * @param counts
+     * @throws IOException
+     */
+    synchronized void register(Map<Integer,Integer> counts) throws IOException{
+        for (Entry<Integer,Integer> entry : counts.entrySet()){
+            if (entry.getValue() > 0){
+                liveScripts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (int pack : listPacks()){
+            if ((pack != currentPack) && !liveScripts.containsKey(pack)){
+                Files.deleteIfExists(getPackPath(pack));
+            }
+        }
+    }
+
+    /**
+     * Returns the script of "version", or null if there is none.
+     * @param version
+     * @return
+     * @throws IOException
+     */
+    EditScript get(DVersion version) throws IOException{
+        byte[] data = cache.get(version);
+        if (data == null){
+            long location = version.getScriptLocation();
+            if (location == -1){
+                return null;
+            }
+            data = readFromPack(location);
+            cache.put(version, data, 0, data.length);
+        }
+        Kryo kryo = new Kryo(null);
+        kryo.setAutoReset(true);
+        return kryo.readObject(new Input(data), EditScript.class, EditScript.getSerializer());
+    }
+
+    /**
+     * Reads the serialized script at "location".
+     * @param location
+     * @return
+     * @throws IOException If the pack is shorter than expected.
+     */
+    private byte[] readFromPack(long location) throws IOException{
+        FileChannel channel = getReader(BlockStore.getPack(location));
+        long position = BlockStore.getOffset(location);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, position);
+        length.flip();
+        ByteBuffer res = ByteBuffer.allocate(length.getInt());
+        readFully(channel, res, position + 4);
+        return res.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException{
+        while (dst.hasRemaining()){
+            if (channel.read(dst, position + dst.position()) == -1){
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Returns the channel for reading the pack "pack", opening it if needed.
+     * @param pack
+     * @return
+     * @throws IOException
+     */
+    private synchronized FileChannel getReader(int pack) throws IOException{
+        FileChannel res = readers.get(pack);
+        if (res == null){
+            res = FileChannel.open(getPackPath(pack), StandardOpenOption.READ);
+            readers.put(pack, res);
+        }
+        return res;
+    }
+
+    /**
+     * Saves "script" as the script of "version", replacing the previous one, if any. <br/>
+     * The script is appended to the current pack and its location is set in "version", <br/>
+     * so the version has to be written to the journal afterwards.
+     * @param version
+     * @param script
+     * @throws IOException
+     */
+    void put(DVersion version, EditScript script) throws IOException{
+        Output output = serialize(script);
+        long location;
+        synchronized (this){
+            if ((currentSize > 0) && (currentSize + 4 + output.position() > BlockStore.maxPackSize)){
+                int full = currentPack;
+                openPack(currentPack + 1);
+                if (!liveScripts.containsKey(full)){
+                    emptyPacks.add(full);
+                }
+            }
+            ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(output.position()).flip();
+            ByteBuffer[] buffers = new ByteBuffer[]{length, ByteBuffer.wrap(output.getBuffer(), 0, output.position())};
+            while (buffers[1].hasRemaining()){
+                currentChannel.write(buffers);
+            }
+            location = ((long) currentPack << BlockStore.offsetBits) | currentSize;
+            currentSize += 4 + output.position();
+            Integer count = liveScripts.get(currentPack);
+            liveScripts.put(currentPack, (count == null) ? 1 : count + 1);
+            release(version.getScriptLocation());
+        }
+        version.setScriptLocation(location);
+        cache.remove(version);
+        cache.put(version, output.getBuffer(), 0, output.position());
+    }
+
+    private static Output serialize(EditScript script){
+        Kryo kryo = new Kryo(null);
+        kryo.setAutoReset(true);
+        Output output = new Output(4096, -1);
+        kryo.writeObject(output, script, EditScript.getSerializer());
+        return output;
+    }
+
+    /**
+     * Releases the script of "version", which is deleted or no longer in script form. <br/>
+     * Its pack is deleted by deleteEmptyPacks() once none of its scripts is used.
+     * @param version
+     */
+    void remove(DVersion version){
+        cache.remove(version);
+        long location = version.getScriptLocation();
+        if (location != -1){
+            synchronized (this){
+                release(location);
+            }
+            version.setScriptLocation(-1);
+        }
+    }
+
+    /**
+     * Records that the script at "location" is no longer used. Must be called while holding <br/>
+     * the monitor of the store.
+     * @param location A location of a script, or -1.
+     */
+    private void release(long location){
+        if (location == -1){
+            return;
+        }
+        int pack = BlockStore.getPack(location);
+        Integer count = liveScripts.get(pack);
+        if ((count == null) || (count <= 1)){
+            liveScripts.remove(pack);
+            if (pack != currentPack){
+                emptyPacks.add(pack);
+            }
+        } else {
+            liveScripts.put(pack, count - 1);
+        }
+    }
+
+    /**
+     * Forces the scripts appended so far to the disc. Called before the journal is synced, <br/>
+     * so that no version in the journal refers to a script which has been lost.
+     * @throws IOException
+     */
+    synchronized void sync() throws IOException{
+        currentChannel.force(false);
+    }
+
+    /**
+     * Deletes the full packs whose scripts are no longer used. Called after the journal <br/>
+     * has been synced, so that the versions referring to them are not brought back by a crash.
+     * @throws IOException
+     */
+    void deleteEmptyPacks() throws IOException{
+        List<FileChannel> channels = new ArrayList<>();
+        List<Integer> packs;
+        synchronized (this){
+            packs = new ArrayList<>();
+            for (int pack : emptyPacks){
+                if (!liveScripts.containsKey(pack)){
+                    packs.add(pack);
+                    FileChannel reader = readers.remove(pack);
+                    if (reader != null){
+                        channels.add(reader);
+                    }
+                }
+            }
+            emptyPacks.clear();
+        }
+        for (FileChannel reader : channels){
+            reader.close();
+        }
+        for (int pack : packs){
+            Files.deleteIfExists(getPackPath(pack));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package cz.filipekt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Segmented LRU, resisting scans over data used only once. <br/>
+ * New entries are put into the probationary segment and moved into the protected segment <br/>
+ * when they are used again. Victims are taken from the probationary segment, in the order <br/>
+ * of the last use, so the entries of a single large upload or download evict each other <br/>
+ * instead of the protected ones, e.g. the bases of the scripted versions. <br/>
+ * The protected segment holds at most protectedRatio of the capacity, the least recently <br/>
+ * used entries above it are moved back to the probationary segment.
+ * @author Tomas Filipek
+ * @param <K> Type of the keys identifying the cached data.
+ */
+class SegmentedLruPolicy<K> implements EvictionPolicy<K> {
+
+    /**
+     * Name of the policy in the program arguments.
+     */
+    static final String name = "slru";
+
+    /**
+     * Part of the capacity of the cache which can be held by the protected segment.
+     */
+    private static final double protectedRatio = 0.8;
+
+    /**
+     * Maximal number of bytes of the entries in the protected segment.
+     */
+    private final long protectedCapacity;
+
+    /**
+     * Number of bytes of the entries in the protected segment.
+     */
+    private long protectedSize = 0;
+
+    /**
+     * The entries used only once since they were added or moved back, with their lengths, <br/>
+     * the least recently used first.
+     */
+    private final LinkedHashMap<K,Integer> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The entries used more than once, with their lengths, the least recently used first.
+     */
+    private final LinkedHashMap<K,Integer> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity The capacity of the cache, in bytes.
+     */
+    SegmentedLruPolicy(long capacity) {
+        this.protectedCapacity = (long) (capacity * protectedRatio);
+    }
+
+    @Override
+    public void added(K key, int length) {
+        probation.put(key, length);
+    }
+
+    @Override
+    public void accessed(K key) {
+        if (protectedEntries.get(key) != null){
+            return;
+        }
+        Integer length = probation.remove(key);
+        if (length == null){
+            return;
+        }
+        protectedEntries.put(key, length);
+        protectedSize += length;
+        Iterator<Entry<K,Integer>> it = protectedEntries.entrySet().iterator();
+        while (protectedSize > protectedCapacity){
+            Entry<K,Integer> eldest = it.next();
+            it.remove();
+            protectedSize -= eldest.getValue();
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    @Override
+    public void removed(K key) {
+        if (probation.remove(key) == null){
+            Integer length = protectedEntries.remove(key);
+            if (length != null){
+                protectedSize -= length;
+            }
+        }
+    }
+
+    @Override
+    public K victim() {
+        Iterator<K> it = probation.isEmpty() ? protectedEntries.keySet().iterator() : probation.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,173 @@
+package cz.filipekt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for the requests of all the idle connections in a single selector thread. <br/>
+ * Once a request arrives, the connection is removed from the selector and handed to a worker <br/>
+ * thread, which serves the request in blocking mode. Afterwards the connection is returned <br/>
+ * to the selector. Idle clients therefore do not occupy any thread.
+ * @author Tomas Filipek
+ */
+class SelectorConnectionEngine implements ConnectionEngine {
+
+    /**
+     * Threads serving the requests, only the connections with a request in progress use them.
+     */
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
+    /**
+     * Sessions whose request has been served, waiting to be registered with the selector again.
+     */
+    private final Queue<ClientSession> returning = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Watches the listening socket and the idle connections.
+     */
+    private Selector selector;
+
+    /**
+     * The listening socket.
+     */
+    private ServerSocketChannel serverChannel;
+
+    @Override
+    public void bind(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run(SessionHandler handler) throws IOException {
+        try {
+            while (true){
+                selector.select();
+                ClientSession session;
+                while ((session = returning.poll()) != null){
+                    register(session, handler);
+                }
+                List<ClientSession> ready = new ArrayList<>();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()){
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()){
+                        continue;
+                    }
+                    if (key.isAcceptable()){
+                        accept(handler);
+                    } else if (key.isReadable()){
+                        key.cancel();
+                        ready.add((ClientSession) key.attachment());
+                    }
+                }
+                if (!ready.isEmpty()){
+                    // deregisters the cancelled keys, so that the channels may be switched to blocking mode
+                    selector.selectNow();
+                    for (ClientSession s : ready){
+                        dispatch(s, handler);
+                    }
+                }
+            }
+        } finally {
+            selector.close();
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Accepts a new connection and registers it with the selector.
+     * @param handler
+     * @throws IOException If the listening socket fails.
+     */
+    private void accept(SessionHandler handler) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null){
+            return;
+        }
+        ClientSession session;
+        try {
+            session = handler.open(channel.socket());
+        } catch (IOException ex){
+            try {
+                channel.close();
+            } catch (IOException ex2) {
+                Logger.getLogger(SelectorConnectionEngine.class.getName()).log(Level.SEVERE, null, ex2);
+            }
+            return;
+        }
+        register(session, handler);
+    }
+
+    /**
+     * Switches the session to non-blocking mode and lets the selector wait for its next request.
+     * @param session
+     * @param handler
+     */
+    private void register(ClientSession session, SessionHandler handler){
+        try {
+            SocketChannel channel = session.getChannel();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, session);
+        } catch (IOException | RuntimeException ex){
+            handler.close(session, false);
+        }
+    }
+
+    /**
+     * Serves the pending request(s) of the session in a worker thread.
+     * @param session
+     * @param handler
+     */
+    private void dispatch(final ClientSession session, final SessionHandler handler){
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean finished = true;
+                boolean success = false;
+                try {
+                    session.getChannel().configureBlocking(true);
+                    boolean more;
+                    do {
+                        more = handler.serve(session);
+                    } while (more && session.hasBufferedInput());
+                    if (more){
+                        finished = false;
+                        returning.add(session);
+                        selector.wakeup();
+                    } else {
+                        success = true;
+                    }
+                } catch (IOException | RuntimeException ex){
+                    success = false;
+                } finally {
+                    if (finished){
+                        handler.close(session, success);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public String getName() {
+        return "selector";
+    }
+}
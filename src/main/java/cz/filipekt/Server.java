@@ -7,23 +7,29 @@ import cz.filipekt.diff.EditScript;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.ProtocolException;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -32,9 +38,23 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.ResourceBundle;
 import java.util.Set;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -113,7 +133,71 @@ public final class Server {
                 } catch (NumberFormatException ex) {}
             }            
             
-            Server server = new Server(portNum, br, homeDir, args, messages, blockSize, tooExpensive);
+            ConnectionEngine engine;
+            String engine1 = ServerUtils.getArgVal(args, "engine", false);
+            if ((engine1 != null) && engine1.equalsIgnoreCase("selector")){
+                engine = new SelectorConnectionEngine();
+            } else {
+                engine = new ThreadConnectionEngine();
+            }
+            int cpuWorkerCount = Server.defaultCpuWorkers;
+            String cpuWorkers1 = ServerUtils.getArgVal(args, "workers", false);
+            if (cpuWorkers1 != null){
+                try {
+                    cpuWorkerCount = Math.max(1, Integer.parseInt(cpuWorkers1));
+                } catch (NumberFormatException ex) {}
+            }
+            boolean parallelZip = ServerUtils.isSwitchPresent(args, "parallelzip");
+            double filterFpp = Server.defaultFilterFpp;
+            String filterFpp1 = ServerUtils.getArgVal(args, "fpp", false);
+            if (filterFpp1 != null){
+                try {
+                    double val = Double.parseDouble(filterFpp1);
+                    if ((val > 0) && (val < 1)){
+                        filterFpp = val;
+                    }
+                } catch (NumberFormatException ex) {}
+            }
+            boolean adaptiveBlockSize = ServerUtils.isSwitchPresent(args, "adaptive");
+            Chunker chunker = null;
+            String chunking1 = ServerUtils.getArgVal(args, "chunking", false);
+            if ((chunking1 != null) && chunking1.equalsIgnoreCase("cdc")){
+                int minChunk = blockSize / 4;
+                String minChunk1 = ServerUtils.getArgVal(args, "minchunk", false);
+                if (minChunk1 != null){
+                    try {
+                        minChunk = Integer.parseInt(minChunk1);
+                    } catch (NumberFormatException ex) {}
+                }
+                int maxChunk = blockSize * 8;
+                String maxChunk1 = ServerUtils.getArgVal(args, "maxchunk", false);
+                if (maxChunk1 != null){
+                    try {
+                        maxChunk = Integer.parseInt(maxChunk1);
+                    } catch (NumberFormatException ex) {}
+                }
+                chunker = new Chunker(minChunk, blockSize, maxChunk);
+            }
+            
+            long cacheSize = Server.defaultCacheSize;
+            String cacheSize1 = ServerUtils.getArgVal(args, "cache", false);
+            if (ServerUtils.isLong(cacheSize1)){
+                cacheSize = Math.max(0, Long.parseLong(cacheSize1));
+            }
+            long versionCacheSize = Server.defaultVersionCacheSize;
+            String versionCacheSize1 = ServerUtils.getArgVal(args, "versioncache", false);
+            if (ServerUtils.isLong(versionCacheSize1)){
+                versionCacheSize = Math.max(0, Long.parseLong(versionCacheSize1));
+            }
+            long scriptCacheSize = Server.defaultScriptCacheSize;
+            String scriptCacheSize1 = ServerUtils.getArgVal(args, "scriptcache", false);
+            if (ServerUtils.isLong(scriptCacheSize1)){
+                scriptCacheSize = Math.max(0, Long.parseLong(scriptCacheSize1));
+            }
+            String cachePolicy = ServerUtils.getArgVal(args, "cachepolicy", false);
+            
+            Server server = new Server(portNum, br, homeDir, args, messages, blockSize, tooExpensive, engine, cpuWorkerCount, 
+                    parallelZip, filterFpp, chunker, adaptiveBlockSize, cacheSize, versionCacheSize, scriptCacheSize, cachePolicy);
             long grantedSpace = server.getReservedSpace();
             if (grantedSpace == 0L){
                 System.out.println(messages.getString("granted_space") + " " + messages.getString("unlimited"));
@@ -121,7 +205,23 @@ public final class Server {
                 System.out.println(messages.getString("granted_space") + " " + server.getReservedSpace() + " " + "B");            
             }
             System.out.println(messages.getString("block_size") + ": " + blockSize + "B");
+            System.out.println(messages.getString("adaptive_block_size") + ": " + messages.getString(adaptiveBlockSize ? "yes" : "no"));
+            if (chunker == null){
+                System.out.println(messages.getString("chunking") + ": " + messages.getString("chunking_fixed"));
+            } else {
+                System.out.println(messages.getString("chunking") + ": " + messages.getString("chunking_cdc") + " " 
+                        + chunker.getMinSize() + "B - " + chunker.getMaxSize() + "B");
+            }
             System.out.println(messages.getString("middle_snake_limit") + ": " + tooExpensive + " " + messages.getString("operations"));
+            System.out.println(messages.getString("connection_engine") + ": " + engine.getName());
+            System.out.println(messages.getString("cpu_workers") + ": " + cpuWorkerCount);
+            System.out.println(messages.getString("parallel_zip") + ": " + messages.getString(parallelZip ? "yes" : "no"));
+            System.out.println(messages.getString("filter_fpp") + ": " + filterFpp);
+            System.out.println(messages.getString("block_cache") + ": " + cacheSize + "B");
+            System.out.println(messages.getString("version_cache") + ": " + versionCacheSize + "B");
+            System.out.println(messages.getString("script_cache") + ": " + scriptCacheSize + "B");
+            System.out.println(messages.getString("cache_policy") + ": " 
+                    + messages.getString("cache_policy_" + server.blockStore.getCache().getPolicy().getName()));
             server.start();            
         }                        
     }
@@ -143,10 +243,44 @@ public final class Server {
     
     /**
      * Represents the filesystem of the files committed to the system <br/>
-     * The actual data are not saved here, they are stored in separate files on disc instead
+     * The actual data are not saved here, they are stored in the packs of "blockStore" instead
      */
     private final Database db;
     
+    /**
+     * Keeps the contents of the blocks of "db".
+     */
+    private final BlockStore blockStore;
+    
+    /**
+     * Log of the changes of "db" since the last checkpoint.
+     */
+    private final Journal journal;
+    
+    /**
+     * Once this many bytes have been written to the journal, a checkpoint is started at the end <br/>
+     * of a connection, so that the journal does not grow without limit.
+     */
+    private static final long checkpointThreshold = 1L << 26;
+    
+    /**
+     * Writes the checkpoints in the background, one at a time. <br/>
+     * Its thread is a daemon, the server waits for it in stopCheckpoints() when exiting.
+     */
+    private final ExecutorService checkpointWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread res = new Thread(r, "checkpoint");
+            res.setDaemon(true);
+            return res;
+        }
+    });
+    
+    /**
+     * Set while a checkpoint is being written.
+     */
+    private final AtomicBoolean checkpointRunning = new AtomicBoolean(false);
+    
     /**
      * Size (in bytes) of the HDD space reserved for the application
      */
@@ -157,9 +291,22 @@ public final class Server {
     }
     
     /**
-     * Thread pool for serving user requests.
+     * Accepts the connections and assigns threads to them.
+     */
+    private final ConnectionEngine engine;
+    
+    /**
+     * Bounded pool for the CPU-heavy computations (hashing of new blocks, diffing). <br/>
+     * The tasks submitted here must not acquire any lock, otherwise they could wait <br/>
+     * for a thread which waits for them.
+     */
+    private final ExecutorService cpuWorkers;
+    
+    /**
+     * Reconstructs and compresses the entries of directory zip exports in parallel, <br/>
+     * or null if the entries are compressed one by one in the serving thread.
      */
-    private final Executor threadPool;
+    private final ForkJoinPool zipPool;
     
     /**
      * Amount of hdd space that will always be left free by this application.
@@ -167,8 +314,12 @@ public final class Server {
     private final long spaceNotUsed;
     
     private Server(int port, BufferedReader stdin, String homeDir, String[] args, 
-            ResourceBundle messages, int blockSize, int tooExpensiveSnake) throws IOException, ClassNotFoundException{
+            ResourceBundle messages, int blockSize, int tooExpensiveSnake, ConnectionEngine engine, int cpuWorkerCount, 
+            boolean parallelZip, double filterFpp, Chunker chunker, boolean adaptiveBlockSize, long cacheSize, long versionCacheSize, 
+            long scriptCacheSize, String cachePolicy) throws IOException, ClassNotFoundException{
         this.listening_port = port;
+        this.chunker = chunker;
+        this.adaptiveBlockSize = adaptiveBlockSize;
         this.tooExpensiveSnake = tooExpensiveSnake;
         this.blockSize = blockSize;
         this.stdin = stdin;        
@@ -179,12 +330,39 @@ public final class Server {
         }        
         Files.createDirectories(Paths.get(home_dir));
         this.spaceNotUsed = Files.getFileStore(Paths.get(this.home_dir)).getUsableSpace() / 10;
+        boolean legacyIndex = isLegacyIndex();
         db = loadDB();                    
-        scripts = loadScripts();
+        scripts = new ScriptStore(home_dir, ContentCache.<DVersion>create(scriptCacheSize, cachePolicy));
+        if (legacyIndex){
+            migrateScripts();
+        }
+        if (Journal.replay(home_dir, db.getJournalStart(), Long.MAX_VALUE, db, true) > 0){
+            db.finishReplay();
+        }
+        scripts.register(db.getLiveScripts());
+        journal = new Journal(home_dir, db.getJournalStart());
+        if (legacyIndex){
+            scripts.sync();
+            long end = journal.startCheckpoint();
+            db.setJournalStart(end);
+            saveDB(db);
+            journal.deleteSegmentsBefore(end);
+            Files.deleteIfExists(Paths.get(home_dir, scriptsFileName));
+        }
+        deleteOldIndexes(getIndexPath());
+        blockStore = new BlockStore(home_dir, ContentCache.<StrongHash>create(cacheSize, cachePolicy));
+        for (DBlock block : db.getBlockMap().values()){
+            blockStore.register(block);
+        }
+        blockStore.deleteUnusedPacks();
+        versionCache = ContentCache.create(versionCacheSize, cachePolicy);
         reservedSpace = computeReservedSpace(args);
-        zipBuffer = new ByteArrayOutputStream();
         this.messages = messages;
-        this.threadPool = java.util.concurrent.Executors.newCachedThreadPool();
+        this.engine = engine;
+        this.cpuWorkerCount = cpuWorkerCount;
+        this.filterFpp = filterFpp;
+        this.cpuWorkers = Executors.newFixedThreadPool(cpuWorkerCount);
+        this.zipPool = parallelZip ? new ForkJoinPool(cpuWorkerCount) : null;
     }    
     
     /**
@@ -204,333 +382,549 @@ public final class Server {
         }
     }
     
+    /**
+     * Prints the hits, misses and evictions of the block cache, the version cache and the script cache so far.
+     */
+    private void printCacheStats(){
+        printCacheStats("block_cache", blockStore.getCache());
+        printCacheStats("version_cache", versionCache);
+        printCacheStats("script_cache", scripts.getCache());
+    }
+    
+    private void printCacheStats(String name, ContentCache<?> cache){
+        System.out.println(messages.getString(name) + ": " + cache.getHits() + " " + messages.getString("cache_hits") 
+                + ", " + cache.getMisses() + " " + messages.getString("cache_misses") + ", " + cache.getEvictions() + " " 
+                + messages.getString("cache_evictions") + ", " + cache.getSize() + "B / " + cache.getCapacity() + "B");
+    }
+    
     /**
      * Begins to listen on the listening port and serves the clients
      */
     private void start() {
-        try(final ServerSocket server_socket = new ServerSocket(listening_port)) {
-            System.out.println(messages.getString("accepting_on_port") + " " + listening_port + " ...");
-            while(true){
-                final Socket socket = server_socket.accept();
-                if (socket != null){
-                    threadPool.execute(new Runnable() {
-                        @Override
-                        public void run() {                                                        
-                            try {                                
-                                System.out.println(messages.getString("conn_acc_with") + " " + socket.getInetAddress().getHostAddress());                    
-                                serveClient(socket);
-                                saveState();
-                                System.out.println(messages.getString("conn_term_with") + " " + socket.getInetAddress().getHostAddress());
-                            } catch (IOException | NoSuchAlgorithmException ex){
-                                System.err.println(messages.getString("client_at") + " "  + socket.getInetAddress().getHostAddress() + " " + messages.getString("couldnt_be_served"));                                
-                            } finally {                                
-                                try {
-                                    socket.close();
-                                } catch (IOException ex) {
-                                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                                }                                
-                            }
-                        }
-                    });             
-                }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                stopCheckpoints();
             }
+        });
+        try {
+            engine.bind(listening_port);
+            System.out.println(messages.getString("accepting_on_port") + " " + listening_port + " ...");
+            engine.run(new ServerSessionHandler());
         } catch (IOException ex) {                            
             System.err.println(messages.getString("socket_not_ack") + " " + ex.getLocalizedMessage());
-        }                            
+        } finally {
+            stopCheckpoints();
+        }
+    }
+    
+    /**
+     * Lets the checkpoint being written, if any, finish, and stops checkpointWorker. <br/>
+     * A checkpoint cut off by the exit would be harmless, as it replaces the index only once <br/>
+     * it is complete, but the journal segments it contains would have to be replayed again.
+     */
+    private void stopCheckpoints(){
+        checkpointWorker.shutdown();
+        try {
+            checkpointWorker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Serves the connections accepted by the connection engine.
+     */
+    private class ServerSessionHandler implements SessionHandler {
+
+        @Override
+        public ClientSession open(Socket socket) throws IOException {
+            System.out.println(messages.getString("conn_acc_with") + " " + socket.getInetAddress().getHostAddress());
+            try {
+                return new ClientSession(socket);
+            } catch (IOException ex){
+                System.err.println(messages.getString("client_at") + " "  + socket.getInetAddress().getHostAddress() + " " + messages.getString("couldnt_be_served"));
+                throw ex;
+            }
+        }
+
+        @Override
+        public boolean serve(ClientSession session) throws IOException {
+            try {
+                return serveRequest(session);
+            } catch (NoSuchAlgorithmException ex){
+                throw new IOException(ex);
+            }
+        }
+
+        @Override
+        public void close(ClientSession session, boolean success) {
+            try {
+                if (success){
+                    saveState();
+                    System.out.println(messages.getString("conn_term_with") + " " + session.getHostAddress());
+                    printCacheStats();
+                } else {
+                    System.err.println(messages.getString("client_at") + " "  + session.getHostAddress() + " " + messages.getString("couldnt_be_served"));
+                }
+            } finally {
+                try {
+                    session.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Guards the store as a whole. Requests working with individual files hold the read lock, <br/>
+     * operations which may touch any file or block (garbage collection, deleting versions) <br/>
+     * hold the write lock. <br/>
+     * Locks are always acquired in this order: storeLock, fileLocks, blockLocks, and finally <br/>
+     * the monitors of Journal, Database, DDirectory, DFile and DVersion objects.
+     */
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    
+    /**
+     * Locks of the individual files, keyed by the file path. <br/>
+     * Readers of a file hold the read lock, whoever changes the file's versions holds the write lock.
+     */
+    private final StripedLock fileLocks = new StripedLock(lockStripes);
+    
+    /**
+     * Locks of the individual blocks, keyed by the strong hash of the block. 
+     */
+    private final StripedLock blockLocks = new StripedLock(lockStripes);
+    
+    /**
+     * Number of stripes used by fileLocks and blockLocks.
+     */
+    private static final int lockStripes = 256;
+    
+    /**
+     * Acquires the write lock of storeLock. <br/>
+     * Must not be called while holding the read lock of storeLock, a file lock or a block lock: <br/>
+     * the read lock can not be upgraded, and releasing it for a while would let the write lock <br/>
+     * holder change what the caller relies on.
+     */
+    private void lockStore(){
+        if (!storeLock.isWriteLockedByCurrentThread() && (storeLock.getReadHoldCount() > 0)){
+            throw new IllegalMonitorStateException();
+        }
+        storeLock.writeLock().lock();
+    }
+    
+    /**
+     * Releases the write lock acquired by lockStore().
+     */
+    private void unlockStore(){
+        storeLock.writeLock().unlock();
     }
     
     /**
-     * Lock object is used for synchronization.
+     * Returns the lock of the file specified by its path.
+     * @param path
+     * @return 
      */
-    private final Object lockObject = new Object();   
+    private ReadWriteLock getFileLock(List<String> path){
+        return fileLocks.get(ServerUtils.constructPath(path));
+    }
     
     /**
      * Saves database data to a persistent storage
      */
     private void saveState(){
-        synchronized(lockObject){
-            saveDB();        
-            saveScripts();
+        try {
+            blockStore.sync();
+            scripts.sync();
+            journal.sync();
+            scripts.deleteEmptyPacks();
+            if ((journal.getWritten() >= checkpointThreshold) && checkpointRunning.compareAndSet(false, true)){
+                final long end = journal.startCheckpoint();
+                checkpointWorker.execute(new Runnable(){
+                    @Override
+                    public void run() {
+                        try {
+                            checkpoint(end);
+                        } catch (IOException | ClassNotFoundException ex){
+                            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+                        } finally {
+                            checkpointRunning.set(false);
+                        }
+                    }
+                });
+            }
+        } catch (IOException ex){
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
     /**
-     * Serves the client connected with "socket"
-     * @param socket
+     * Saves the database as it was when the journal segment "end" was started, <br/>
+     * so that the segments before it are no longer needed. <br/>
+     * The live structures are not touched, so the requests go on while the checkpoint is written. <br/>
+     * Instead, the previous checkpoint is loaded and the segments before "end" are replayed on it, <br/>
+     * which gives a consistent snapshot. The copied state is not decoded in full: it holds the block <br/>
+     * table and the directory tree, i.e. memory linear in the number of blocks and files, and <br/>
+     * the versions of only those files which are changed by the replayed segments. As a checkpoint <br/>
+     * is started once checkpointThreshold bytes of the journal have been written, those are bounded <br/>
+     * by it. The versions of the other files are copied undecoded from the previous checkpoint. <br/>
+     * Afterwards, the files of the live database whose versions have not been decoded yet are <br/>
+     * switched to the new checkpoint, so that the previous one is not mapped anymore and can be deleted. <br/>
+     * The scripts are not part of the checkpoint, ScriptStore saves each of them right away.
+     * @param end The number returned by Journal.startCheckpoint().
      * @throws IOException 
+     * @throws ClassNotFoundException 
      */
-    private void serveClient(Socket socket) throws IOException, NoSuchAlgorithmException{
-        OutputStream rout = socket.getOutputStream();
-        InputStream rin = socket.getInputStream();        
-        Kryo kryo = new Kryo(null);
-        kryo.setAutoReset(true);
-        try (Output kryo_out = new Output(rout); Input kryo_in = new Input(rin)) {
-            Vnejsi:
-            while(true){
-                try {                
-                    Requests action_type = kryo.readObject(kryo_in, Requests.class);
-                    List<String> fname;
-                    long size;
-                    switch(action_type){
-                        case ITEM_EXISTS:
-                            fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            kryo_out.writeBoolean(db.itemExists(fname));
-                            kryo_out.flush();
-                            break;
-                        case DEL_VERS:                            
-                            fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            int versionIndex = kryo_in.readInt();
-                            synchronized (lockObject){
-                                DItem item = db.getItem(fname);
-                                if ((item == null) || item.isDir()){
-                                    kryo_out.writeBoolean(false);
-                                } else {
-                                    try {
-                                        DFile file = (DFile) item;
-                                        safelyDeleteVersion(file, versionIndex);
-                                        kryo_out.writeBoolean(true);
-                                    } catch (BlockNotFound | NotEnoughSpaceOnDisc | 
-                                            TooFewVersions | VersionNotFoundException ex){
-                                        kryo_out.writeBoolean(false);
-                                    }
-                                }
-                                kryo_out.flush();
-                                saveState();
+    private void checkpoint(long end) throws IOException, ClassNotFoundException{
+        Database snapshot = loadDB();
+        if (snapshot == null){
+            return;
+        }
+        if (Journal.replay(home_dir, snapshot.getJournalStart(), end, snapshot, false) > 0){
+            snapshot.finishReplay();
+        }
+        snapshot.setJournalStart(end);
+        Path f = saveDB(snapshot);
+        MappedIndex.rebase(f, db);
+        deleteOldIndexes(f);
+        journal.deleteSegmentsBefore(end);
+    }
+    
+    /**
+     * Reads and serves a single request of the client.
+     * @param session The connection to the client.
+     * @return False if the client has finished.
+     * @throws IOException If the request could not be served, the connection can not be used anymore.
+     */
+    private boolean serveRequest(ClientSession session) throws IOException, NoSuchAlgorithmException{
+        Kryo kryo = session.getKryo();
+        Output kryo_out = session.getOutput();
+        Input kryo_in = session.getInput();
+        try {                
+            Requests action_type = kryo.readObject(kryo_in, Requests.class);
+            List<String> fname;
+            long size;
+            switch(action_type){
+                case ITEM_EXISTS:
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    kryo_out.writeBoolean(db.getSnapshot().itemExists(fname));
+                    kryo_out.flush();
+                    break;
+                case DEL_VERS:                            
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    int versionIndex = kryo_in.readInt();
+                    lockStore();
+                    try {
+                        DItem item = db.getItem(fname);
+                        if ((item == null) || item.isDir()){
+                            kryo_out.writeBoolean(false);
+                        } else {
+                            try {
+                                DFile file = (DFile) item;
+                                safelyDeleteVersion(file, versionIndex);
+                                kryo_out.writeBoolean(true);
+                            } catch (BlockNotFound | NotEnoughSpaceOnDisc | 
+                                    TooFewVersions | VersionNotFoundException ex){
+                                kryo_out.writeBoolean(false);
                             }
-                            break;
-                        case CREAT_FILE:
-                            size = kryo_in.readLong();
-                            boolean checkSize = kryo_in.readBoolean();
-                            fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            if (checkSize){
-                                if (size < getAvailableSpace()){
-                                    db.addFile(fname);
-                                    kryo_out.writeBoolean(true);
-                                } else {                                
-                                    removeOldItems(null);                                                                    
-                                    if (size < getAvailableSpace()){
-                                        db.addFile(fname);
-                                        kryo_out.writeBoolean(true);
-                                    } else {
-                                        kryo_out.writeBoolean(false);
-                                    }                            
-                                }
-                                kryo_out.flush();
+                        }
+                        kryo_out.flush();
+                        saveState();
+                    } finally {
+                        unlockStore();
+                    }
+                    break;
+                case CREAT_FILE:
+                    size = kryo_in.readLong();
+                    boolean checkSize = kryo_in.readBoolean();
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    if (checkSize){
+                        if (size < getAvailableSpace()){
+                            createFile(fname);
+                            kryo_out.writeBoolean(true);
+                        } else {                                
+                            removeOldItems(null);                                                                    
+                            if (size < getAvailableSpace()){
+                                createFile(fname);
+                                kryo_out.writeBoolean(true);
                             } else {
-                                db.addFile(fname);
+                                kryo_out.writeBoolean(false);
                             }                            
-                            break;
-                        case CHECK_CHANGES:
-                            fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            String contentHash = kryo_in.readString();
-                            DFile file = db.findFile(fname);
-                            if (file != null){
-                                DVersion latestVersion = file.getLatestVersion();
-                                if (latestVersion == null){
-                                    kryo_out.writeBoolean(true);
-                                } else {
-                                    kryo_out.writeBoolean(!latestVersion.getContentHash().equals(contentHash));
-                                }                                                                                                
+                        }
+                        kryo_out.flush();
+                    } else {
+                        createFile(fname);
+                    }                            
+                    break;
+                case CHECK_CHANGES:
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    String contentHash = kryo_in.readString();
+                    DFile file = db.getSnapshot().findFile(fname);
+                    if (file != null){
+                        DVersion latestVersion = file.getLatestVersion();
+                        if (latestVersion == null){
+                            kryo_out.writeBoolean(true);
+                        } else {
+                            kryo_out.writeBoolean(!latestVersion.getContentHash().equals(contentHash));
+                        }                                                                                                
+                        kryo_out.flush();
+                    }
+                    break;
+                case CREAT_VERS:                                   
+                    checkSize = kryo_in.readBoolean();
+                    size = kryo_in.readLong(); 
+                    int bsize = getBlockSize(size);
+                    kryo_out.writeInt(bsize);
+                    Chunker fileChunker = getChunker(bsize);
+                    kryo_out.writeBoolean(fileChunker != null);
+                    if (fileChunker != null){
+                        kryo_out.writeInt(fileChunker.getMinSize());
+                        kryo_out.writeInt(fileChunker.getMaxSize());
+                    }
+                    kryo_out.flush();
+                    if (checkSize){
+                        if (size < getAvailableSpace()){
+                            kryo_out.writeBoolean(true);
+                        } else {                                
+                            removeOldItems(null);                                                                    
+                            if (size >= getAvailableSpace()){
+                                kryo_out.writeBoolean(false);
                                 kryo_out.flush();
+                                break;
+                            } else {
+                                kryo_out.writeBoolean(true);
                             }
-                            break;
-                        case CREAT_VERS:                                   
-                            checkSize = kryo_in.readBoolean();
-                            size = kryo_in.readLong(); 
-                            int bsize = getBlockSize(size);
-                            kryo_out.writeInt(bsize);
-                            kryo_out.flush();
-                            if (checkSize){
-                                synchronized (lockObject){
-                                    if (size < getAvailableSpace()){
-                                        kryo_out.writeBoolean(true);
-                                    } else {                                
-                                        removeOldItems(null);                                                                    
-                                        if (size >= getAvailableSpace()){
-                                            kryo_out.writeBoolean(false);
-                                            kryo_out.flush();
-                                            break;
-                                        } else {
-                                            kryo_out.writeBoolean(true);
-                                        }
-                                    }
-                                }
-                                kryo_out.flush();
-                            }                            
-                            fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            contentHash = kryo_in.readString();
-                            List<DBlock> new_blocks;
-                            List<DBlock> block_list = new ArrayList<>();    
-                            Collection<Boolean> newBlocksIndicator = new HashSet<>();
-                            synchronized (lockObject){
-                                do{
-                                    new_blocks = loadBlock(kryo_in, kryo_out, bsize, newBlocksIndicator);
-                                    if (new_blocks==null) {
-                                        break;
-                                    }
-                                    if (!new_blocks.isEmpty()) {
-                                        for (DBlock block : new_blocks){
-                                            block_list.add(block);
-                                        }
-                                    }
-                                } while (true);           
-                                boolean newBlocksAdded = false;
-                                if (!newBlocksIndicator.isEmpty() && (newBlocksIndicator.iterator().next() == true)){
-                                    newBlocksAdded = true;
-                                }                                                          
-                                file = db.findFile(fname);
-                                DVersion version = new DVersion(block_list, bsize, file.getName(), contentHash, size); 
-                                ServerUtils.linkBlocksToVersion(version);
-                                if (file.blockVersionExists() && newBlocksAdded){                                                                
-                                    DVersion base = file.getLatestNonScript();
-                                    transformBlocksToScript(base, version, true);
+                        }
+                        kryo_out.flush();
+                    }                            
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    contentHash = kryo_in.readString();
+                    List<DBlock> new_blocks;
+                    List<DBlock> block_list = new ArrayList<>();    
+                    Collection<Boolean> newBlocksIndicator = new HashSet<>();
+                    Collection<Boolean> noSpaceIndicator = new HashSet<>();
+                    List<DBlock> pinned = new ArrayList<>();
+                    try {
+                        do{
+                            new_blocks = loadBlock(kryo_in, kryo_out, bsize, newBlocksIndicator, noSpaceIndicator, pinned);
+                            if (new_blocks==null) {
+                                break;
+                            }
+                            if (!new_blocks.isEmpty()) {
+                                for (DBlock block : new_blocks){
+                                    block_list.add(block);
                                 }
-                                file.addVersion(version);
-                                kryo_out.writeBoolean(true);
-                                kryo_out.flush();  
                             }
+                        } while (true);           
+                        if (!noSpaceIndicator.isEmpty()){
+                            kryo_out.writeBoolean(false);
+                            kryo_out.flush();
                             break;
-                        case GET_FILE:
-                            fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            versionIndex = kryo_in.readInt();
-                            synchronized (lockObject){
-                                DFile ds = db.findFile(fname);
-                                if (ds == null){
+                        }
+                        boolean newBlocksAdded = false;
+                        if (!newBlocksIndicator.isEmpty() && (newBlocksIndicator.iterator().next() == true)){
+                            newBlocksAdded = true;
+                        }                                                          
+                        storeLock.readLock().lock();
+                        ReadWriteLock fileLock = getFileLock(fname);
+                        fileLock.writeLock().lock();
+                        try {
+                            file = db.findFile(fname);
+                            DVersion version = new DVersion(block_list, bsize, file.getName(), contentHash, size); 
+                            ServerUtils.linkBlocksToVersion(version);
+                            if (file.blockVersionExists() && newBlocksAdded){                                                                
+                                DVersion base = file.getLatestNonScript();
+                                transformBlocksToScript(base, version, true);
+                            }
+                            file.addVersion(version);
+                            logVersion(file, version);
+                            db.publish(fname);
+                        } finally {
+                            fileLock.writeLock().unlock();
+                            storeLock.readLock().unlock();
+                        }
+                    } finally {
+                        db.unpinBlocks(pinned);
+                    }
+                    kryo_out.writeBoolean(true);
+                    kryo_out.flush();  
+                    break;
+                case GET_FILE:
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    versionIndex = kryo_in.readInt();
+                    storeLock.readLock().lock();
+                    ReadWriteLock fileLock = getFileLock(fname);
+                    fileLock.readLock().lock();
+                    try {
+                        DFile ds = db.findFile(fname);
+                        if (ds == null){
+                            kryo_out.writeBoolean(false);
+                        } else {
+                            if ((versionIndex >= ds.getVersionCount()) || !fitsInArray(ds, versionIndex)){
+                                kryo_out.writeBoolean(false);
+                            } else {
+                                kryo_out.writeBoolean(true);
+                                byte[] res = serveGet(ds, versionIndex);
+                                kryo.writeObject(kryo_out, res);                                        
+                            }                                    
+                        } 
+                        kryo_out.flush();
+                    } finally {
+                        fileLock.readLock().unlock();
+                        storeLock.readLock().unlock();
+                    }
+                    break;
+                case GET_FILE_STREAM:
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    versionIndex = kryo_in.readInt();
+                    storeLock.readLock().lock();
+                    fileLock = getFileLock(fname);
+                    fileLock.readLock().lock();
+                    try {
+                        DFile ds = db.findFile(fname);
+                        if ((ds == null) || (versionIndex < 0) || (versionIndex >= ds.getVersionCount())){
+                            kryo_out.writeBoolean(false);
+                        } else {
+                            kryo_out.writeBoolean(true);
+                            serveGetStream(ds, versionIndex, kryo_out, session.getChannel());
+                        } 
+                        kryo_out.flush();
+                    } finally {
+                        fileLock.readLock().unlock();
+                        storeLock.readLock().unlock();
+                    }
+                    break;
+                case END:
+                    return false;
+                case CREAT_DIR:
+                    size = kryo_in.readLong();
+                    checkSize = kryo_in.readBoolean();
+                    List<String> path = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    if (checkSize){
+                        if (size < getAvailableSpace()){                                
+                            createDirs(path);    
+                            kryo_out.writeBoolean(true);
+                        } else {                                
+                            removeOldItems(null);                                                                    
+                            if (size < getAvailableSpace()){
+                                createDirs(path);    
+                                kryo_out.writeBoolean(true);
+                            } else {
+                                kryo_out.writeBoolean(false);
+                            }                                  
+                        }
+                        kryo_out.flush();
+                    } else {
+                        createDirs(path);
+                    }                           
+                    break;
+                case GET_ZIP:
+                    fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                    versionIndex = kryo_in.readInt();
+                    storeLock.readLock().lock();
+                    try {
+                        DItem item = db.getItem(fname);
+                        if (item == null){
+                            kryo_out.writeBoolean(false);                                      
+                        } else {
+                            HashMap<DItem,String> fileList = new HashMap<>();
+                            getAllFiles(item, fileList, "");                                
+                            if ((fileList.size() == 1) && (!fileList.keySet().iterator().next().isDir())){                                            
+                                if (versionIndex >= ((DFile)fileList.keySet().iterator().next()).getVersionCount()){
                                     kryo_out.writeBoolean(false);
                                 } else {
-                                    if (versionIndex >= ds.getVersionCount()){
-                                        kryo_out.writeBoolean(false);
-                                    } else {
-                                        kryo_out.writeBoolean(true);
-                                        byte[] res = serveGet(ds, versionIndex);
-                                        kryo.writeObject(kryo_out, res);                                        
-                                    }                                    
-                                } 
-                                kryo_out.flush();
-                            }
-                            break;
-                        case END:
-                            break Vnejsi;
-                        case CREAT_DIR:
-                            size = kryo_in.readLong();
-                            checkSize = kryo_in.readBoolean();
-                            List<String> path = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            if (checkSize){
-                                if (size < getAvailableSpace()){                                
-                                    db.makeDirs(path);    
                                     kryo_out.writeBoolean(true);
-                                } else {                                
-                                    removeOldItems(null);                                                                    
-                                    if (size < getAvailableSpace()){
-                                        db.makeDirs(path);    
-                                        kryo_out.writeBoolean(true);
-                                    } else {
-                                        kryo_out.writeBoolean(false);
-                                    }                                  
+                                    serveZipStream(fileList, versionIndex, kryo_out);
                                 }
-                                kryo_out.flush();
                             } else {
-                                db.makeDirs(path);
-                            }                           
-                            break;
-                        case GET_ZIP:
-                            fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                            versionIndex = kryo_in.readInt();
-                            synchronized (lockObject){
-                                DItem item = db.getItem(fname);
-                                if (item == null){
-                                    kryo_out.writeBoolean(false);                                      
+                                kryo_out.writeBoolean(true);
+                                if ((zipPool != null) && fitsParallelZip(fileList)){
+                                    serveParallelZipStream(fileList, kryo_out);
                                 } else {
-                                    HashMap<DItem,String> fileList = new HashMap<>();
-                                    getAllFiles(item, fileList, "");                                
-                                    synchronized (zipBuffer) {
-                                        if ((fileList.size() == 1) && (!fileList.keySet().iterator().next().isDir())){                                            
-                                            if (versionIndex >= ((DFile)fileList.keySet().iterator().next()).getVersionCount()){
-                                                kryo_out.writeBoolean(false);
-                                                kryo_out.flush();
-                                                break;
-                                            } else {
-                                                writeToZipBuffer(fileList, versionIndex);
-                                            }
-                                        } else {
-                                            writeToZipBuffer(fileList, -1);
-                                        }    
-                                        kryo_out.writeBoolean(true);
-                                        kryo.writeObject(kryo_out, zipBuffer.toByteArray());                                        
-                                        zipBuffer.reset();
-                                    }
+                                    serveZipStream(fileList, -1, kryo_out);
                                 }
-                                kryo_out.flush();
-                            }
-                            break;
-                        case GC:
-                            synchronized (lockObject){
-                                collect_blocks();
-                            }
-                            break;
-                        case GET_D_ITEM:  
-                            synchronized (lockObject){
-                                fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
-                                DItem item = db.getItem(fname);
-                                if (item == null){
-                                    kryo_out.writeByte((byte)0);
-                                } else {
-                                    if (item.isDir()){
-                                        kryo_out.writeByte((byte)1);
-                                        DDirectory dir = (DDirectory)item;
-                                        kryo.writeObject(kryo_out, dir, DDirectory.getSerializer());
-                                    } else {
-                                        kryo_out.writeByte((byte)2);
-                                        file = (DFile)item;
-                                        kryo.writeObject(kryo_out, file, DFile.getSerializer());
-                                    }
-                                }                                
-                                kryo_out.flush();                            
+                            }    
+                        }
+                        kryo_out.flush();
+                    } finally {
+                        storeLock.readLock().unlock();
+                    }
+                    break;
+                case GC:
+                    lockStore();
+                    try {
+                        collect_blocks();
+                    } finally {
+                        unlockStore();
+                    }
+                    break;
+                case GET_D_ITEM:  
+                    {
+                        fname = Arrays.asList(kryo.readObject(kryo_in, String[].class));
+                        DItem item = db.getSnapshot().getItem(fname);
+                        if (item == null){
+                            kryo_out.writeByte((byte)0);
+                        } else {
+                            if (item.isDir()){
+                                kryo_out.writeByte((byte)1);
+                                DDirectory dir = (DDirectory)item;
+                                kryo.writeObject(kryo_out, dir, DDirectory.getSerializer());
+                            } else {
+                                kryo_out.writeByte((byte)2);
+                                file = (DFile)item;
+                                kryo.writeObject(kryo_out, file, DFile.getSerializer());
                             }
-                            break;
-                        case GET_FS:     
-                            synchronized (lockObject){
-                                Map<String,DItem> fileMap = db.getFileMap();
-                                if (fileMap == null){
-                                    kryo_out.writeInt(0);
+                        }                                
+                        kryo_out.flush();                            
+                    }
+                    break;
+                case GET_FS:     
+                    {
+                        Map<String,DItem> fileMap = db.getSnapshot().getFileMap();
+                        if (fileMap == null){
+                            kryo_out.writeInt(0);
+                        } else {
+                            kryo_out.writeInt(fileMap.size());
+                            for (Entry<String,DItem> entry : fileMap.entrySet()){
+                                kryo_out.writeString(entry.getKey());
+                                boolean isDir = entry.getValue().isDir();
+                                kryo_out.writeBoolean(isDir);
+                                if (isDir){
+                                    kryo.writeObject(kryo_out, entry.getValue(), DDirectory.getSerializer());
                                 } else {
-                                    kryo_out.writeInt(fileMap.size());
-                                    for (Entry<String,DItem> entry : fileMap.entrySet()){
-                                        kryo_out.writeString(entry.getKey());
-                                        boolean isDir = entry.getValue().isDir();
-                                        kryo_out.writeBoolean(isDir);
-                                        if (isDir){
-                                            kryo.writeObject(kryo_out, entry.getValue(), DDirectory.getSerializer());
-                                        } else {
-                                            kryo.writeObject(kryo_out, entry.getValue(), DFile.getSerializer());
-                                        }
-                                    }
+                                    kryo.writeObject(kryo_out, entry.getValue(), DFile.getSerializer());
                                 }
-                                kryo_out.flush();                            
                             }
-                            break;
-                        case GET_SERVER_BLOCKS:   
-                            synchronized (lockObject){
-                                Map<String,DBlock> blocks = db.getBlockMap();
-                                if (blocks == null){
-                                    kryo_out.writeInt(0);
-                                } else {
-                                    kryo_out.writeInt(blocks.size());
-                                    for (Entry<String,DBlock> entry : blocks.entrySet()){
-                                        kryo_out.writeString(entry.getKey());
-                                        kryo.writeObject(kryo_out, entry.getValue(), DBlock.getSerializer());
-                                    }
-                                }
-                                kryo_out.flush();         
+                        }
+                        kryo_out.flush();                            
+                    }
+                    break;
+                case GET_SERVER_BLOCKS:   
+                    {
+                        Map<StrongHash,DBlock> blocks = db.getBlockMap();
+                        if (blocks == null){
+                            kryo_out.writeInt(0);
+                        } else {
+                            kryo_out.writeInt(blocks.size());
+                            for (Entry<StrongHash,DBlock> entry : blocks.entrySet()){
+                                entry.getKey().write(kryo_out);
+                                kryo.writeObject(kryo_out, entry.getValue(), DBlock.getSerializer());
                             }
-                            break;
+                        }
+                        kryo_out.flush();         
                     }
-                } catch (IOException | ClassNotFoundException | MalformedPath | NotEnoughSpaceOnDisc | BlockNotFound ex) {
-                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                    break Vnejsi;
-                }
+                    break;
             }
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            throw ex;
+        } catch (ClassNotFoundException | MalformedPath | BlockNotFound ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            throw new IOException(ex);
         }
+        return true;
     }                
      
     /**
@@ -540,26 +934,37 @@ public final class Server {
      * @param kryo_out 
      * @param newBlocks Indicates whether a new block has been parsed from raw data in the new file version.
      * @param bsize Block size used when parsing raw data into new blocks.
+     * @param noSpace Indicates that the disc has run out of space during the upload. <br/>
+     * The raw data received afterwards are read but not saved, the upload has to be refused.
+     * @param pinned The blocks pinned for the upload are added here, the caller unpins them <br/>
+     * once the uploaded version refers to them.
      * @return
      * @throws IOException
      * @throws ClassNotFoundException
      * @throws NoSuchAlgorithmException
-     * @throws NotEnoughSpaceOnDisc 
      */  
-    private List<DBlock> loadBlock(Input kryo_in, Output kryo_out, int bsize, Collection<Boolean> newBlocks) 
-            throws IOException, ClassNotFoundException, NoSuchAlgorithmException, NotEnoughSpaceOnDisc{   
+    private List<DBlock> loadBlock(Input kryo_in, Output kryo_out, int bsize, Collection<Boolean> newBlocks, 
+            Collection<Boolean> noSpace, Collection<DBlock> pinned) 
+            throws IOException, ClassNotFoundException, NoSuchAlgorithmException{   
         
         Kryo kryo = new Kryo(null);
         kryo.setAutoReset(true);
         String message = kryo_in.readString();
-        while (message.equals("check") || message.equals("get_vals")){                                        
+        while (message.equals("check") || message.equals("get_vals") || message.equals("get_filter") 
+                || message.equals("get_delta") || message.equals("check_batch") || message.equals("get_sizes")){                                        
             switch (message) {
                 case "check":
-                    String hash2 = kryo_in.readString();
-                    boolean exists = db.blockExists(hash2);
-                    kryo_out.writeBoolean(exists);
+                    StrongHash hash2 = StrongHash.read(kryo_in);
+                    kryo_out.writeBoolean(pinExisting(hash2, pinned));
                     kryo_out.flush();
                     break;                
+                case "check_batch":
+                    int count = kryo_in.readInt();
+                    for (int i = 0; i<count; i++){
+                        kryo_out.writeBoolean(pinExisting(StrongHash.read(kryo_in), pinned));
+                    }
+                    kryo_out.flush();
+                    break;
                 case "get_vals":
                     Set<Long> vals = db.getBlockHashes();
                     kryo_out.writeInt(vals.size());
@@ -568,6 +973,24 @@ public final class Server {
                     }
                     kryo_out.flush();
                     break;
+                case "get_filter":
+                    kryo.writeObject(kryo_out, db.getWeakHashFilter(filterFpp), BloomFilter.getSerializer());
+                    kryo_out.flush();
+                    break;
+                case "get_sizes":
+                    List<Integer> sizes = db.getBlockSizes();
+                    kryo_out.writeInt(sizes.size());
+                    for (int s : sizes){
+                        kryo_out.writeInt(s);
+                    }
+                    kryo_out.flush();
+                    break;
+                case "get_delta":
+                    String storeId = kryo_in.readString();
+                    long epoch = kryo_in.readLong();
+                    kryo.writeObject(kryo_out, db.getBlockDelta(storeId, epoch), BlockIndexDelta.getSerializer());
+                    kryo_out.flush();
+                    break;
             }
             message = kryo_in.readString();
         }
@@ -577,7 +1000,14 @@ public final class Server {
             case "raw_data":                    
                 byte[] data = kryo.readObject(kryo_in, byte[].class);  
                 newBlocks.add(Boolean.TRUE);
-                List<DBlock> res = create_save_blocks(data,bsize);                    
+                List<DBlock> res = new ArrayList<>();
+                if (noSpace.isEmpty()){
+                    try {
+                        res = create_save_blocks(data, bsize, pinned);
+                    } catch (NotEnoughSpaceOnDisc ex){
+                        noSpace.add(Boolean.TRUE);
+                    }
+                }
                 kryo_out.writeInt(res.size());
                 for (DBlock b : res){
                     kryo_out.writeLong(b.getHash());
@@ -586,20 +1016,38 @@ public final class Server {
                 return res;
             case "hash":
                 long hash = kryo_in.readLong();
-                String hash2 = kryo_in.readString();
-                DBlock block = db.findBlock(hash, hash2);
+                StrongHash hash2 = StrongHash.read(kryo_in);
+                DBlock block = db.pinBlock(hash, hash2);
                 if (block == null){
                     throw new ProtocolException();
                 } else {
+                    pinned.add(block);
                     return Arrays.asList(block);            
                 }
             default:
                 throw new ProtocolException();
         }                
     }    
+    
+    /**
+     * Tells whether the block with the strong hash value "hash2" exists. If it does, it is pinned <br/>
+     * and added to "pinned", as the client will refer to it instead of sending its contents.
+     * @param hash2
+     * @param pinned
+     * @return 
+     */
+    private boolean pinExisting(StrongHash hash2, Collection<DBlock> pinned){
+        DBlock block = db.pinBlock(hash2);
+        if (block == null){
+            return false;
+        }
+        pinned.add(block);
+        return true;
+    }
 
     /**
-     * Safely deletes "versionNum"-th version of "file" both from database and disc.
+     * Safely deletes "versionNum"-th version of "file" both from database and disc. <br/>
+     * The caller must hold the write lock of storeLock.
      * @param file
      * @param versionNum
      * @throws TooFewVersions
@@ -610,7 +1058,8 @@ public final class Server {
      */
     private void safelyDeleteVersion(DFile file, int versionNum) 
             throws TooFewVersions, IOException, BlockNotFound, NoSuchAlgorithmException, NotEnoughSpaceOnDisc, VersionNotFoundException{
-        synchronized (lockObject) {
+        lockStore();
+        try {
             if (file == null){
                 throw new IOException();
             }        
@@ -625,33 +1074,43 @@ public final class Server {
                 throw new VersionNotFoundException();
             } else {
                 if (version.isScriptForm()){
-                    scripts.remove(version);
+                    removeScript(version);
                     file.removeVersion(version);
                 } else {
                     if (versionNum == file.getVersionCount()-1){
                         ServerUtils.unlinkBlocksFromVersion(version);
-                        scripts.remove(version);
+                        removeScript(version);
                         file.removeVersion(version);
                     } else {
                         DVersion nextVersion = file.getVersionList().get(versionNum+1);
                         if (nextVersion.isScriptForm()){
                             transformScriptToBlocks(version, nextVersion);                        
+                            logVersion(file, nextVersion);
                         }
+                        DVersion base = nextVersion;
                         for (int i = versionNum+2; i<file.getVersionCount(); i++){
                             DVersion iversion = file.getVersionList().get(i);
                             if (!iversion.isScriptForm()){
                                 break;
                             }                        
                             transformScriptToBlocks(version, iversion);
-                            transformBlocksToScript(nextVersion, iversion, false);
+                            transformBlocksToScript(base, iversion, false);
+                            if (!iversion.isScriptForm()){
+                                base = iversion;
+                            }
+                            logVersion(file, iversion);
                         }
                         ServerUtils.unlinkBlocksFromVersion(version);
-                        scripts.remove(version);
+                        removeScript(version);
                         file.removeVersion(version);
                     }
                 }                                                            
+                journal.logRemoveVersion(file.getPath(), versionNum);
             }    
+            db.publish(file.getPath());
             collect_blocks();
+        } finally {
+            unlockStore();
         }
     }
     
@@ -661,44 +1120,135 @@ public final class Server {
      * @param file The file to which the version belongs to.
      * @param version The version to be deleted.
      * @throws TooFewVersions 
+     * @throws IOException If the deletion can not be written to the journal.
      */
-    private void unsafelyDeleteVersion(DFile file, DVersion version) throws TooFewVersions{        
+    private void unsafelyDeleteVersion(DFile file, DVersion version) throws TooFewVersions, IOException{        
         if ((file != null) && (version != null)) {
             final List<DVersion> versionList = file.getVersionList();
-            if (versionList.contains(version)){
+            int versionNumber = indexOf(file, version);
+            if (versionNumber != -1){
                 if (version.isScriptForm()){
-                    scripts.remove(version);
-                    file.removeVersion(version);
+                    removeScript(version);
+                    file.removeVersion(versionNumber);
+                    journal.logRemoveVersion(file.getPath(), versionNumber);
                 } else {
                     ServerUtils.unlinkBlocksFromVersion(version);
-                    file.removeVersion(version);
-                    int versionNumber = versionList.indexOf(version);
-                    for (int i = versionNumber; versionList.get(i).isScriptForm(); i++){                        
-                        DVersion toDelete = versionList.get(i);
-                        scripts.remove(toDelete);
-                        file.removeVersion(toDelete);
+                    file.removeVersion(versionNumber);
+                    journal.logRemoveVersion(file.getPath(), versionNumber);
+                    while ((versionNumber < versionList.size()) && versionList.get(versionNumber).isScriptForm()){
+                        removeScript(file.removeVersion(versionNumber));
+                        journal.logRemoveVersion(file.getPath(), versionNumber);
                     }
                 }
+                db.publish(file.getPath());
             }
         }        
     }        
     
     /**
-     * Collects and deletes all blocks that are not referenced anywhere
+     * Returns the position of "version" in the version list of "file", or -1 if it is not there. <br/>
+     * The versions are compared by identity.
+     * @param file
+     * @param version
+     * @return 
+     */
+    private static int indexOf(DFile file, DVersion version){
+        List<DVersion> versionList = file.getVersionList();
+        for (int i = 0; i<versionList.size(); i++){
+            if (versionList.get(i) == version){
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Records the current state of "version" of "file" in the journal.
+     * @param file
+     * @param version
+     * @throws IOException 
+     */
+    private void logVersion(DFile file, DVersion version) throws IOException{
+        journal.logPutVersion(file.getPath(), indexOf(file, version), version);
+    }
+    
+    /**
+     * Creates the file "path" and the directories on the way to it, if they do not exist.
+     * @param path
+     * @throws MalformedPath
+     * @throws IOException 
+     */
+    private void createFile(List<String> path) throws MalformedPath, IOException{
+        db.addFile(path);
+        journal.logAddFile(path);
+    }
+    
+    /**
+     * Creates the directory "path" and the directories on the way to it, if they do not exist.
+     * @param path
+     * @throws IOException 
+     */
+    private void createDirs(List<String> path) throws IOException{
+        if (db.makeDirs(path)){
+            journal.logMakeDirs(path);
+        }
+    }
+    
+    /**
+     * Collects and deletes all blocks that are not referenced anywhere, </br>
+     * then compacts the packs of which only a small part is left in use.
      */
     private void collect_blocks() throws IOException{        
         for (DBlock block : db.collectBlocks()){
-            String name = block.getName();
-            ServerUtils.deleteBlock(name, home_dir);
+            journal.logRemoveBlock(block);
+            blockStore.delete(block);
         }        
+        compactPacks();
     }
     
     /**
-     * Does a simple clean-up : deletes "fraction" of the old versionList of all files.
-     * Deletes the file versionList found by findUnnecessaryVersions()
+     * Moves the blocks in use out of the packs marked as sparse by blockStore, so that </br>
+     * the packs can be deleted. The blocks are moved in the order of their locations, so that </br>
+     * the consecutive blocks of a version stay consecutive. The packs are deleted only after </br>
+     * the moved blocks and their new locations in the journal have been forced to the disc. </br>
+     * The caller must hold the write lock of storeLock.
+     * @throws IOException 
+     */
+    private void compactPacks() throws IOException{
+        Set<Integer> packs = blockStore.takeSparsePacks();
+        if (packs.isEmpty()){
+            return;
+        }
+        List<DBlock> blocks = new ArrayList<>();
+        for (DBlock block : db.getBlockMap().values()){
+            if (block.isPacked() && packs.contains(BlockStore.getPack(block.getLocation()))){
+                blocks.add(block);
+            }
+        }
+        Collections.sort(blocks, new Comparator<DBlock>() {
+            @Override
+            public int compare(DBlock o1, DBlock o2) {
+                return Long.compare(o1.getLocation(), o2.getLocation());
+            }
+        });
+        for (DBlock block : blocks){
+            block.setLocation(blockStore.move(block));
+            journal.logMoveBlock(block);
+        }
+        blockStore.sync();
+        journal.sync();
+        for (int pack : packs){
+            blockStore.deletePack(pack);
+        }
+    }
+    
+    /**
+     * Does a simple clean-up : deletes "fraction" of the old versionList of all files.
+     * Deletes the file versionList found by findUnnecessaryVersions()
      */
     private void removeOldItems(Double fraction) throws IOException{      
-        synchronized (lockObject){
+        lockStore();
+        try {
             if (fraction == null){
                 fraction = 1.0;
             }
@@ -723,6 +1273,8 @@ public final class Server {
                 }
             }
             collect_blocks();
+        } finally {
+            unlockStore();
         }
     }
     
@@ -752,16 +1304,19 @@ public final class Server {
     
     
     /**
-     * Loads a valid instance of Database from disc
+     * Loads a valid instance of Database from disc, from the newest index (see getIndexPath()). <br/>
+     * An index saved by MappedIndex is mapped, the versions of its files are decoded only when needed.
      */
     private Database loadDB() throws IOException, ClassNotFoundException{    
-        Path f = Paths.get(home_dir, indexFileName);
+        Path f = getIndexPath();
         if (Files.notExists(f)){
             Files.createFile(f);
         }
         if(Files.size(f)==0){            
-            return new Database(new HashMap<String,DItem>(), new HashMap<String,DBlock>(), 
-                    new HashSet<Long>(), new HashSet<String>());
+            return new Database(new HashMap<String,DItem>(), new HashMap<StrongHash,DBlock>(), 
+                    new HashSet<Long>(), new HashSet<StrongHash>());
+        } else if (MappedIndex.isMapped(f)){
+            return MappedIndex.load(f);
         } else {            
             Kryo kryo = new Kryo(null);
             kryo.setAutoReset(true);
@@ -775,18 +1330,101 @@ public final class Server {
     }
     
     /**
-     * Saves a valid instance of Database, ie. "db", on disc
+     * Tells whether the index has been saved in one of the formats read by Database.getSerializer(). <br/>
+     * Such an index is converted to the format of MappedIndex by a checkpoint right after it is loaded, <br/>
+     * rather than once the journal grows over checkpointThreshold. Its scripts are moved into <br/>
+     * the script packs before (see migrateScripts()), the checkpoint saves their locations.
+     * @return
+     * @throws IOException 
      */
-    private void saveDB() {        
-        Path f = Paths.get(home_dir, indexFileName);        
-        Kryo kryo = new Kryo(null);
-        kryo.setAutoReset(true);
-        try (Output kryo_out = new Output(Files.newOutputStream(f))){            
-            kryo.writeObject(kryo_out, db, Database.getSerializer());
-            kryo_out.flush();
-        } catch (IOException ex) {
+    private boolean isLegacyIndex() throws IOException{
+        Path f = getIndexPath();
+        return Files.exists(f) && (Files.size(f) > 0) && !MappedIndex.isMapped(f);
+    }
+    
+    /**
+     * Saves a valid instance of Database on disc, in the format of MappedIndex. <br/>
+     * Each checkpoint is saved to a new file, numbered by its first journal segment, instead of <br/>
+     * replacing the previous one, which may still be mapped (see deleteOldIndexes(..)).
+     * @param db
+     * @return The saved file.
+     * @throws IOException 
+     */
+    private Path saveDB(Database db) throws IOException {        
+        Path f = getIndexPath(db.getJournalStart());
+        Path tmp = Paths.get(f.toString() + tmpSuffix);
+        MappedIndex.save(db, tmp);
+        replaceFile(tmp, f);
+        return f;
+    }
+    
+    /**
+     * Returns the file of the checkpoint which starts with the journal segment "journalStart".
+     * @param journalStart
+     * @return 
+     */
+    private Path getIndexPath(long journalStart){
+        return Paths.get(home_dir, String.format("%s%06d", indexFileName, journalStart));
+    }
+    
+    /**
+     * Returns the newest index, i.e. the checkpoint with the highest number, or the file "index" <br/>
+     * saved by older versions of the server, if there is no numbered checkpoint.
+     * @return
+     * @throws IOException 
+     */
+    private Path getIndexPath() throws IOException{
+        long newest = -1;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(home_dir), indexFileName + "*")){
+            for (Path p : stream){
+                String number = p.getFileName().toString().substring(indexFileName.length());
+                if (ServerUtils.isLong(number)){
+                    newest = Math.max(newest, Long.parseLong(number));
+                }
+            }
+        }
+        return (newest == -1) ? Paths.get(home_dir, indexFileName) : getIndexPath(newest);
+    }
+    
+    /**
+     * Deletes the indexes older than "current". An index which is still mapped can not be deleted <br/>
+     * on some systems, it is left in place and deleted by a later call.
+     * @param current 
+     */
+    private void deleteOldIndexes(Path current){
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(home_dir), indexFileName + "*")){
+            for (Path p : stream){
+                String number = p.getFileName().toString().substring(indexFileName.length());
+                if ((number.isEmpty() || ServerUtils.isLong(number)) && !p.equals(current)){
+                    try {
+                        Files.deleteIfExists(p);
+                    } catch (IOException ex){
+                        Logger.getLogger(Server.class.getName()).log(Level.FINE, null, ex);
+                    }
+                }
+            }
+        } catch (IOException ex){
             Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-        }                        
+        }
+    }
+    
+    /**
+     * Suffix of the temporary files, which replace the saved files once they are complete.
+     */
+    private static final String tmpSuffix = ".tmp";
+    
+    /**
+     * Forces "tmp" to the disc and moves it to "target", so that a crash leaves either <br/>
+     * the old or the new contents of "target".
+     * @param tmp
+     * @param target
+     * @throws IOException 
+     */
+    private static void replaceFile(Path tmp, Path target) throws IOException{
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)){
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
     
     /**
@@ -821,60 +1459,65 @@ public final class Server {
     }
     
     /**
-     * Each DVersion represented as a script, is here mapped to its script
+     * Keeps the script of each DVersion represented as a script
      */    
-    private final Map<DVersion, EditScript> scripts;
+    private final ScriptStore scripts;
+    
+    /**
+     * Contents of the recently reconstructed scripted versions, so that the popular ones <br/>
+     * are not patched again on every request.
+     */
+    private final ContentCache<DVersion> versionCache;
     
     /**
-     * The name of the file containing a copy of the "scripts" structure.
+     * Removes the script of "version", which is deleted or no longer in script form, </br>
+     * together with its cached contents.
+     * @param version 
+     */
+    private void removeScript(DVersion version){
+        scripts.remove(version);
+        versionCache.remove(version);
+    }
+    
+    /**
+     * The name of the file in which all the scripts were saved before ScriptStore was introduced.
      */
     private final String scriptsFileName = "scripts";
     
     /**
-     * Loads all the scripts from disc
+     * Moves the scripts from the file saved by older versions of the server, if there is one, <br/>
+     * into the packs of "scripts", setting their locations in the versions of "db". <br/>
+     * The file is deleted once the index has been converted with the new locations, <br/>
+     * so a crash in between only leaves unused scripts in the current pack.
      * @throws IOException
-     * @throws ClassNotFoundException 
      */
-    private Map<DVersion,EditScript> loadScripts() throws IOException, ClassNotFoundException{
+    private void migrateScripts() throws IOException{
         Path f = Paths.get(home_dir, scriptsFileName);
         if (Files.notExists(f)){
-            Files.createFile(f);
+            return;
         }
-        if(Files.size(f)==0){            
-            return new HashMap<>();
-        } else {   
+        Map<DVersion,EditScript> old = new HashMap<>();
+        if (Files.size(f) > 0){
             try (Input kryo_in = new Input(Files.newInputStream(f))){
                 Kryo kryo = new Kryo(null);
                 kryo.setAutoReset(true);
                 int size = kryo_in.readInt();
-                Map<DVersion,EditScript> res = new HashMap<>();
                 for (int i = 0; i < size; i++){
                     DVersion key = kryo.readObject(kryo_in, DVersion.class, DVersion.getSerializer());
                     EditScript value = kryo.readObject(kryo_in, EditScript.class, EditScript.getSerializer());
-                    res.put(key, value);
+                    old.put(key, value);
                 }
-                return res;
             }
-        }        
-    }
-    
-    /**
-     * Saves all the scripts on disc
-     */
-    private void saveScripts(){        
-        Path f = Paths.get(home_dir, scriptsFileName);
-        try (Output kryo_out = new Output(Files.newOutputStream(f))){
-            Kryo kryo = new Kryo(null);
-            kryo.setAutoReset(true);
-            kryo_out.writeInt(scripts.size());
-            for (Entry<DVersion,EditScript> entry : scripts.entrySet()){
-                kryo.writeObject(kryo_out, entry.getKey(), DVersion.getSerializer());
-                kryo.writeObject(kryo_out, entry.getValue(), EditScript.getSerializer());
+        }
+        for (DFile file : db.getFileCollection()){
+            for (DVersion version : file.getVersionList()){
+                EditScript script = version.isScriptForm() ? old.get(version) : null;
+                if (script != null){
+                    scripts.put(version, script);
+                }
             }
-            kryo_out.flush();
-        } catch (IOException ex) {
-            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
         }
+        db.countScripts();
     }
 
     
@@ -887,33 +1530,179 @@ public final class Server {
      */
     private byte[] serveGet(DFile fileToGet, int index) {        
         try{
-            DVersion verze = fileToGet.getVersionList().get(index);
-            if (verze == null){
-                return new byte[0];
-            } else {
-                if(verze.isScriptForm()){
-                    DVersion zaklad;
-                    int i;
-                    for(i = index-1; i>=0; i--){
-                        if (!fileToGet.getVersionList().get(i).isScriptForm()){
-                            break;
-                        }
-                    }
-                    zaklad = fileToGet.getVersionList().get(i);
-                    byte[] obsahZaklad = ServerUtils.loadVersionFromDisc(zaklad, home_dir);                    
-                    EditScript editScript = scripts.get(verze);
-                    return editScript.applyTo(obsahZaklad);
-
-                } else {
-                    return ServerUtils.loadVersionFromDisc(verze, home_dir);
-                }
-            }
+            return loadVersion(fileToGet, index);
         } catch (IOException | BlockNotFound ex){
             System.err.println("\"Get\" " + messages.getString("request_failed"));
             return new byte[0];
         }        
     } 
     
+    /**
+     * Tells whether the "index"-th version of "fileToGet" can be returned by loadVersion(..), <br/>
+     * that is whether its contents fit into a single array.
+     * @param fileToGet
+     * @param index
+     * @return 
+     */
+    private static boolean fitsInArray(DFile fileToGet, int index){
+        DVersion verze = fileToGet.getVersionList().get(index);
+        return (verze == null) || ServerUtils.fitsInArray(verze);
+    }
+    
+    /**
+     * Returns the contents of the "index"-th version of "fileToGet", in the internal representation. <br/>
+     * If needed, a transformation from script form is done, its result is kept in versionCache. <br/>
+     * The returned array must not be modified.
+     * @param fileToGet The file to get.
+     * @param index The number of the version to get.
+     * @return 
+     * @throws IOException Also if the version does not fit into an array, see fitsInArray(..).
+     * @throws BlockNotFound 
+     */
+    private byte[] loadVersion(DFile fileToGet, int index) throws IOException, BlockNotFound{
+        DVersion verze = fileToGet.getVersionList().get(index);
+        if (verze == null){
+            return new byte[0];
+        } else if (!ServerUtils.fitsInArray(verze)){
+            throw new IOException();
+        } else {
+            if(verze.isScriptForm()){
+                DVersion zaklad;
+                int i;
+                for(i = index-1; i>=0; i--){
+                    if (!fileToGet.getVersionList().get(i).isScriptForm()){
+                        break;
+                    }
+                }
+                byte[] cached = versionCache.get(verze);
+                if (cached != null){
+                    return cached;
+                }
+                zaklad = fileToGet.getVersionList().get(i);
+                byte[] obsahZaklad = ServerUtils.loadVersionFromDisc(zaklad, blockStore);                    
+                EditScript editScript = scripts.get(verze);
+                byte[] res = editScript.applyTo(obsahZaklad);
+                versionCache.put(verze, res, 0, res.length);
+                return res;
+
+            } else {
+                return ServerUtils.loadVersionFromDisc(verze, blockStore);
+            }
+        }
+    }
+    
+    /**
+     * Sends the contents of the "index"-th version of "fileToGet" in chunks, as described <br/>
+     * in Requests.GET_FILE_STREAM.
+     * @param fileToGet The file to get.
+     * @param index The number of the version to get.
+     * @param kryo_out 
+     * @param channel The channel of the connection, or null if the socket has none.
+     * @throws IOException If the transfer has failed in the middle of a chunk, <br/>
+     * so the connection can not be used anymore.
+     */
+    private void serveGetStream(DFile fileToGet, int index, Output kryo_out, SocketChannel channel) throws IOException {
+        ChunkedOutputStream cos = new ChunkedOutputStream(kryo_out);
+        try {
+            DVersion verze = fileToGet.getVersionList().get(index);
+            if (verze.isScriptForm()){
+                cos.write(loadVersion(fileToGet, index));
+            } else {
+                sendBlocks(verze, cos, channel);
+            }
+            cos.close();
+        } catch (IOException | BlockNotFound ex){
+            System.err.println("\"Get\" " + messages.getString("request_failed"));
+            if (!cos.abort()){
+                throw new IOException(ex);
+            }
+        }
+    }
+    
+    /**
+     * Sends the blocks of "version" to "cos", in the internal representation. <br/>
+     * Consecutive blocks lying next to each other in a pack, as the blocks of a single upload <br/>
+     * usually do, are sent as a single chunk by FileChannel.transferTo(..), straight from <br/>
+     * the pack to "channel", so that they are neither read into the heap nor converted.
+     * @param version A version in block form.
+     * @param cos
+     * @param channel The channel underlying "cos", or null if there is none.
+     * @throws IOException
+     * @throws BlockNotFound 
+     */
+    private void sendBlocks(DVersion version, ChunkedOutputStream cos, SocketChannel channel) 
+            throws IOException, BlockNotFound{
+        List<DBlock> blocks = version.getBlocks();
+        if (blocks == null){
+            throw new BlockNotFound();
+        }
+        byte[] buffer = new byte[0];
+        int i = 0;
+        while (i < blocks.size()){
+            DBlock first = blocks.get(i);
+            if ((channel == null) || !first.isPacked()){
+                if (first.getUsed() > buffer.length){
+                    buffer = new byte[first.getUsed()];
+                }
+                int length = blockStore.read(first, buffer, 0);
+                cos.write(buffer, 0, length);
+                i++;
+                continue;
+            }
+            long end = first.getLocation() + first.getUsed();
+            int j = i + 1;
+            while ((j < blocks.size()) && (blocks.get(j).getLocation() == end)
+                    && (end + blocks.get(j).getUsed() - first.getLocation() <= Integer.MAX_VALUE)){
+                end += blocks.get(j).getUsed();
+                j++;
+            }
+            int length = (int) (end - first.getLocation());
+            if (length > 0){
+                cos.beginRawChunk(length);
+                blockStore.transferTo(first.getLocation(), length, channel);
+                cos.endRawChunk();
+            }
+            i = j;
+        }
+    }
+    
+    /**
+     * Writes the original contents of the "index"-th version of "fileToGet" to "out". <br/>
+     * A version in block form is written block by block, straight from the packs, <br/>
+     * so it is never held in memory as a whole. 
+     * @param fileToGet The file to get.
+     * @param index The number of the version to get.
+     * @param out
+     * @throws IOException
+     * @throws BlockNotFound 
+     */
+    private void writeVersion(DFile fileToGet, int index, OutputStream out) throws IOException, BlockNotFound{
+        DVersion verze = fileToGet.getVersionList().get(index);
+        if (verze.isScriptForm()){
+            byte[] data = loadVersion(fileToGet, index);
+            byte[] chunk = new byte[Math.min(data.length, ChunkedOutputStream.defaultChunkSize)];
+            for (int from = 0; from < data.length; from += chunk.length){
+                int length = Math.min(chunk.length, data.length - from);
+                for (int i = 0; i<length; i++){
+                    chunk[i] = (byte) (data[from + i] + 128);
+                }
+                out.write(chunk, 0, length);
+            }
+        } else {
+            if (verze.getBlocks() == null){
+                throw new BlockNotFound();
+            }
+            byte[] chunk = new byte[verze.getBlockSize()];
+            for (DBlock block : verze.getBlocks()){
+                if (block.getUsed() > chunk.length){
+                    chunk = new byte[block.getUsed()];
+                }
+                int length = blockStore.readOriginal(block, chunk);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+    
     /**
      * Returns the number of bytes on disc reserved for the application, or zero if
      * there is no reservation.
@@ -935,6 +1724,7 @@ public final class Server {
     /**
      * Transforms DVersion "actualVersion" into standard form - representation by blocks, <br/>
      * not by script </br>
+     * The caller must hold the write lock of storeLock.
      * @param referenceBase The base version to which the current script is referencing
      * @param actualVersion The version to be transformed
      * @throws IOException
@@ -944,20 +1734,20 @@ public final class Server {
      */
     private void transformScriptToBlocks(DVersion referenceBase, DVersion actualVersion) 
             throws IOException, BlockNotFound, NoSuchAlgorithmException, NotEnoughSpaceOnDisc{
-        synchronized (lockObject) {
-            byte[] baseBytes = ServerUtils.loadVersionFromDisc(referenceBase, home_dir);
-            EditScript editScript = scripts.get(actualVersion);
-            byte[] newBytes = editScript.applyTo(baseBytes);
-            List<DBlock> blocks = create_save_blocks(newBytes, actualVersion.getBlockSize());
-            actualVersion.setScriptForm(false);
-            actualVersion.setBlocks(blocks);
-            ServerUtils.linkBlocksToVersion(actualVersion);
-            scripts.remove(actualVersion);
-        }
+        byte[] baseBytes = ServerUtils.loadVersionFromDisc(referenceBase, blockStore);
+        EditScript editScript = scripts.get(actualVersion);
+        byte[] newBytes = editScript.applyTo(baseBytes);
+        List<DBlock> blocks = create_save_blocks(newBytes, actualVersion.getBlockSize(), null);
+        actualVersion.setScriptForm(false);
+        actualVersion.setBlocks(blocks);
+        ServerUtils.linkBlocksToVersion(actualVersion);
+        removeScript(actualVersion);
     }  
     
     /**
      * Transforms the "actualVersion" version into the script form against the "referenceBase" version </br>
+     * The caller must hold the write lock of the file the versions belong to. <br/>
+     * If either of the versions does not fit into an array, "actualVersion" is left in block form.
      * @param referenceBase The base version to which the future script will be referenced
      * @param actualVersion The version to be transformed
      * @param checkPatchSize Whether the diff script size should be checked, and if too big, do not carry out the transformation.
@@ -966,33 +1756,98 @@ public final class Server {
      */
     private void transformBlocksToScript(DVersion referenceBase, DVersion actualVersion, boolean checkPatchSize) 
             throws IOException, BlockNotFound{
-        synchronized (lockObject) {            
-            byte[] baseBytes = ServerUtils.loadVersionFromDisc(referenceBase, home_dir);
-            byte[] newBytes = ServerUtils.loadVersionFromDisc(actualVersion, home_dir);
-            int limit = actualVersion.getBlockSize();
-            EditScript editScript = EditScript.createScript(baseBytes, newBytes, (checkPatchSize ? limit : 0), true, tooExpensiveSnake);
-            if (editScript != null){                                
-                ServerUtils.unlinkBlocksFromVersion(actualVersion);
-                actualVersion.setScriptForm(true);                
-                scripts.put(actualVersion, editScript);                            
+        if (!ServerUtils.fitsInArray(referenceBase) || !ServerUtils.fitsInArray(actualVersion)){
+            return;
+        }
+        final byte[] baseBytes = ServerUtils.loadVersionFromDisc(referenceBase, blockStore);
+        final byte[] newBytes = ServerUtils.loadVersionFromDisc(actualVersion, blockStore);
+        final int limit = checkPatchSize ? actualVersion.getBlockSize() : 0;
+        EditScript editScript = runCpuTask(new Callable<EditScript>() {
+            @Override
+            public EditScript call() {
+                return EditScript.createScript(baseBytes, newBytes, limit, true, tooExpensiveSnake);
             }
+        });
+        if (editScript != null){                                
+            ServerUtils.unlinkBlocksFromVersion(actualVersion);
+            actualVersion.setScriptForm(true);                
+            scripts.put(actualVersion, editScript);                            
         }
     } 
     
     /**
-     * Determines the optimal block size used for storing a file's contents.
-     * @param fileSize The size of the file. Currently not used.
+     * Determines the optimal block size used for storing a file's contents. </br>
+     * If adaptiveBlockSize is set, the block size is halved for small files, so that they </br>
+     * still consist of several blocks, and doubled for huge files, so that the number of their </br>
+     * blocks stays bounded. Otherwise blockSize is used for all the files.
+     * @param fileSize The size of the file.
      * @return 
      */
     private int getBlockSize(long fileSize){
-        return blockSize;
+        if (!adaptiveBlockSize){
+            return blockSize;
+        }
+        long size = blockSize;
+        while ((size > minAdaptiveBlockSize) && (fileSize < size * minBlocksPerFile)){
+            size >>= 1;
+        }
+        while ((size < maxAdaptiveBlockSize) && (fileSize / size > maxBlocksPerFile)){
+            size <<= 1;
+        }
+        return (int) size;
     }      
     
+    /**
+     * Returns the chunking used for data stored with the block size "bsize", i.e. chunker </br>
+     * with all the chunk sizes scaled by bsize / blockSize. Null if fixed-size blocks are used.
+     * @param bsize
+     * @return 
+     */
+    private Chunker getChunker(int bsize){
+        if ((chunker == null) || (bsize == blockSize)){
+            return chunker;
+        }
+        return new Chunker((int) ((long) chunker.getMinSize() * bsize / blockSize), bsize, 
+                (int) ((long) chunker.getMaxSize() * bsize / blockSize));
+    }
+    
+    /**
+     * Whether the block size is chosen by the size of each file, see getBlockSize(..).
+     */
+    private final boolean adaptiveBlockSize;
+    
+    /**
+     * Smaller block size is never chosen for small files.
+     */
+    private static final int minAdaptiveBlockSize = 4096;
+    
+    /**
+     * Larger block size is never chosen for huge files. The client's sliding weak hash </br>
+     * relies on 128 * block size staying below 2^31.
+     */
+    private static final int maxAdaptiveBlockSize = 1 << 23;
+    
+    /**
+     * The block size is halved while a file would have fewer blocks than this.
+     */
+    private static final int minBlocksPerFile = 16;
+    
+    /**
+     * The block size is doubled while a file would have more blocks than this.
+     */
+    private static final int maxBlocksPerFile = 1 << 16;
+    
     /**
      * The used blocksize.
      */
     private final int blockSize;
     
+    /**
+     * Splits the received data into content-defined chunks, with blockSize as the average size. <br/>
+     * Null if the data are split into blocks of exactly blockSize bytes.
+     */
+    private final Chunker chunker;
+    
     /**
      * The default blocksize used if blocksize is not specified in the program parameters.
      */
@@ -1009,49 +1864,208 @@ public final class Server {
     private static final int defaultTooExpensive = 128;
     
     /**
-     * Parses "data" into blocks of size "blockSize". Their contents are saved <br/>
-     * on disc, DBlocks are returned in a baseContents
+     * False positive probability of the Bloom filters sent in reply to "get_filter".
+     */
+    private final double filterFpp;
+    
+    /**
+     * Default value for filterFpp.
+     */
+    private static final double defaultFilterFpp = 0.01;
+    
+    /**
+     * Default maximal number of bytes of the blocks kept in memory by blockStore.
+     */
+    private static final long defaultCacheSize = 1L << 26;
+    
+    /**
+     * Default maximal number of bytes of the versions kept in memory by versionCache.
+     */
+    private static final long defaultVersionCacheSize = 1L << 26;
+    
+    /**
+     * Default maximal number of bytes of the serialized scripts kept in memory by ScriptStore.
+     */
+    private static final long defaultScriptCacheSize = 1L << 24;
+    
+    /**
+     * Number of threads in cpuWorkers.
+     */
+    private final int cpuWorkerCount;
+    
+    /**
+     * Default value for cpuWorkerCount.
+     */
+    private static final int defaultCpuWorkers = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Parses "data" into blocks of size "blockSize", or into content-defined chunks </br>
+     * if a chunker is used. Their contents are saved <br/>
+     * on disc, DBlocks are returned in a baseContents. <br/>
+     * If "pinned" is not null, the returned blocks are pinned and added to it, so that they are not <br/>
+     * collected before a version refers to them. Otherwise the caller must hold the write lock of storeLock. <br/>
+     * No versions are removed to make space here, as the caller may hold the read lock of storeLock. <br/>
+     * The space checked before an upload may be taken by a concurrent one, or not checked at all, <br/>
+     * so the caller has to handle NotEnoughSpaceOnDisc. The blocks saved before it is thrown <br/>
+     * stay in "pinned".
      * @param data
      * @param blockSize
+     * @param pinned
      * @return
      * @throws NoSuchAlgorithmException
      * @throws IOException 
+     * @throws NotEnoughSpaceOnDisc If a block does not fit on the disc.
      */
-    private List<DBlock> create_save_blocks(byte[] data, int blockSize) 
+    private List<DBlock> create_save_blocks(byte[] data, int blockSize, Collection<DBlock> pinned) 
             throws NoSuchAlgorithmException, IOException, NotEnoughSpaceOnDisc{
         List<DBlock> res = new ArrayList<>();
+        Chunker chunker = getChunker(blockSize);
+        int batchSize = cpuWorkerCount * 4;
         int left = 0;        
         while(left<data.length){
-            int right = Math.min(left + blockSize, data.length);
-            byte[] pars_data = Arrays.copyOfRange(data, left, right);
-            int used;
-            if ((data.length - left)<blockSize){
-                used = data.length - left;                       
-            } else {
-                used = blockSize;
+            List<BlockHashTask> tasks = new ArrayList<>();
+            while ((left < data.length) && (tasks.size() < batchSize)){
+                int right = (chunker == null) ? Math.min(left + blockSize, data.length) 
+                        : chunker.cut(data, left, data.length);
+                tasks.add(new BlockHashTask(data, left, right));
+                left = right;
             }
-            long hash = RollingHash.computeHash(pars_data, used, 0, used);
-            String hash2 = ServerUtils.computeStrongHash(pars_data, used, 0, used);            
-            if (pars_data.length >= getAvailableSpace()){                            
-                removeOldItems(null);                     
-                if(pars_data.length >= getAvailableSpace()){
+            for (BlockHashTask task : runCpuTasks(tasks)){
+                byte[] pars_data = task.getData();
+                int used = pars_data.length;
+                long hash = task.getHash();
+                StrongHash hash2 = task.getHash2();
+                if (pars_data.length >= getAvailableSpace()){                            
                     throw new NotEnoughSpaceOnDisc();
+                }            
+                DBlock newBlock;
+                ReadWriteLock blockLock = blockLocks.get(hash2);
+                blockLock.writeLock().lock();
+                try {
+                    newBlock = (pinned == null) ? db.findBlock(hash, hash2) : db.pinBlock(hash, hash2);
+                    if (newBlock == null){
+                        long location = blockStore.append(pars_data, used);
+                        newBlock = new DBlock(hash, hash2, blockSize, used, 0, location, 0);
+                        if (pinned != null){
+                            db.pinBlock(newBlock);
+                        }
+                        journal.logAddBlock(newBlock);
+                        db.addBlock(newBlock);
+                    }
+                    if (pinned != null){
+                        pinned.add(newBlock);
+                    }
+                } finally {
+                    blockLock.writeLock().unlock();
                 }
-            }            
-            DBlock newBlock;
-            if(db.blockExists(hash, hash2)){                
-                newBlock = db.findBlock(hash, hash2);
-            } else {
-                int col = ServerUtils.saveBlock(pars_data, hash, home_dir, used);            
-                newBlock = new DBlock(hash, hash2, blockSize, used, col, 0);
-                db.addBlock(newBlock);
+                res.add(newBlock);
             }
-            res.add(newBlock);
-            left += blockSize;
         }                
         return res;
     }            
     
+    /**
+     * Copies a block out of the received data and computes both its hashes. <br/>
+     * Run in cpuWorkers, the result is the task itself.
+     */
+    private static class BlockHashTask implements Callable<BlockHashTask> {
+        
+        /**
+         * The received data, the block is a part of it.
+         */
+        private final byte[] source;
+        
+        /**
+         * Start of the block in "source", inclusive.
+         */
+        private final int from;
+        
+        /**
+         * End of the block in "source", exclusive.
+         */
+        private final int to;
+        
+        /**
+         * Contents of the block, available after the task has finished.
+         */
+        private byte[] data;
+        
+        /**
+         * Rolling hash of the block.
+         */
+        private long hash;
+        
+        /**
+         * Strong hash of the block.
+         */
+        private StrongHash hash2;
+
+        BlockHashTask(byte[] source, int from, int to) {
+            this.source = source;
+            this.from = from;
+            this.to = to;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        long getHash() {
+            return hash;
+        }
+
+        StrongHash getHash2() {
+            return hash2;
+        }
+
+        @Override
+        public BlockHashTask call() {
+            data = Arrays.copyOfRange(source, from, to);
+            hash = RollingHash.computeHash(data, data.length, 0, data.length);
+            hash2 = StrongHash.compute(data);
+            return this;
+        }
+    }
+    
+    /**
+     * Runs the tasks in cpuWorkers and waits for all of them to finish.
+     * @param tasks The tasks, they must not acquire any lock.
+     * @return Results of the tasks, in the same order.
+     * @throws IOException If the current thread is interrupted, or a task throws a checked exception.
+     */
+    private <T> List<T> runCpuTasks(List<? extends Callable<T>> tasks) throws IOException{
+        try {
+            List<Future<T>> futures = cpuWorkers.invokeAll(tasks);
+            List<T> res = new ArrayList<>(futures.size());
+            for (Future<T> future : futures){
+                res.add(future.get());
+            }
+            return res;
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex){
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error){
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+    
+    /**
+     * Runs a single task in cpuWorkers and waits for its result.
+     * @param task The task, it must not acquire any lock.
+     * @return
+     * @throws IOException 
+     */
+    private <T> T runCpuTask(Callable<T> task) throws IOException{
+        return runCpuTasks(Collections.singletonList(task)).get(0);
+    }
+    
     /**
      * Determines which files should be included in the zip archive that is to be created.
      * The result is given in the "files" parameter.
@@ -1066,7 +2080,7 @@ public final class Server {
                 getAllFiles(location, files, location.getName());
             } 
         } else {
-            for (DItem file : ((DDirectory)location).getItemMap().values()){
+            for (DItem file : ((DDirectory)location).getItems()){
                 files.put(file, pathPrefix);
                 if (file.isDir()){
                         getAllFiles(file, files, pathPrefix + File.separator + file.getName());
@@ -1076,29 +2090,242 @@ public final class Server {
     }
 
     /**
-     * Temporary space to save zipped files && folders before they are sent to a client's machine.
+     * Builds a zip archive and sends it in chunks, as described in Requests.GET_FILE_STREAM.
+     * @param fileList Contains all the files that should be included in the archive.
+     * @param versionNumber The version number of the file to be zipped.
+     * @param kryo_out 
+     */
+    private void serveZipStream(Map<DItem,String> fileList, int versionNumber, Output kryo_out) {
+        ChunkedOutputStream cos = new ChunkedOutputStream(kryo_out);
+        try {
+            ZipOutputStream zos = new ZipOutputStream(cos);
+            for (Entry<DItem,String> entry : fileList.entrySet()) {
+                DItem file = entry.getKey();
+                if (!file.isDir()) {
+                    addToZip(file, versionNumber, zos, entry.getValue());
+                } else if (((DDirectory)file).getItemMap().isEmpty()){
+                    addToZip(file, versionNumber, zos, entry.getValue());                            
+                }
+            }
+            zos.close();
+        } catch (IOException | BlockNotFound ex){
+            System.err.println("\"Get\" " + messages.getString("request_failed"));
+            cos.abort();
+        }
+    }
+    
+    /**
+     * Returns the path of a zip entry.
+     * @param item The file or directory the entry represents.
+     * @param path Path prefix.
+     * @return 
      */
-    private final ByteArrayOutputStream zipBuffer;    
+    private static String getZipPath(DItem item, String path){
+        String zipFilePath;
+        if (!path.equals("")) {
+            zipFilePath = path + "/" + item.getName();
+        } else {
+            zipFilePath = item.getName();
+        }
+        if (item.isDir()){
+            zipFilePath += "/";
+        }
+        return zipFilePath;
+    }
+    
+    /**
+     * Tells whether the latest versions of the files fit into a zip archive without Zip64 <br/>
+     * extensions, which ZipStreamWriter does not support.
+     * @param fileList
+     * @return 
+     */
+    private boolean fitsParallelZip(Map<DItem,String> fileList){
+        if (fileList.size() >= ZipStreamWriter.entryLimit){
+            return false;
+        }
+        long total = 0;
+        for (DItem item : fileList.keySet()){
+            if (!item.isDir()){
+                DVersion version = ((DFile)item).getLatestVersion();
+                if (version != null){
+                    total += version.getSize();
+                }
+            }
+        }
+        return total < ZipStreamWriter.sizeLimit / 2;
+    }
     
     /**
-     * Builds a zip archive in the zipBuffer variable.
+     * Builds a zip archive of the latest versions of the files and sends it in chunks, <br/>
+     * as described in Requests.GET_FILE_STREAM. The entries are reconstructed and compressed <br/>
+     * in zipPool, at most zipWindow of them at once, and written to the archive in order. <br/>
+     * The files larger than zipStreamedSize are compressed straight into the archive <br/>
+     * by the serving thread instead, once the entries before them have been written.
      * @param fileList Contains all the files that should be included in the archive.
-     * @param versionNumber The version number of the file to be zipped.
-     * @throws FileNotFoundException
-     * @throws IOException 
+     * @param kryo_out 
      */
-    private void writeToZipBuffer(Map<DItem,String> fileList, int versionNumber) 
-            throws FileNotFoundException, IOException {            
-            try (ZipOutputStream zos = new ZipOutputStream(zipBuffer)) {
-                    for (Entry<DItem,String> entry : fileList.entrySet()) {
-                        DItem file = entry.getKey();
-                        if (!file.isDir()) {
-                                addToZip(file, versionNumber, zos, entry.getValue());
-                        } else if (((DDirectory)file).getItemMap().isEmpty()){
-                                addToZip(file, versionNumber, zos, entry.getValue());                            
-                        }
-                    }
-            }            
+    private void serveParallelZipStream(Map<DItem,String> fileList, Output kryo_out) {
+        ChunkedOutputStream cos = new ChunkedOutputStream(kryo_out);
+        ZipStreamWriter zip = new ZipStreamWriter(cos);
+        List<Entry<DItem,String>> entries = new ArrayList<>();
+        for (Entry<DItem,String> entry : fileList.entrySet()){
+            DItem item = entry.getKey();
+            if (!item.isDir() || ((DDirectory)item).getItemMap().isEmpty()){
+                entries.add(entry);
+            }
+        }
+        int window = zipPool.getParallelism() * zipWindow;
+        Deque<Future<ZipEntryTask>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while ((next < entries.size()) || !pending.isEmpty()){
+                while ((next < entries.size()) && (pending.size() < window) && !isStreamedEntry(entries.get(next).getKey())){
+                    Entry<DItem,String> entry = entries.get(next++);
+                    pending.add(zipPool.submit(new ZipEntryTask(entry.getKey(), entry.getValue())));
+                }
+                if (pending.isEmpty()){
+                    Entry<DItem,String> entry = entries.get(next++);
+                    new ZipEntryTask(entry.getKey(), entry.getValue()).streamTo(zip);
+                } else {
+                    pending.poll().get().writeTo(zip);
+                }
+            }
+            zip.finish();
+            cos.close();
+        } catch (IOException | BlockNotFound | ExecutionException | InterruptedException ex){
+            if (ex instanceof InterruptedException){
+                Thread.currentThread().interrupt();
+            }
+            for (Future<ZipEntryTask> future : pending){
+                future.cancel(false);
+            }
+            System.err.println("\"Get\" " + messages.getString("request_failed"));
+            cos.abort();
+        }
+    }
+    
+    /**
+     * Number of entries per thread of zipPool that may be compressed ahead of the entry <br/>
+     * being written, limits the memory used by serveParallelZipStream(..).
+     */
+    private static final int zipWindow = 2;
+    
+    /**
+     * Files larger than this are not compressed in zipPool by serveParallelZipStream(..), <br/>
+     * which therefore holds at most zipWindow entries of about this size per thread in memory.
+     */
+    private static final long zipStreamedSize = 1L << 22;
+    
+    /**
+     * Tells whether "item" is a file whose latest version is larger than zipStreamedSize.
+     * @param item
+     * @return 
+     */
+    private static boolean isStreamedEntry(DItem item){
+        if (item.isDir()){
+            return false;
+        }
+        DVersion version = ((DFile) item).getLatestVersion();
+        return (version != null) && (version.getSize() > zipStreamedSize);
+    }
+    
+    /**
+     * Reconstructs the latest version of a file and compresses it, or prepares an empty directory.
+     */
+    private class ZipEntryTask implements Callable<ZipEntryTask> {
+        
+        /**
+         * The file or directory the entry represents.
+         */
+        private final DItem item;
+        
+        /**
+         * Path of the entry inside the archive.
+         */
+        private final String zipPath;
+        
+        /**
+         * The compressed contents, null for a directory.
+         */
+        private ByteArrayOutputStream deflated;
+        
+        /**
+         * CRC-32 of the uncompressed contents.
+         */
+        private long crc;
+        
+        /**
+         * Size of the uncompressed contents.
+         */
+        private long size;
+
+        ZipEntryTask(DItem item, String path) {
+            this.item = item;
+            this.zipPath = getZipPath(item, path);
+        }
+
+        @Override
+        public ZipEntryTask call() throws IOException, BlockNotFound {
+            if (item.isDir()){
+                return this;
+            }
+            DFile file = (DFile) item;
+            deflated = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            CRC32 checksum = new CRC32();
+            try {
+                DeflaterOutputStream dos = new DeflaterOutputStream(deflated, deflater, ChunkedOutputStream.defaultChunkSize);
+                CheckedOutputStream cos = new CheckedOutputStream(dos, checksum);
+                ReadWriteLock fileLock = getFileLock(file.getPath());
+                fileLock.readLock().lock();
+                try {
+                    writeVersion(file, file.getVersionCount()-1, cos);
+                } finally {
+                    fileLock.readLock().unlock();
+                }
+                dos.finish();
+                crc = checksum.getValue();
+                size = deflater.getBytesRead();
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+        
+        /**
+         * Reconstructs the latest version of the file and compresses it straight into <br/>
+         * the archive, instead of call() and writeTo(..).
+         * @param zip
+         * @throws IOException
+         * @throws BlockNotFound 
+         */
+        void streamTo(ZipStreamWriter zip) throws IOException, BlockNotFound {
+            DFile file = (DFile) item;
+            OutputStream os = zip.beginFile(zipPath);
+            ReadWriteLock fileLock = getFileLock(file.getPath());
+            fileLock.readLock().lock();
+            try {
+                writeVersion(file, file.getVersionCount()-1, os);
+            } finally {
+                fileLock.readLock().unlock();
+            }
+            zip.endFile();
+        }
+        
+        /**
+         * Writes the prepared entry to the archive.
+         * @param zip
+         * @throws IOException 
+         */
+        void writeTo(ZipStreamWriter zip) throws IOException {
+            if (item.isDir()){
+                zip.addDirectory(zipPath);
+            } else {
+                byte[] data = deflated.toByteArray();
+                deflated = null;
+                zip.addFile(zipPath, data, data.length, crc, size);
+            }
+        }
     }
     
     /**
@@ -1107,36 +2334,26 @@ public final class Server {
      * @param versionNumber A number of the version to use.
      * @param zos Output stream to the zip archive.
      * @param path Path prefix.
-     * @throws FileNotFoundException
      * @throws IOException 
+     * @throws BlockNotFound 
      */
     private void addToZip(DItem item, int versionNumber, ZipOutputStream zos, String path) 
-            throws FileNotFoundException, IOException {
+            throws IOException, BlockNotFound {
+        String zipFilePath = getZipPath(item, path);
         if (item.isDir()){
-            String zipFilePath;
-            if (!path.equals("")) {
-                zipFilePath = path + "/" + item.getName();
-            } else {
-                zipFilePath = item.getName();
-            }    
-            zipFilePath += "/";
             ZipEntry zipEntry = new ZipEntry(zipFilePath);
             zos.putNextEntry(zipEntry);                
             zos.closeEntry();
         } else {
             DFile file = (DFile) item;
-            byte[] data = serveGet(file, versionNumber==-1 ? file.getVersionCount()-1 : versionNumber);
-            String zipFilePath;
-            if (!path.equals("")) {
-                zipFilePath = path + "/" + file.getName();
-            } else {
-                zipFilePath = file.getName();
-            }    
             ZipEntry zipEntry = new ZipEntry(zipFilePath);
             zos.putNextEntry(zipEntry);
-            for (Byte b : data){
-                int c = ((int)b) + 128;
-                zos.write(c);
+            ReadWriteLock fileLock = getFileLock(file.getPath());
+            fileLock.readLock().lock();
+            try {
+                writeVersion(file, versionNumber==-1 ? file.getVersionCount()-1 : versionNumber, zos);
+            } finally {
+                fileLock.readLock().unlock();
             }
             zos.closeEntry();
         }
@@ -1,8 +1,8 @@
 package cz.filipekt;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -11,7 +11,6 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -75,28 +74,7 @@ class ServerUtils {
     }    
     
     /**
-     * Computes the strong hash for "inData", padding the input data with zero's at the end up to 
-     * "capacity", if needed.
-     * @param in_data
-     * @return Hexadecimal SHA-256 hash for "in_data"
-     */
-    static String computeStrongHash(List<Byte> in_data, int capacity) {
-        byte[] data2 = new byte[capacity];
-        int i = 0;
-        for(byte b : in_data){
-           data2[i++] = b;
-           if (i >= capacity){
-               break;
-           }
-        }
-        while (i<capacity){
-           data2[i++] = (byte)0;
-        }
-        return ServerUtils.computeStrongHash(data2);
-    }  
-    
-    /**
-     * Computes the strong hash for "inData"
+     * Computes the strong hash for "inData", in the hexadecimal form used for the contents of versions.
      * @param in_data
      * @return 
      */
@@ -104,78 +82,74 @@ class ServerUtils {
         if ((in_data == null) || (in_data.length == 0)){
             return "";
         }
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(in_data);         
-            byte[] h = md.digest();
-            return new BigInteger(h).toString(16);       
-        } catch (NoSuchAlgorithmException ex){
-            System.out.println(ex.getLocalizedMessage());
-            return "";
-        }
+        MessageDigest md = StrongHash.getDigest();
+        md.update(in_data);         
+        byte[] h = md.digest();
+        return new BigInteger(h).toString(16);       
     }
-       
-    /**
-     * Computes the strong hash of data on positions "from" - "to" (exclusive).
-     * Remaining bytes up to "windowSize" are filled with 0s.
-     * @param data
-     * @param windowSize 
-     * @param from
-     * @param to
-     * @return 
-     */
-    static String computeStrongHash(byte[] data, int windowSize, int from, int to) {
-        byte[] completeData = new byte[windowSize];
-        int i = 0;
-        for (int j = from; j < to; j++){
-            completeData[i++] = data[j];
-        }
-        while (i < windowSize){
-            completeData[i++] = (byte)0;
-        }
-        return ServerUtils.computeStrongHash(completeData);
-    }    
     
     /**
-     * Loads the contents of the "block" from disc and return it as array of bytes.
+     * Reads the block file of "block" into "buffer" on position "offset", without converting <br/>
+     * the bytes into the internal representation, i.e. the result holds the original file contents. <br/>
+     * Only the blocks saved before the packs of BlockStore were introduced have block files.
      * @param block
-     * @return
-     * @throws IOException 
+     * @param dir
+     * @param buffer Must be able to hold the used part of the block.
+     * @param offset
+     * @return Number of bytes read.
+     * @throws IOException If the block file is shorter than expected.
      */
-    static byte[] loadBlockFromDisc(DBlock block, String dir) throws IOException{
-        String name = block.getName();
-        Path p = Paths.get(dir, name);
+    static int readBlockFile(DBlock block, String dir, byte[] buffer, int offset) throws IOException{
+        Path p = Paths.get(dir, block.getName());
         int validBytes = block.getUsed();
-        byte[] res = new byte[validBytes];        
-        try (BufferedInputStream bis = new BufferedInputStream(Files.newInputStream(p))){            
-            int i = 0;        
-            int c;
-            while(((c=bis.read())!=-1) && (i < validBytes)){
-                res[i++] = (byte) (c-128);                
-            }                        
+        try (InputStream is = Files.newInputStream(p)){
+            int i = 0;
+            while (i < validBytes){
+                int count = is.read(buffer, offset + i, validBytes - i);
+                if (count == -1){
+                    throw new EOFException();
+                }
+                i += count;
+            }
         }
-        return res;
+        return validBytes;
+    }
+    
+    /**
+     * The largest array which can be allocated safely.
+     */
+    static final int maxArraySize = Integer.MAX_VALUE - 8;
+    
+    /**
+     * Tells whether the contents of "version" fit into a single array, <br/>
+     * as loaded by loadVersionFromDisc(..) or reconstructed from a script.
+     * @param version
+     * @return 
+     */
+    static boolean fitsInArray(DVersion version){
+        return (version.getSize() <= maxArraySize) && (version.estimateSize() <= maxArraySize);
     }
     
     /**
      * Loads the contents of "version" from disc as a list of bytes
      * @param version
      * @return
-     * @throws IOException
+     * @throws IOException If the version does not fit into an array.
      * @throws BlockNotFound 
      */
-    static byte[] loadVersionFromDisc(DVersion version, String dir) 
+    static byte[] loadVersionFromDisc(DVersion version, BlockStore store) 
             throws IOException, BlockNotFound{        
-        int versionSize = version.estimateSize();
-        byte[] fileContent = new byte[versionSize];
+        long versionSize = version.estimateSize();
+        if (versionSize > maxArraySize){
+            throw new IOException();
+        }
+        byte[] fileContent = new byte[(int) versionSize];
         int i = 0;
         if (version.isScriptForm() || (version.getBlocks() == null)){
             throw new BlockNotFound();
         }
         for(DBlock block : version.getBlocks()){
-            byte[] blockData = loadBlockFromDisc(block, dir);
-            System.arraycopy(blockData, 0, fileContent, i, blockData.length);
-            i += blockData.length;
+            i += store.read(block, fileContent, i);
         }
         return fileContent;
     }                          
@@ -313,37 +287,7 @@ class ServerUtils {
     }            
     
     /**
-     * Saves the contents ("bytes") of the block "hash" into the appropriate file on disc
-     * @param bytes
-     * @param hash
-     * @return Returns the position in the hash collision list
-     * @throws IOException 
-     */
-    static int saveBlock(byte[] bytes, long hash, String homeDir, int validBytes) throws IOException{
-        boolean hotovo = false;
-        int v = 0;
-        while(!hotovo){
-            String name = DBlock.getName(Long.toHexString(hash), v);            
-            Path p = Paths.get(homeDir, name);
-            if(Files.exists(p)){
-                v++;
-                continue;
-            } else {
-                Files.createFile(p);
-                try (BufferedOutputStream bos = new BufferedOutputStream(Files.newOutputStream(p))){
-                    for (int i = 0; i<validBytes; i++){
-                        int b = (int)bytes[i] + 128;
-                        bos.write(b);
-                    }
-                }
-                hotovo = true;
-            }                        
-        }
-        return v;
-    }    
-    
-    /**
-     * Deletes a file containing a block contents from disc.
+     * Deletes the file containing the contents of a block saved before the packs of BlockStore were introduced.
      * @param name
      * @param home_dir
      * @throws IOException 
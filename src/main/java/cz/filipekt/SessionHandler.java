@@ -0,0 +1,35 @@
+package cz.filipekt;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Serves the requests of the connected clients.
+ * @author Tomas Filipek
+ */
+interface SessionHandler {
+
+    /**
+     * Called once for each accepted connection, before any request is served.
+     * @param socket
+     * @return The session used for all the requests of the connection.
+     * @throws IOException
+     */
+    ClientSession open(Socket socket) throws IOException;
+
+    /**
+     * Reads and serves a single request of the client. <br/>
+     * Blocks until the request arrives.
+     * @param session
+     * @return False if the client has finished and the session should be closed.
+     * @throws IOException If the request could not be served, the session is then closed as failed.
+     */
+    boolean serve(ClientSession session) throws IOException;
+
+    /**
+     * Called once the connection is finished, the session has to be closed here.
+     * @param session
+     * @param success False if the connection has been terminated by an error.
+     */
+    void close(ClientSession session, boolean success);
+}
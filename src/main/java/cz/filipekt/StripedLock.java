@@ -0,0 +1,44 @@
+package cz.filipekt;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read-write locks ("stripes"). Every key is mapped to one of the stripes <br/>
+ * by its hash code, so that unrelated keys can be locked independently without keeping <br/>
+ * a separate lock object for each of them.
+ * @author Tomas Filipek
+ */
+class StripedLock {
+
+    /**
+     * The locks, their number is a power of two.
+     */
+    private final ReentrantReadWriteLock[] stripes;
+
+    /**
+     * @param count Minimal number of stripes, rounded up to the nearest power of two.
+     */
+    StripedLock(int count){
+        int size = 1;
+        while (size < count){
+            size <<= 1;
+        }
+        stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i<size; i++){
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Returns the lock guarding the specified key.
+     * @param key
+     * @return
+     */
+    ReadWriteLock get(Object key){
+        int h = (key == null) ? 0 : key.hashCode();
+        h ^= (h >>> 16);
+        h ^= (h >>> 7);
+        return stripes[h & (stripes.length - 1)];
+    }
+}
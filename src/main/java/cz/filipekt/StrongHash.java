@@ -0,0 +1,170 @@
+package cz.filipekt;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The strong (SHA-256) hash value of a block, held as 32 binary bytes. <br/>
+ * Used as the key of blocks in Database and sent over the network as 32 raw bytes.
+ * @author Tomas Filipek
+ */
+final class StrongHash {
+
+    /**
+     * Number of bytes of a hash value.
+     */
+    static final int length = 32;
+
+    /**
+     * The bytes of the hash value, 8 in each, big-endian.
+     */
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h3;
+
+    private StrongHash(long h0, long h1, long h2, long h3) {
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+    }
+
+    /**
+     * Creates the hash value from its 32 bytes.
+     * @param bytes
+     * @return
+     */
+    static StrongHash fromBytes(byte[] bytes){
+        return new StrongHash(getLong(bytes, 0), getLong(bytes, 8), getLong(bytes, 16), getLong(bytes, 24));
+    }
+
+    private static long getLong(byte[] bytes, int offset){
+        long res = 0;
+        for (int i = 0; i<8; i++){
+            res = (res << 8) | (bytes[offset + i] & 0xff);
+        }
+        return res;
+    }
+
+    /**
+     * Parses the hexadecimal form the strong hash values were kept in previously, <br/>
+     * i.e. new BigInteger(digest).toString(16).
+     * @param hex
+     * @return
+     */
+    static StrongHash fromLegacyHex(String hex){
+        byte[] value = new BigInteger(hex, 16).toByteArray();
+        byte[] bytes = new byte[length];
+        byte sign = (value[0] < 0) ? (byte) 0xff : 0;
+        int skip = Math.max(value.length - length, 0);
+        int padding = length - (value.length - skip);
+        for (int i = 0; i<length; i++){
+            bytes[i] = (i < padding) ? sign : value[skip + i - padding];
+        }
+        return fromBytes(bytes);
+    }
+
+    /**
+     * Digests used by the current thread, so that none is created per hash value.
+     */
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>(){
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex){
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    /**
+     * Returns the SHA-256 digest of the current thread, in its initial state.
+     * @return
+     */
+    static MessageDigest getDigest(){
+        MessageDigest md = digests.get();
+        md.reset();
+        return md;
+    }
+
+    /**
+     * Zero bytes used as padding by compute(..), never modified.
+     */
+    private static final byte[] zeros = new byte[4096];
+
+    /**
+     * Computes the strong hash of data on positions "from" - "to" (exclusive). <br/>
+     * Remaining bytes up to "windowSize" are taken as 0s, without copying the data.
+     * @param data
+     * @param windowSize
+     * @param from
+     * @param to
+     * @return
+     */
+    static StrongHash compute(byte[] data, int windowSize, int from, int to){
+        MessageDigest md = getDigest();
+        int used = Math.min(to - from, windowSize);
+        md.update(data, from, used);
+        for (int padding = windowSize - used; padding > 0; padding -= zeros.length){
+            md.update(zeros, 0, Math.min(padding, zeros.length));
+        }
+        return fromBytes(md.digest());
+    }
+
+    /**
+     * Computes the strong hash of "data".
+     * @param data
+     * @return
+     */
+    static StrongHash compute(byte[] data){
+        return compute(data, data.length, 0, data.length);
+    }
+
+    /**
+     * Writes the 32 bytes of the hash value.
+     * @param output
+     */
+    void write(Output output){
+        output.writeLong(h0);
+        output.writeLong(h1);
+        output.writeLong(h2);
+        output.writeLong(h3);
+    }
+
+    /**
+     * Reads a hash value written by write(..).
+     * @param input
+     * @return
+     */
+    static StrongHash read(Input input){
+        return new StrongHash(input.readLong(), input.readLong(), input.readLong(), input.readLong());
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (h0 ^ (h0 >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof StrongHash)) {
+            return false;
+        }
+        final StrongHash other = (StrongHash) obj;
+        return (h0 == other.h0) && (h1 == other.h1) && (h2 == other.h2) && (h3 == other.h3);
+    }
+
+    /**
+     * Returns the hexadecimal representation, always 64 characters long.
+     * @return
+     */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", h0, h1, h2, h3);
+    }
+}
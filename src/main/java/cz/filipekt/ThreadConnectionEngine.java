@@ -0,0 +1,86 @@
+package cz.filipekt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves each connection by a dedicated thread, which blocks on the socket <br/>
+ * while waiting for the next request of the client.
+ * @author Tomas Filipek
+ */
+class ThreadConnectionEngine implements ConnectionEngine {
+
+    /**
+     * Thread pool for serving user requests.
+     */
+    private final Executor threadPool = Executors.newCachedThreadPool();
+
+    /**
+     * The listening socket.
+     */
+    private ServerSocketChannel serverChannel;
+
+    @Override
+    public void bind(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+    }
+
+    @Override
+    public void run(final SessionHandler handler) throws IOException {
+        try {
+            while (true){
+                final SocketChannel channel = serverChannel.accept();
+                if (channel != null){
+                    threadPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serveConnection(channel, handler);
+                        }
+                    });
+                }
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Serves all the requests of a single connection.
+     * @param channel
+     * @param handler
+     */
+    private void serveConnection(SocketChannel channel, SessionHandler handler){
+        ClientSession session;
+        try {
+            session = handler.open(channel.socket());
+        } catch (IOException ex){
+            try {
+                channel.close();
+            } catch (IOException ex2) {
+                Logger.getLogger(ThreadConnectionEngine.class.getName()).log(Level.SEVERE, null, ex2);
+            }
+            return;
+        }
+        boolean success = false;
+        try {
+            while (handler.serve(session)){}
+            success = true;
+        } catch (IOException | RuntimeException ex){
+            success = false;
+        } finally {
+            handler.close(session, success);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "threads";
+    }
+}
@@ -0,0 +1,127 @@
+package cz.filipekt;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Read-only view of the contents of a file being uploaded by the client. <br/>
+ * Large files are memory-mapped in segments, so that they are not limited to 2 GB <br/>
+ * and do not occupy the heap. Small files are simply read into a single array.
+ * @author Tomas Filipek
+ */
+class UploadSource {
+
+    /**
+     * Files at least this large are memory-mapped instead of read into the heap.
+     */
+    static final long mapThreshold = 1L << 24;
+
+    /**
+     * Each mapped segment has 2^segmentBits bytes, except the last one.
+     */
+    private static final int segmentBits = 30;
+
+    private static final long segmentMask = (1L << segmentBits) - 1;
+
+    /**
+     * The contents of the file, split into segments of 2^segmentBits bytes.
+     */
+    private final ByteBuffer[] segments;
+
+    /**
+     * Size of the file.
+     */
+    private final long length;
+
+    long length() {
+        return length;
+    }
+
+    private UploadSource(ByteBuffer[] segments, long length) {
+        this.segments = segments;
+        this.length = length;
+    }
+
+    /**
+     * Opens the file for reading. The file must not be changed until the upload finishes.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static UploadSource open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = channel.size();
+            if (size < mapThreshold){
+                byte[] contents = Files.readAllBytes(file);
+                return new UploadSource(new ByteBuffer[]{ByteBuffer.wrap(contents)}, contents.length);
+            }
+            ByteBuffer[] segments = new ByteBuffer[(int) (((size - 1) >>> segmentBits) + 1)];
+            for (int i = 0; i<segments.length; i++){
+                long position = (long) i << segmentBits;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, 1L << segmentBits));
+            }
+            return new UploadSource(segments, size);
+        }
+    }
+
+    /**
+     * Returns the byte on the position "pos" of the file.
+     * @param pos
+     * @return
+     */
+    byte get(long pos) {
+        return segments[(int) (pos >>> segmentBits)].get((int) (pos & segmentMask));
+    }
+
+    /**
+     * Copies the bytes on positions "from" - "to" (exclusive), converting them into the <br/>
+     * internal representation used for hashing and transfers.
+     * @param from
+     * @param to
+     * @return
+     */
+    byte[] shiftedCopy(long from, long to) {
+        byte[] res = new byte[(int) (to - from)];
+        for (int i = 0; i<res.length; i++){
+            res[i] = (byte) (get(from + i) ^ 0x80);
+        }
+        return res;
+    }
+
+    /**
+     * Copies "length" bytes starting at the position "from" into "dest" on position "offset", </br>
+     * converting them like shiftedCopy(..).
+     * @param from
+     * @param dest
+     * @param offset
+     * @param length
+     */
+    void shiftedCopy(long from, byte[] dest, int offset, int length) {
+        for (int i = 0; i<length; i++){
+            dest[offset + i] = (byte) (get(from + i) ^ 0x80);
+        }
+    }
+
+    /**
+     * Computes the strong hash of the whole file, without copying it into the heap. <br/>
+     * Gives the same result as ServerUtils.computeStrongHash(byte[]) on the contents.
+     * @return
+     */
+    String computeContentHash() {
+        if (length == 0){
+            return "";
+        }
+        MessageDigest md = StrongHash.getDigest();
+        for (ByteBuffer segment : segments){
+            md.update(segment.duplicate());
+        }
+        byte[] h = md.digest();
+        return new BigInteger(h).toString(16);
+    }
+}
@@ -0,0 +1,22 @@
+package cz.filipekt;
+
+/**
+ * The client's knowledge of the weak hash values of the blocks present on the server, </br>
+ * used to skip asking the server about blocks that certainly are not present.
+ * @author Tomas Filipek
+ */
+interface WeakHashIndex {
+
+    /**
+     * Returns false if no block with the weak hash value "hash" is present on the server.
+     * @param hash
+     * @return
+     */
+    boolean mightContain(long hash);
+
+    /**
+     * Records that a block with the weak hash value "hash" has been added to the server.
+     * @param hash
+     */
+    void add(long hash);
+}
@@ -0,0 +1,29 @@
+package cz.filipekt;
+
+import java.util.Set;
+
+/**
+ * Exact WeakHashIndex, holding all the values in a set.
+ * @author Tomas Filipek
+ */
+class WeakHashSet implements WeakHashIndex {
+
+    /**
+     * The weak hash values.
+     */
+    private final Set<Long> values;
+
+    WeakHashSet(Set<Long> values) {
+        this.values = values;
+    }
+
+    @Override
+    public boolean mightContain(long hash) {
+        return values.contains(hash);
+    }
+
+    @Override
+    public void add(long hash) {
+        values.add(hash);
+    }
+}
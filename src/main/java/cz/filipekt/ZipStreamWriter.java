@@ -0,0 +1,285 @@
+package cz.filipekt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip archive whose entries have already been compressed elsewhere. <br/>
+ * Unlike ZipOutputStream, it accepts raw deflated data together with their CRC-32 <br/>
+ * and sizes, so that the entries may be compressed in parallel and only written here. <br/>
+ * Large entries may be compressed while being written instead, see beginFile(..). <br/>
+ * Zip64 extensions are not supported, the archive must stay below 4 GB.
+ * @author Tomas Filipek
+ */
+class ZipStreamWriter {
+
+    /**
+     * The archive is written here.
+     */
+    private final OutputStream out;
+
+    /**
+     * The central directory, written at the end of the archive.
+     */
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+    /**
+     * Number of bytes written to "out" so far.
+     */
+    private long written = 0;
+
+    /**
+     * Number of entries written so far.
+     */
+    private int entryCount = 0;
+
+    /**
+     * Modification time of all the entries, in MS-DOS format.
+     */
+    private final int dosTime;
+
+    /**
+     * Modification date of all the entries, in MS-DOS format.
+     */
+    private final int dosDate;
+
+    /**
+     * The largest size or offset that can be stored without Zip64 extensions.
+     */
+    static final long sizeLimit = 0xFFFFFFFFL;
+
+    /**
+     * The largest number of entries that can be stored without Zip64 extensions.
+     */
+    static final int entryLimit = 0xFFFF;
+
+    private static final int methodStored = 0;
+    private static final int methodDeflated = 8;
+
+    /**
+     * General purpose flag telling that the entry names are encoded in UTF-8.
+     */
+    private static final int flagUtf8 = 0x800;
+
+    /**
+     * General purpose flag telling that the CRC-32 and the sizes follow the data, in a data descriptor.
+     */
+    private static final int flagDescriptor = 0x8;
+
+    /**
+     * Name of the entry being written by the stream returned from beginFile(..), or null.
+     */
+    private byte[] streamedName;
+
+    /**
+     * Offset of the local header of the entry being streamed.
+     */
+    private long streamedOffset;
+
+    /**
+     * Number of bytes written to "out" before the data of the entry being streamed.
+     */
+    private long streamedStart;
+
+    private Deflater deflater;
+    private CRC32 checksum;
+    private DeflaterOutputStream deflating;
+
+    ZipStreamWriter(OutputStream out) {
+        this.out = out;
+        Calendar c = Calendar.getInstance();
+        dosTime = (c.get(Calendar.SECOND) >> 1) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.HOUR_OF_DAY) << 11);
+        dosDate = c.get(Calendar.DAY_OF_MONTH) | ((c.get(Calendar.MONTH) + 1) << 5) | ((c.get(Calendar.YEAR) - 1980) << 9);
+    }
+
+    /**
+     * Adds an empty directory.
+     * @param name Path of the directory inside the archive, ending with "/".
+     * @throws IOException
+     */
+    void addDirectory(String name) throws IOException {
+        addEntry(name, methodStored, 0, new byte[0], 0, 0, 0x10);
+    }
+
+    /**
+     * Adds a regular file.
+     * @param name Path of the file inside the archive.
+     * @param deflated The file contents compressed by a Deflater with the "nowrap" option.
+     * @param length Number of valid bytes in "deflated".
+     * @param crc CRC-32 of the uncompressed contents.
+     * @param size Size of the uncompressed contents.
+     * @throws IOException
+     */
+    void addFile(String name, byte[] deflated, int length, long crc, long size) throws IOException {
+        addEntry(name, methodDeflated, crc, deflated, length, size, 0);
+    }
+
+    /**
+     * Starts adding a regular file, whose contents are compressed while being written <br/>
+     * to the returned stream, so that they are never held in memory as a whole. <br/>
+     * The CRC-32 and the sizes are written after the data, by endFile(), which has to be <br/>
+     * called before anything else is added. The returned stream must not be closed.
+     * @param name Path of the file inside the archive.
+     * @return Stream accepting the uncompressed contents.
+     * @throws IOException
+     */
+    OutputStream beginFile(String name) throws IOException {
+        if (entryCount >= entryLimit){
+            throw new ZipException();
+        }
+        streamedName = name.getBytes(StandardCharsets.UTF_8);
+        streamedOffset = written;
+        writeLocalHeader(streamedName, flagUtf8 | flagDescriptor, methodDeflated, 0, 0, 0);
+        streamedStart = written;
+        OutputStream counting = new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written += len;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        checksum = new CRC32();
+        deflating = new DeflaterOutputStream(counting, deflater, ChunkedOutputStream.defaultChunkSize);
+        return new CheckedOutputStream(deflating, checksum);
+    }
+
+    /**
+     * Finishes the file started by beginFile(..), writing its data descriptor.
+     * @throws IOException
+     */
+    void endFile() throws IOException {
+        try {
+            deflating.finish();
+            long length = written - streamedStart;
+            long size = deflater.getBytesRead();
+            if ((size > sizeLimit) || (written > sizeLimit)){
+                throw new ZipException();
+            }
+            ByteArrayOutputStream descriptor = new ByteArrayOutputStream(16);
+            writeInt(descriptor, 0x08074b50);
+            writeInt(descriptor, checksum.getValue());
+            writeInt(descriptor, length);
+            writeInt(descriptor, size);
+            descriptor.writeTo(out);
+            written += descriptor.size();
+            addCentralEntry(streamedName, flagUtf8 | flagDescriptor, methodDeflated, 
+                    checksum.getValue(), length, size, 0, streamedOffset);
+        } finally {
+            deflater.end();
+            deflater = null;
+            checksum = null;
+            deflating = null;
+            streamedName = null;
+        }
+    }
+
+    private void addEntry(String name, int method, long crc, byte[] data, int length, long size, int externalAttributes)
+            throws IOException {
+        if ((size > sizeLimit) || (written + length > sizeLimit) || (entryCount >= entryLimit)){
+            throw new ZipException();
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long offset = written;
+        writeLocalHeader(nameBytes, flagUtf8, method, crc, length, size);
+        out.write(data, 0, length);
+        written += length;
+        addCentralEntry(nameBytes, flagUtf8, method, crc, length, size, externalAttributes, offset);
+    }
+
+    private void writeLocalHeader(byte[] nameBytes, int flags, int method, long crc, long length, long size)
+            throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(30 + nameBytes.length);
+        writeInt(header, 0x04034b50);
+        writeShort(header, 20);
+        writeShort(header, flags);
+        writeShort(header, method);
+        writeShort(header, dosTime);
+        writeShort(header, dosDate);
+        writeInt(header, crc);
+        writeInt(header, length);
+        writeInt(header, size);
+        writeShort(header, nameBytes.length);
+        writeShort(header, 0);
+        header.write(nameBytes);
+        header.writeTo(out);
+        written += header.size();
+    }
+
+    private void addCentralEntry(byte[] nameBytes, int flags, int method, long crc, long length, long size, 
+            int externalAttributes, long offset) throws IOException {
+        writeInt(centralDirectory, 0x02014b50);
+        writeShort(centralDirectory, 20);
+        writeShort(centralDirectory, 20);
+        writeShort(centralDirectory, flags);
+        writeShort(centralDirectory, method);
+        writeShort(centralDirectory, dosTime);
+        writeShort(centralDirectory, dosDate);
+        writeInt(centralDirectory, crc);
+        writeInt(centralDirectory, length);
+        writeInt(centralDirectory, size);
+        writeShort(centralDirectory, nameBytes.length);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeInt(centralDirectory, externalAttributes);
+        writeInt(centralDirectory, offset);
+        centralDirectory.write(nameBytes);
+        entryCount++;
+    }
+
+    /**
+     * Writes the central directory, the archive must not be changed afterwards. <br/>
+     * The underlying stream is not closed.
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if (written + centralDirectory.size() > sizeLimit){
+            throw new ZipException();
+        }
+        long centralOffset = written;
+        centralDirectory.writeTo(out);
+        ByteArrayOutputStream end = new ByteArrayOutputStream(22);
+        writeInt(end, 0x06054b50);
+        writeShort(end, 0);
+        writeShort(end, 0);
+        writeShort(end, entryCount);
+        writeShort(end, entryCount);
+        writeInt(end, centralDirectory.size());
+        writeInt(end, centralOffset);
+        writeShort(end, 0);
+        end.writeTo(out);
+        written += centralDirectory.size() + end.size();
+        out.flush();
+    }
+
+    private static void writeShort(ByteArrayOutputStream os, int v) {
+        os.write(v & 0xff);
+        os.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream os, long v) {
+        writeShort(os, (int) (v & 0xffff));
+        writeShort(os, (int) ((v >>> 16) & 0xffff));
+    }
+}
@@ -4,31 +4,167 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Represents a patch containing the operations needed to change
- * a file A into file B.
+ * a file A into file B. <br/>
+ * The operations are kept run-length encoded: COPY copies the next bytes of A, ADD inserts 
+ * the next bytes of "added", SKIP skips the next bytes of A. Their positions in A and B 
+ * follow from the preceding operations, so applying the script is a sequence of array copies.
  * @author Tomas Filipek
  */
 public class EditScript {     
     
     /**
-     * Sorted sequence of operations that would turn file A into file B.
+     * Copies the following "length" bytes of A into B.
      */
-    private final List<Operation> operations;     
+    private static final byte COPY = 0;
+    
+    /**
+     * Inserts the following "length" bytes of "added" into B.
+     */
+    private static final byte ADD = 1;
+    
+    /**
+     * Skips the following "length" bytes of A.
+     */
+    private static final byte SKIP = 2;
+    
+    /**
+     * Types of the operations, i.e. COPY, ADD or SKIP.
+     */
+    private final byte[] types;
+    
+    /**
+     * Number of bytes each operation works with.
+     */
+    private final int[] lengths;
+    
+    /**
+     * The bytes inserted by all the ADD operations, in their order.
+     */
+    private final byte[] added;
     
     /**
      * Size of the file B , in bytes.
      */
     private final int sizeOfB;   
 
-    private EditScript(List<Operation> operations, int sizeOfB) {
-        this.operations = operations;
+    private EditScript(byte[] types, int[] lengths, byte[] added, int sizeOfB) {
+        this.types = types;
+        this.lengths = lengths;
+        this.added = added;
         this.sizeOfB = sizeOfB;
     }
     
+    /**
+     * Collects the operations of a new script, as found by Myers or read from the legacy format. <br/>
+     * Between two copies, all the deleted bytes are merged into one SKIP and all the inserted <br/>
+     * bytes into one ADD, as skipping in A and inserting into B do not depend on each other.
+     */
+    static class Builder {
+        
+        private byte[] types = new byte[16];
+        
+        private int[] lengths = new int[16];
+        
+        private int count = 0;
+        
+        private byte[] added = new byte[16];
+        
+        private int addedCount = 0;
+        
+        /**
+         * Bytes of A skipped since the last copy.
+         */
+        private int skip = 0;
+        
+        /**
+         * Bytes inserted since the last copy, at the end of "added".
+         */
+        private int add = 0;
+        
+        /**
+         * Number of the single byte deletions and insertions and of the copies received, <br/>
+         * i.e. the length of the script before the run-length encoding.
+         */
+        private int operationCount = 0;
+
+        int getOperationCount() {
+            return operationCount;
+        }
+        
+        /**
+         * Skips the following "length" bytes of A, counted as "length" operations.
+         * @param length 
+         */
+        void skip(int length){
+            skip += length;
+            operationCount += length;
+        }
+        
+        /**
+         * Inserts a single byte into B.
+         * @param data 
+         */
+        void insert(byte data){
+            if (addedCount == added.length){
+                added = Arrays.copyOf(added, added.length * 2);
+            }
+            added[addedCount++] = data;
+            add++;
+            operationCount++;
+        }
+        
+        /**
+         * Copies the following "length" bytes of A into B, counted as a single operation.
+         * @param length 
+         */
+        void copy(int length){
+            if (length <= 0){
+                return;
+            }
+            operationCount++;
+            if ((skip == 0) && (add == 0) && (count > 0) && (types[count-1] == COPY)){
+                lengths[count-1] += length;
+                return;
+            }
+            flush();
+            append(COPY, length);
+        }
+        
+        /**
+         * Appends the pending SKIP and ADD operations.
+         */
+        private void flush(){
+            if (skip > 0){
+                append(SKIP, skip);
+                skip = 0;
+            }
+            if (add > 0){
+                append(ADD, add);
+                add = 0;
+            }
+        }
+        
+        private void append(byte type, int length){
+            if (count == types.length){
+                types = Arrays.copyOf(types, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            types[count] = type;
+            lengths[count] = length;
+            count++;
+        }
+        
+        EditScript build(int sizeOfB){
+            flush();
+            return new EditScript(Arrays.copyOf(types, count), Arrays.copyOf(lengths, count), 
+                    Arrays.copyOf(added, addedCount), sizeOfB);
+        }
+    }
+    
     /**
      * Applies the operations contained in this EditScript to the byte array 
      * specified in parameters (== contents of file A). The result is the 
@@ -37,23 +173,29 @@ public class EditScript {
      * @return Contents of file B
      */
     public byte[] applyTo(byte[] src){
-        if ((src == null) || (operations == null)){
+        if (src == null){
             return null;
         }
         byte[] res = new byte[sizeOfB];
         int isrc = 0;
         int ires = 0;
-        for (Operation o : operations){
-            if (o instanceof Delete){                
-                isrc++;
-            } else if (o instanceof Insert){
-                Insert ins = (Insert)o;
-                res[ires++] = ins.getData();
-            } else if (o instanceof Diagonal){
-                Diagonal dia = (Diagonal) o;
-                for (int i = 0; i<dia.getCount(); i++){
-                    res[ires++] = src[isrc++];
-                }
+        int iadded = 0;
+        for (int i = 0; i<types.length; i++){
+            int length = lengths[i];
+            switch (types[i]){
+                case COPY:
+                    System.arraycopy(src, isrc, res, ires, length);
+                    isrc += length;
+                    ires += length;
+                    break;
+                case ADD:
+                    System.arraycopy(added, iadded, res, ires, length);
+                    iadded += length;
+                    ires += length;
+                    break;
+                case SKIP:
+                    isrc += length;
+                    break;
             }
         }
         return res;
@@ -77,11 +219,11 @@ public class EditScript {
             return null;
         }
         Myers myers = new Myers(A, B, sizeLimit, tooExpensive);
-        List<Operation> snakes = myers.compare(heuristics);
-        if ((snakes == null) || ((sizeLimit > 0) && (snakes.size() > sizeLimit))){
+        Builder builder = new Builder();
+        if (!myers.compare(heuristics, builder) || ((sizeLimit > 0) && (builder.getOperationCount() > sizeLimit))){
             return null;
         }       
-        return new EditScript(snakes, B.length);                      
+        return builder.build(B.length);                      
     }         
     
     /**
@@ -92,6 +234,12 @@ public class EditScript {
         return new EditScriptSerializer();
     }
 
+    /**
+     * Written at the start of a serialized script. Scripts saved before the run-length encoding <br/>
+     * was introduced start with (non-negative) sizeOfB instead, followed by single byte operations.
+     */
+    private static final int formatMarker = -1;
+
     /**
      * Used for serialization by the Kryo framework.
      */
@@ -99,51 +247,61 @@ public class EditScript {
 
         @Override
         public void write(Kryo kryo, Output output, EditScript t) {
+            output.writeInt(formatMarker);
             output.writeInt(t.sizeOfB);
-            if (t.operations == null){
-                output.writeInt(0);
-            } else {
-                output.writeInt(t.operations.size());
-                for (Operation o : t.operations){
-                    if (o instanceof Delete){
-                        output.writeByte((byte)1);
-                    } else if (o instanceof Insert){
-                        output.writeByte((byte)2);
-                        output.writeByte(((Insert)o).getData());
-                    } else if (o instanceof Diagonal){
-                        output.writeByte((byte)3);
-                        output.writeInt(((Diagonal)o).getCount());
-                    } else {
-                        output.writeByte((byte)0);
-                    }
-                }                        
+            output.writeInt(t.types.length);
+            for (int i = 0; i<t.types.length; i++){
+                output.writeByte(t.types[i]);
+                output.writeInt(t.lengths[i], true);
             }
+            output.writeInt(t.added.length);
+            output.writeBytes(t.added);
         }
 
         @Override
         public EditScript read(Kryo kryo, Input input, Class<EditScript> type) {
+            int marker = input.readInt();
+            if (marker != formatMarker){
+                return readLegacy(input, marker);
+            }
             int bsize = input.readInt();
             int opCount = input.readInt();
-            List<Operation> res = new ArrayList<>();
+            byte[] types = new byte[opCount];
+            int[] lengths = new int[opCount];
+            for (int i = 0; i<opCount; i++){
+                types[i] = input.readByte();
+                lengths[i] = input.readInt(true);
+            }
+            byte[] added = input.readBytes(input.readInt());
+            return new EditScript(types, lengths, added, bsize);
+        }
+        
+        /**
+         * Reads a script saved as single byte operations.
+         * @param input
+         * @param bsize
+         * @return 
+         */
+        private EditScript readLegacy(Input input, int bsize) {
+            int opCount = input.readInt();
+            Builder builder = new Builder();
             for (int i = 0; i<opCount; i++){
                 byte operation = input.readByte();
                 switch(operation){                    
                     case (byte)1:
-                        res.add(new Delete());
+                        builder.skip(1);
                         break;
                     case (byte)2:
-                        byte data = input.readByte();
-                        res.add(new Insert(data));
+                        builder.insert(input.readByte());
                         break;
                     case (byte)3:
-                        int count = input.readInt();
-                        res.add(new Diagonal(count));
+                        builder.copy(input.readInt());
                         break;
                     default:
                         break;
                 }
             }
-            return new EditScript(res, bsize);
+            return builder.build(bsize);
         }
     }
 }
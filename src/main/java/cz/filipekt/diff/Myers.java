@@ -1,8 +1,6 @@
 package cz.filipekt.diff;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * Contains the implementation of the Myers' diff algorithm and 
@@ -222,64 +220,69 @@ class Myers {
     }
     
     /**
-     * Finds a path through the edit graph and returns it as a list of edit operations
+     * Finds a path through the edit graph and appends it to "builder" as edit operations
      * on array A.
      * @param heuristics
-     * @return 
+     * @param builder
+     * @return False if the script would be longer than sizeLimit.
      */
-    List<Operation> compare(boolean heuristics){
-        List<Operation> ops = compare(0, A.length, 0, B.length, heuristics, true);
+    boolean compare(boolean heuristics, EditScript.Builder builder){
+        this.builder = builder;
+        boolean res = compare(0, A.length, 0, B.length, heuristics, true);
         size = 0;
-        return ops;
+        this.builder = null;
+        return res;
     }
     
     /**
-     * Finds a path through the edit graph and returns it as a list of edit operations
+     * Receives the edit operations found by compare(..), in their order.
+     */
+    private EditScript.Builder builder;
+    
+    /**
+     * Finds a path through the edit graph and appends it to "builder" as edit operations
      * on array A.
      * @param Afrom X-coordinate of the edit graph initial point.
      * @param Ato X-coordinate of the edit graph end point.
      * @param Bfrom Z-coordinate of the edit graph initial point.
      * @param Bto Z-coordinate of the edit graph end point.
      * @param heuristics If true, heuristics may be used to save time, but a suboptimal path may be returned.
-     * @return 
+     * @return False if the script would be longer than sizeLimit.
      */
-    private List<Operation> compare(int Afrom, int Ato, int Bfrom, int Bto, boolean heuristics, boolean addup){
+    private boolean compare(int Afrom, int Ato, int Bfrom, int Bto, boolean heuristics, boolean addup){
         if ((sizeLimit > 0) && (size > sizeLimit)){
-            return null;
+            return false;
         }
         final int n = Ato - Afrom;
         final int m = Bto - Bfrom;
-        List<Snake> res = new ArrayList<>();
         if ((m==0) && (n>0)){
             if (addup){
                 size += n;
             }
             if ((sizeLimit > 0) && (size > sizeLimit)){
-                return null;
+                return false;
             }            
-            for (int i = Afrom; i<Ato; i++){
-                res.add(new Snake(new Point(i, Bfrom), new Point(i+1, Bfrom), new Point(i+1, Bfrom)));
-            }
-            return fromSnakes(res);
+            builder.skip(n);
+            return true;
         }
         if ((n==0) && (m>0)){
             if (addup){
                 size += m;
             }
             if ((sizeLimit > 0) && (size > sizeLimit)){
-                return null;
+                return false;
             }
             for (int i = Bfrom; i<Bto; i++){
-               res.add(new Snake(new Point(Afrom, i), new Point(Afrom, i+1), new Point(Afrom, i+1)));
+                builder.insert(B[i]);
             }
-            return fromSnakes(res);
+            return true;
         }
         if ((m==0) && (n==0)){
-           return new ArrayList<>();
+           return true;
         }
         Quadruple<Snake,Integer,Boolean,Boolean> middleSnake = findMiddleSnake(Afrom, Ato, Bfrom, Bto, heuristics);
         if (middleSnake == null){
-            return null;
+            return false;
         }
         int d = middleSnake.b;   
         boolean optimal = middleSnake.c;
@@ -288,7 +291,7 @@ class Myers {
             size += d;
         }
         if ((sizeLimit > 0) && (size > sizeLimit)){
-            return null;
+            return false;
         }
         if ((middleSnake.a.getEnd().getX() < middleSnake.a.getStart().getX()) ||
                 (middleSnake.a.getEnd().getY() < middleSnake.a.getStart().getY())){                                
@@ -305,70 +308,45 @@ class Myers {
         Point end = middleSnake.a.getEnd();        
         if (d > 1){
             boolean leftAddUp = addup && !optimal && !leftIsAddedUp;
-            List<Operation> res_left = compare(Afrom, start.getX(), Bfrom, start.getY(), heuristics, leftAddUp);
-            if (res_left == null){
-                return null;
+            if (!compare(Afrom, start.getX(), Bfrom, start.getY(), heuristics, leftAddUp)){
+                return false;
             }            
+            fromSnake(middleSnake.a);
             boolean rightAddUp = addup && !optimal && leftIsAddedUp;
-            List<Operation> res_right = compare(end.getX(), Ato, end.getY(), Bto, heuristics, rightAddUp);            
-            if (res_right == null){
-                return null;
-            }            
-            List<Operation> res1 = new ArrayList<>();            
-            res1.addAll(res_left);
-            res1.addAll(fromSnakes(middleSnake.a));
-            res1.addAll(res_right);
-            return res1;
+            return compare(end.getX(), Ato, end.getY(), Bto, heuristics, rightAddUp);
         } else if (d == 1){
             Point leftupper = new Point(Afrom, Bfrom);
             Point tail = leftupper.moveDiagonally(A, Afrom, Ato, B, Bfrom, Bto);
-            Snake s = new Snake(leftupper, leftupper, tail);
-            res.add(s);
-            res.add(middleSnake.a);
-            return fromSnakes(res);
+            fromSnake(new Snake(leftupper, leftupper, tail));
+            fromSnake(middleSnake.a);
+            return true;
        } else { // d == 0
-            return fromSnakes(middleSnake.a);
+            fromSnake(middleSnake.a);
+            return true;
        }
     }
     
     /**
-     * Constructs a list of operations from a sequence of snakes in the edit graph.
-     * @param snakes
-     * @return 
+     * Appends the (0 to 2) operations of a single snake in the edit graph to "builder".
+     * @param s
      */
-    private List<Operation> fromSnakes(List<Snake> snakes){        
-        List<Operation> ops = new ArrayList<>();                                            
-        for (Snake s : snakes){
-            Point op1 = s.getMid().minus(s.getStart());
-            Point op2 = s.getEnd().minus(s.getMid());            
-            if (op1.equals(Point.DOWN)){
-                ops.add(new Insert(B[s.getStart().getY()]));
-            } else if (op1.equals(Point.RIGHT)){
-                ops.add(new Delete());
-            } else if (op1.equals(Point.ZERO)){
-                //no operation
-            } else {
-                ops.add(new Diagonal(op1.getX()));
-            }            
-            if (op2.equals(Point.DOWN)){
-                ops.add(new Insert(B[s.getMid().getY()]));
-            } else if (op2.equals(Point.RIGHT)){
-                ops.add(new Delete());
-            } else if (op2.equals(Point.ZERO)){
-                //no operation
-            } else {
-                ops.add(new Diagonal(op2.getX()));
-            }
-        }
-        return ops;
+    private void fromSnake(Snake s){
+        fromStep(s.getStart(), s.getMid().minus(s.getStart()));
+        fromStep(s.getMid(), s.getEnd().minus(s.getMid()));
     }
     
     /**
-     * Constructs a list of (1 to 2) operations from a single snake in the edit graph.
-     * @param s
-     * @return 
+     * Appends the operation of a single step "step" from the point "from" in the edit graph to "builder".
+     * @param from
+     * @param step 
      */
-    private List<Operation> fromSnakes(Snake s){
-        return fromSnakes(Arrays.asList(s));
+    private void fromStep(Point from, Point step){
+        if (step.equals(Point.DOWN)){
+            builder.insert(B[from.getY()]);
+        } else if (step.equals(Point.RIGHT)){
+            builder.skip(1);
+        } else if (!step.equals(Point.ZERO)){
+            builder.copy(step.getX());
+        }
     }
 }
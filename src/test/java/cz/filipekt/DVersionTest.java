@@ -0,0 +1,46 @@
+package cz.filipekt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests that versions larger than an array are recognized before their contents <br/>
+ * are loaded into memory.
+ * @author Tomas Filipek
+ */
+public class DVersionTest extends TestCase {
+
+    private static final int blockSize = 1 << 30;
+
+    private static DVersion version(int blockCount, int lastUsed){
+        List<DBlock> blocks = new ArrayList<>();
+        for (int i = 0; i<blockCount; i++){
+            int used = (i == blockCount-1) ? lastUsed : blockSize;
+            blocks.add(new DBlock(i, null, blockSize, used, 0, (long) i * blockSize, 1));
+        }
+        long size = (long) (blockCount-1) * blockSize + lastUsed;
+        return new DVersion(blocks, blockSize, "big", "", size);
+    }
+
+    public void testSizeOverTwoGigabytesDoesNotOverflow(){
+        DVersion version = version(3, blockSize);
+        assertEquals(3L * blockSize, version.estimateSize());
+        assertFalse(ServerUtils.fitsInArray(version));
+    }
+
+    public void testVersionJustBelowTheLimitFits(){
+        DVersion version = version(2, ServerUtils.maxArraySize - blockSize);
+        assertEquals(ServerUtils.maxArraySize, version.estimateSize());
+        assertTrue(ServerUtils.fitsInArray(version));
+    }
+
+    public void testLoadingTooLargeVersionIsRefused() throws BlockNotFound {
+        try {
+            ServerUtils.loadVersionFromDisc(version(3, blockSize), null);
+            fail();
+        } catch (IOException ex){
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cz.filipekt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests the framing of the journal records and what Journal.replay(..) applies <br/>
+ * when the journal ends with a torn or damaged record.
+ * @author Tomas Filipek
+ */
+public class JournalTest extends TestCase {
+
+    private Path dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+            for (Path p : stream){
+                Files.delete(p);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static Database emptyDatabase(){
+        return new Database(new HashMap<String,DItem>(), new HashMap<StrongHash,DBlock>(),
+                new HashSet<Long>(), new HashSet<StrongHash>());
+    }
+
+    private static List<String> path(String... names){
+        return Arrays.asList(names);
+    }
+
+    private Path segment(long number){
+        return dir.resolve(String.format("journal%06d", number));
+    }
+
+    private long replay(Database db, boolean repair) throws IOException{
+        return Journal.replay(dir.toString(), 0, Long.MAX_VALUE, db, repair);
+    }
+
+    public void testRecordsAreAppliedInOrder() throws IOException {
+        Journal journal = new Journal(dir.toString(), 0);
+        journal.logMakeDirs(path("a"));
+        journal.logAddFile(path("a", "f1"));
+        journal.startCheckpoint();
+        journal.logAddFile(path("a", "f2"));
+        journal.sync();
+        Database db = emptyDatabase();
+        assertEquals(3, replay(db, false));
+        assertTrue(db.itemExists(path("a", "f1")));
+        assertTrue(db.itemExists(path("a", "f2")));
+        db = emptyDatabase();
+        assertEquals(2, Journal.replay(dir.toString(), 0, 1, db, false));
+        assertTrue(db.itemExists(path("a", "f1")));
+        assertFalse(db.itemExists(path("a", "f2")));
+    }
+
+    public void testTornTailIsCutOff() throws IOException {
+        Journal journal = new Journal(dir.toString(), 0);
+        journal.logMakeDirs(path("a"));
+        journal.logAddFile(path("a", "f1"));
+        journal.sync();
+        long complete = Files.size(segment(0));
+        journal.logAddFile(path("a", "f2"));
+        journal.sync();
+        try (FileChannel channel = FileChannel.open(segment(0), StandardOpenOption.WRITE)){
+            channel.truncate(Files.size(segment(0)) - 3);
+        }
+        Database db = emptyDatabase();
+        assertEquals(2, replay(db, true));
+        assertTrue(db.itemExists(path("a", "f1")));
+        assertFalse(db.itemExists(path("a", "f2")));
+        assertEquals(complete, Files.size(segment(0)));
+        assertEquals(2, replay(emptyDatabase(), true));
+    }
+
+    public void testNothingIsAppliedAfterDamagedRecord() throws IOException {
+        Journal journal = new Journal(dir.toString(), 0);
+        journal.logMakeDirs(path("a"));
+        journal.sync();
+        long first = Files.size(segment(0));
+        journal.logAddFile(path("a", "f1"));
+        journal.startCheckpoint();
+        journal.logAddFile(path("a", "f2"));
+        journal.sync();
+        byte[] contents = Files.readAllBytes(segment(0));
+        contents[contents.length - 1] ^= 1;
+        Files.write(segment(0), contents);
+        Database db = emptyDatabase();
+        assertEquals(1, replay(db, false));
+        assertTrue(db.itemExists(path("a")));
+        assertFalse(db.itemExists(path("a", "f1")));
+        assertFalse(db.itemExists(path("a", "f2")));
+        assertTrue(Files.exists(segment(1)));
+        assertEquals(1, replay(emptyDatabase(), true));
+        assertEquals(first, Files.size(segment(0)));
+        assertFalse(Files.exists(segment(1)));
+    }
+
+    public void testJournalIsContinuedAfterRepair() throws IOException {
+        Journal journal = new Journal(dir.toString(), 0);
+        journal.logMakeDirs(path("a"));
+        journal.logAddFile(path("a", "f1"));
+        journal.sync();
+        try (FileChannel channel = FileChannel.open(segment(0), StandardOpenOption.WRITE)){
+            channel.truncate(Files.size(segment(0)) - 1);
+        }
+        assertEquals(1, replay(emptyDatabase(), true));
+        journal = new Journal(dir.toString(), 0);
+        journal.logAddFile(path("a", "f2"));
+        journal.sync();
+        Database db = emptyDatabase();
+        assertEquals(2, replay(db, true));
+        assertTrue(db.itemExists(path("a", "f2")));
+        assertTrue(Files.exists(segment(1)));
+    }
+}
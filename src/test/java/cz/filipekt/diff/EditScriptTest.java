@@ -0,0 +1,152 @@
+package cz.filipekt.diff;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the scripts created by EditScript.createScript(..) reproduce the new contents, <br/>
+ * and that the scripts saved as single byte operations are read as COPY/ADD/SKIP runs.
+ * @author Tomas Filipek
+ */
+public class EditScriptTest extends TestCase {
+
+    /**
+     * Middle snake limit used by the server by default.
+     */
+    private static final int tooExpensive = 256;
+
+    private static Kryo newKryo(){
+        Kryo kryo = new Kryo(null);
+        kryo.setAutoReset(true);
+        return kryo;
+    }
+
+    private static byte[] serialize(EditScript script){
+        Output output = new Output(4096, -1);
+        newKryo().writeObject(output, script, EditScript.getSerializer());
+        return output.toBytes();
+    }
+
+    private static EditScript deserialize(byte[] data){
+        return newKryo().readObject(new Input(data), EditScript.class, EditScript.getSerializer());
+    }
+
+    /**
+     * Returns a copy of "a" with "count" random bytes replaced, inserted or deleted.
+     * @param a
+     * @param count
+     * @param random
+     * @return
+     */
+    private static byte[] mutate(byte[] a, int count, Random random){
+        byte[] res = a;
+        for (int i = 0; i<count; i++){
+            int position = random.nextInt(res.length + 1);
+            switch (random.nextInt(3)){
+                case 0:
+                    if (position < res.length){
+                        res = Arrays.copyOf(res, res.length);
+                        res[position] = (byte) random.nextInt(256);
+                    }
+                    break;
+                case 1:
+                    byte[] inserted = new byte[res.length + 1];
+                    System.arraycopy(res, 0, inserted, 0, position);
+                    inserted[position] = (byte) random.nextInt(256);
+                    System.arraycopy(res, position, inserted, position + 1, res.length - position);
+                    res = inserted;
+                    break;
+                default:
+                    if (position < res.length){
+                        byte[] deleted = new byte[res.length - 1];
+                        System.arraycopy(res, 0, deleted, 0, position);
+                        System.arraycopy(res, position + 1, deleted, position, res.length - position - 1);
+                        res = deleted;
+                    }
+                    break;
+            }
+        }
+        return res;
+    }
+
+    public void testApplyToReproducesB(){
+        Random random = new Random(42);
+        for (int i = 0; i<200; i++){
+            byte[] a = new byte[random.nextInt(5000)];
+            random.nextBytes(a);
+            if (i % 2 == 0){
+                for (int j = 0; j<a.length; j++){
+                    a[j] &= 3;
+                }
+            }
+            byte[] b = mutate(a, random.nextInt(50), random);
+            boolean heuristics = (i % 3) != 0;
+            EditScript script = EditScript.createScript(a, b, 0, heuristics, tooExpensive);
+            assertNotNull(script);
+            assertTrue(Arrays.equals(b, script.applyTo(a)));
+            assertTrue(Arrays.equals(b, deserialize(serialize(script)).applyTo(a)));
+        }
+    }
+
+    public void testEmptyAndIdenticalContents(){
+        byte[] a = "the quick brown fox".getBytes();
+        byte[] empty = new byte[0];
+        assertTrue(Arrays.equals(a, EditScript.createScript(a, a, 0, true, tooExpensive).applyTo(a)));
+        assertTrue(Arrays.equals(a, EditScript.createScript(empty, a, 0, true, tooExpensive).applyTo(empty)));
+        assertTrue(Arrays.equals(empty, EditScript.createScript(a, empty, 0, true, tooExpensive).applyTo(a)));
+    }
+
+    public void testSizeLimit(){
+        byte[] a = new byte[1000];
+        byte[] b = new byte[1000];
+        Arrays.fill(b, (byte) 1);
+        assertNull(EditScript.createScript(a, b, 100, true, tooExpensive));
+        b[500] = 0;
+        byte[] c = Arrays.copyOf(a, a.length);
+        c[500] = 1;
+        EditScript script = EditScript.createScript(a, c, 100, true, tooExpensive);
+        assertNotNull(script);
+        assertTrue(Arrays.equals(c, script.applyTo(a)));
+    }
+
+    public void testLegacyOperationsAreMergedIntoRuns(){
+        byte[] a = "abcdefghij".getBytes();
+        byte[] b = "abcXYfgh".getBytes();
+        Output legacy = new Output(256, -1);
+        legacy.writeInt(b.length);
+        legacy.writeInt(7);
+        legacy.writeByte(3);
+        legacy.writeInt(3);
+        legacy.writeByte(1);
+        legacy.writeByte(1);
+        legacy.writeByte(2);
+        legacy.writeByte('X');
+        legacy.writeByte(2);
+        legacy.writeByte('Y');
+        legacy.writeByte(3);
+        legacy.writeInt(3);
+        legacy.writeByte(1);
+        EditScript script = deserialize(legacy.toBytes());
+        assertTrue(Arrays.equals(b, script.applyTo(a)));
+
+        Input converted = new Input(serialize(script));
+        assertEquals(-1, converted.readInt());
+        assertEquals(b.length, converted.readInt());
+        assertEquals(5, converted.readInt());
+        byte[] types = new byte[5];
+        int[] lengths = new int[5];
+        for (int i = 0; i<5; i++){
+            types[i] = converted.readByte();
+            lengths[i] = converted.readInt(true);
+        }
+        assertTrue(Arrays.equals(new byte[]{0, 2, 1, 0, 2}, types));
+        assertTrue(Arrays.equals(new int[]{3, 2, 2, 3, 1}, lengths));
+        assertEquals(2, converted.readInt());
+        assertTrue(Arrays.equals("XY".getBytes(), converted.readBytes(2)));
+        assertTrue(Arrays.equals(b, deserialize(serialize(script)).applyTo(a)));
+    }
+}